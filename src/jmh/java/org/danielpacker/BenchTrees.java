@@ -0,0 +1,129 @@
+package org.danielpacker;
+
+/**
+ * Generates and removes the directory trees the benchmarks run against.
+ * Everything lives under a temp dir on local disk.
+ */
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+
+class BenchTrees {
+
+    enum Shape {
+        WIDE,   // many sibling dirs with a few small files each
+        DEEP,   // one long chain of nested dirs
+        SMALL,  // lots of tiny files in a few dirs
+        HUGE    // a few very large (sparse) files
+    }
+
+    private static final Random random = new Random(42);
+
+    static Path tempDir(String prefix) throws IOException {
+        return Files.createTempDirectory(prefix);
+    }
+
+    /**
+     * Fill root with a tree of the given shape, scale multiplies the number of entries.
+     */
+    static void generate(Path root, Shape shape, int scale) throws IOException {
+
+        switch (shape) {
+            case WIDE:
+                for (int d = 0; d < 500 * scale; d++) {
+                    Path dir = Files.createDirectories(root.resolve("dir" + d));
+                    for (int f = 0; f < 20; f++)
+                        write(dir.resolve("file" + f), 1024);
+                }
+                break;
+            case DEEP:
+                Path dir = root;
+                for (int d = 0; d < 200 * scale; d++) {
+                    dir = Files.createDirectories(dir.resolve("d" + d));
+                    for (int f = 0; f < 5; f++)
+                        write(dir.resolve("file" + f), 1024);
+                }
+                break;
+            case SMALL:
+                for (int d = 0; d < 20; d++) {
+                    Path small = Files.createDirectories(root.resolve("dir" + d));
+                    for (int f = 0; f < 1000 * scale; f++)
+                        write(small.resolve("file" + f), 100);
+                }
+                break;
+            case HUGE:
+                for (int f = 0; f < 4 * scale; f++)
+                    try (RandomAccessFile raf = new RandomAccessFile(root.resolve("huge" + f).toFile(), "rw")) {
+                        raf.setLength(1L << 30);
+                    }
+                break;
+        }
+    }
+
+    static void write(Path file, int size) throws IOException {
+
+        byte[] bytes = new byte[size];
+        random.nextBytes(bytes);
+        Files.write(file, bytes);
+    }
+
+    /**
+     * Make dst an in-sync copy of src (same contents and mtimes), so a scan finds nothing to do.
+     */
+    static void mirror(Path src, Path dst) throws IOException {
+
+        Files.walkFileTree(src, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                Files.createDirectories(dst.resolve(src.relativize(dir)));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Path copy = dst.resolve(src.relativize(file));
+                if (attrs.size() > (64 << 20)) {
+                    // Sparse, like the original
+                    try (RandomAccessFile raf = new RandomAccessFile(copy.toFile(), "rw")) {
+                        raf.setLength(attrs.size());
+                    }
+                    Files.setLastModifiedTime(copy, attrs.lastModifiedTime());
+                }
+                else {
+                    Files.copy(file, copy, StandardCopyOption.COPY_ATTRIBUTES);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                FileTime time = Files.getLastModifiedTime(dir);
+                Files.setLastModifiedTime(dst.resolve(src.relativize(dir)), time);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    static void delete(Path root) throws IOException {
+
+        if (root == null || !Files.exists(root))
+            return;
+        try (Stream<Path> paths = Files.walk(root)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    // Empty a dir but keep it
+    static void clear(Path root) throws IOException {
+
+        delete(root);
+        Files.createDirectories(root);
+    }
+}
@@ -0,0 +1,130 @@
+package org.danielpacker;
+
+/**
+ * Doer throughput for each task type. Every invocation runs a fresh batch of tasks of one
+ * type through a pool of doer workers, reported as time per task.
+ */
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DoerBenchmark {
+
+    private static final int BATCH = 500;
+
+    @Param({"CP", "RM", "MKDIR", "RMDIR"})
+    public SyncTask.TYPE type;
+
+    @Param({"4096"})
+    public int fileBytes;
+
+    @Param({"files", "channel"})
+    public String copyEngine;
+
+    @Param({"1", "4"})
+    public int doerThreads;
+
+    // 0 turns off the small-file batch path
+    @Param({"0", "65536"})
+    public long batchSmallBytes;
+
+    private Path root;
+    private Path dir1;
+    private Path dir2;
+    private SyncConfig config;
+    private SyncTaskQueue q;
+    private SyncTaskSequencer sequencer;
+    private ExecutorService pool;
+    private SyncEchoCache echoes;
+    private SyncContentHashes hashes;
+    private SyncBatchCopier batchCopier;
+    private SyncTreeDeleter treeDeleter;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+
+        root = BenchTrees.tempDir("lightsync-doer");
+        dir1 = root.resolve("dir1");
+        dir2 = root.resolve("dir2");
+        config = new SyncConfig(dir1.toString(), dir2.toString());
+        config.setCopyEngine(copyEngine);
+        config.setBatchSmallBytes(batchSmallBytes);
+        q = new SyncTaskQueue(config, new SyncStats());
+        sequencer = new SyncTaskSequencer(q);
+        pool = Executors.newFixedThreadPool(doerThreads);
+        echoes = new SyncEchoCache(config);
+        hashes = new SyncContentHashes(config);
+        batchCopier = batchSmallBytes > 0 ? new SyncBatchCopier(config, new SyncStats()) : null;
+        treeDeleter = new SyncTreeDeleter(config, new SyncStats());
+    }
+
+    // A batch of tasks of the benchmarked type, with whatever they act on in place
+    @Setup(Level.Invocation)
+    public void prepareBatch() throws IOException {
+
+        BenchTrees.clear(dir1);
+        BenchTrees.clear(dir2);
+
+        for (int i = 0; i < BATCH; i++) {
+            Path src = dir1.resolve("entry" + i);
+            Path dst = dir2.resolve("entry" + i);
+            switch (type) {
+                case CP:
+                    BenchTrees.write(src, fileBytes);
+                    break;
+                case RM:
+                    BenchTrees.write(dst, fileBytes);
+                    break;
+                case MKDIR:
+                    Files.createDirectory(src);
+                    break;
+                case RMDIR:
+                    Files.createDirectory(dst);
+                    for (int f = 0; f < 4; f++)
+                        BenchTrees.write(dst.resolve("file" + f), fileBytes);
+                    break;
+            }
+            q.add(new SyncTask(type, SyncPathTable.forRoots(dir1, dir2), src, 1));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+
+        pool.shutdownNow();
+        if (batchCopier != null)
+            batchCopier.shutDown();
+        treeDeleter.shutDown();
+        BenchTrees.delete(root);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void doTasks() throws InterruptedException, ExecutionException {
+
+        SyncStats stats = new SyncStats();
+        SyncThrottle throttle = new SyncThrottle(config, stats);
+        List<Future<?>> doers = new ArrayList<>();
+        for (int i = 0; i < doerThreads; i++) {
+            SyncTaskDoerWorker doer = new SyncTaskDoerWorker(config, sequencer, stats, Collections.emptyMap(), echoes, hashes,
+                    new SyncHardLinks(config, stats), batchCopier, treeDeleter, throttle, null);
+            doers.add(pool.submit(() -> doer.doTasks(true)));
+        }
+        for (Future<?> doer : doers)
+            doer.get();
+    }
+}
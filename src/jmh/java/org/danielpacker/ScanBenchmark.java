@@ -0,0 +1,72 @@
+package org.danielpacker;
+
+/**
+ * Startup scan speed over trees of different shapes, either against an empty
+ * destination (every entry becomes a task) or an in-sync mirror (pure comparison).
+ */
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ScanBenchmark {
+
+    // One of BenchTrees.Shape
+    @Param({"WIDE", "DEEP", "SMALL", "HUGE"})
+    public String shape;
+
+    @Param({"1"})
+    public int scale;
+
+    @Param({"false", "true"})
+    public boolean mirrored;
+
+    @Param({"1", "4"})
+    public int scanThreads;
+
+    private Path root;
+    private Path dir1;
+    private Path dir2;
+    private SyncConfig config;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+
+        root = BenchTrees.tempDir("lightsync-scan");
+        dir1 = root.resolve("dir1");
+        dir2 = root.resolve("dir2");
+        BenchTrees.clear(dir1);
+        BenchTrees.clear(dir2);
+        BenchTrees.generate(dir1, BenchTrees.Shape.valueOf(shape), scale);
+        if (mirrored)
+            BenchTrees.mirror(dir1, dir2);
+
+        config = new SyncConfig(dir1.toString(), dir2.toString());
+        config.setScanThreads(scanThreads);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        BenchTrees.delete(root);
+    }
+
+    @Benchmark
+    public int doScan() {
+
+        Queue<SyncTask> q = new ConcurrentLinkedQueue<>();
+        new RecursiveScanner(config, SyncPathTable.forRoots(dir1, dir2), q, new SyncStats(), Collections.emptyMap()).doScan();
+        return q.size();
+    }
+}
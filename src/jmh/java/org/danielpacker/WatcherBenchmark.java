@@ -0,0 +1,84 @@
+package org.danielpacker;
+
+/**
+ * End-to-end latency from a file being written in one dir to its copy showing up complete
+ * in the other, through the watcher, coalescer, queue and doers.
+ */
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.LockSupport;
+
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class WatcherBenchmark {
+
+    private static final long TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+    @Param({"0", "250"})
+    public long coalesceWindowMillis;
+
+    @Param({"4096"})
+    public int fileBytes;
+
+    // One of the watcher.backend values (inotify only works on Linux)
+    @Param({"jdk", "inotify"})
+    public String watcherBackend;
+
+    private Path root;
+    private Path dir1;
+    private Path dir2;
+    private SyncTaskManager taskMgr;
+    private long fileNum = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, InterruptedException {
+
+        root = BenchTrees.tempDir("lightsync-watch");
+        dir1 = Files.createDirectories(root.resolve("dir1"));
+        dir2 = Files.createDirectories(root.resolve("dir2"));
+
+        SyncConfig config = new SyncConfig(dir1.toString(), dir2.toString());
+        config.setCoalesceWindowMillis(coalesceWindowMillis);
+        config.setWatcherBackend(watcherBackend);
+
+        taskMgr = new SyncTaskManager(config);
+        taskMgr.startDoerWorker();
+        taskMgr.startWatcherWorker();
+
+        // Give the watcher time to register
+        Thread.sleep(1000);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+
+        taskMgr.shutDown();
+        BenchTrees.delete(root);
+    }
+
+    @Benchmark
+    public void createToSynced() throws IOException, TimeoutException {
+
+        String name = "file" + fileNum++;
+        BenchTrees.write(dir1.resolve(name), fileBytes);
+
+        Path copy = dir2.resolve(name);
+        long deadline = System.nanoTime() + TIMEOUT_NANOS;
+        while (!Files.exists(copy) || Files.size(copy) != fileBytes) {
+            if (System.nanoTime() > deadline)
+                throw new TimeoutException("No copy of " + name + " after 30s");
+            LockSupport.parkNanos(50_000);
+        }
+    }
+}
@@ -2,101 +2,477 @@ package org.danielpacker;
 
 /**
  * This can be used in a thread, but that's not really necessary.
- * Performs a recursive sync between two folders and generates sync tasks.
+ * Performs a recursive sync between the dirs of a sync group and generates sync tasks.
  * Runs on startup and when done, the watcher worker takes over producing tasks.
+ * Each directory is listed once in every root, reading each entry's attributes once, and
+ * the listings (sorted by name) are merge-joined to compare every entry across all of them
+ * in one pass. Sub-directories are scanned in parallel on a fork/join pool, and tasks are
+ * queued as they're found, so they can be worked on while the scan is still running.
+ * When a state index is kept, paths deleted while the daemon was down are deleted
+ * from the other dirs too.
  */
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.util.Queue;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 
 public class RecursiveScanner implements Callable<Void> {
 
     private static final Logger log = LogManager.getLogger(RecursiveScanner.class);
     private final SyncStats stats;
-    private final Path dir1;
-    private final Path dir2;
     private final Queue<SyncTask> q;
+    private final SyncStateIndex[] indexes;
+    private final int parallelism;
+    private final SyncPathTable paths;
+    private final int numRoots;
 
-    RecursiveScanner(SyncConfig config, Queue<SyncTask> q, SyncStats stats) {
+    // Watcher to register each dir with before listing it, if one's running alongside
+    private SyncWatcherWorker watcher;
+
+    // Lane for what a rescan finds, rather than the startup scan
+    private SyncTask.LANE lane = SyncTask.LANE.SCAN;
+
+    // Only the top dir's own entries, not its sub-directories (see rescanEntries())
+    private boolean shallow = false;
+
+    // A dir deleted from some roots while down (from is one of them), still in the present ones
+    private static class DeferredDelete {
+        final String rel;
+        final int from;
+        final boolean[] present;
+
+        DeferredDelete(String rel, int from, boolean[] present) {
+            this.rel = rel;
+            this.from = from;
+            this.present = present;
+        }
+    }
+
+    // Directories deleted from a root while down, decided once their subtree has been scanned
+    private final Queue<DeferredDelete> deferredDirDeletes = new ConcurrentLinkedQueue<>();
+
+    // Paths with a deletion queued, kept in the index until the doer has synced it
+    private final Set<String> pendingDeletes = ConcurrentHashMap.newKeySet();
+
+    RecursiveScanner(SyncConfig config, SyncPathTable paths, Queue<SyncTask> q, SyncStats stats,
+                     Map<Path, SyncStateIndex> indexes) {
 
-        dir1 = Paths.get(config.getDir1());
-        dir2 = Paths.get(config.getDir2());
         this.q = q;
         this.stats = stats;
+        this.paths = paths;
+        numRoots = paths.numRoots();
+        this.indexes = new SyncStateIndex[numRoots];
+        for (int i = 0; i < numRoots; i++)
+            this.indexes[i] = indexes.get(paths.getRoot(i));
+        parallelism = config.getScanThreads();
+    }
+
+    /**
+     * Register each dir with the watcher just before it's listed, so a change made while
+     * scanning is either in the listing or caught by the watcher.
+     */
+    void setWatcher(SyncWatcherWorker watcher) {
+        this.watcher = watcher;
     }
 
     void doScan() {
 
         log.debug("starting recursive scan...");
+        scan("");
+        log.debug("recursive scan complete.");
+    }
+
+    /**
+     * Scan only the given directory (in any root) and its counterparts in the other roots.
+     * Used to recover events lost when a watched directory overflows.
+     */
+    void rescan(Path dir) {
+
+        log.debug("starting rescan of " + dir + "...");
+        lane = SyncTask.LANE.RESCAN;
+        scan(SyncUtil.normalizePath(dir, paths.getRoot(paths.rootOf(dir))).toString());
+        log.debug("rescan of " + dir + " complete.");
+    }
 
+    /**
+     * Like rescan(), but only compares the entries of the given directory, not what's in its
+     * sub-directories, e.g. for a dir the watcher has just registered, whose sub-directories
+     * get their own turn (and which was compared itself as one of its parent's entries).
+     * A sub-directory missing from some roots is synced as new, since telling whether it was
+     * deleted takes its whole subtree.
+     */
+    void rescanEntries(Path dir) {
+
+        shallow = true;
+        rescan(dir);
+    }
+
+    private boolean indexed() {
+
+        for (SyncStateIndex index : indexes)
+            if (index == null)
+                return false;
+        return true;
+    }
+
+    // Compare everything at and under rel ("" for the roots) in all roots
+    private void scan(String rel) {
+
+        if (indexed() && !shallow)
+            for (SyncStateIndex index : indexes)
+                index.resetSeen(rel);
+
+        SyncJfr.ScanEvent event = null;
+        if (SyncJfr.AVAILABLE) {
+            event = new SyncJfr.ScanEvent();
+            event.root = paths.getRoot(0).toString();
+            event.dir = rel;
+            event.rescan = lane == SyncTask.LANE.RESCAN;
+            event.begin();
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
         try {
-            Files.walk(dir1)
-                    .forEach(path -> {
-                        try {
-                            addTaskIfNeeded(path, dir1, dir2);
-                        } catch (IOException e) {
-                            log.error("Problem adding tasks in recursive search: " + e.getMessage());
-                        }
-                    });
-
-            Files.walk(dir2)
-                    .forEach(path -> {
-                        try {
-                            addTaskIfNeeded(path, dir2, dir1);
-                        } catch (IOException e) {
-                            log.error("Problem adding tasks in recursive search: " + e.getMessage());
-                        }
-                    });
+            int id = paths.intern(rel);
+            DirSet top;
+            if (rel.isEmpty() || shallow) {
+                top = new DirSet(rel, id, false, false);
+            }
+            else {
+                BasicFileAttributes[] attrs = new BasicFileAttributes[numRoots];
+                for (int i = 0; i < numRoots; i++)
+                    attrs[i] = readAttributes(paths.getRoot(i).resolve(rel));
+                top = compare(rel, id, attrs, false, false);
+            }
+            if (top != null)
+                pool.invoke(top);
+
+            if (indexed() && !shallow) {
+                for (DeferredDelete deferred; (deferred = deferredDirDeletes.poll()) != null; )
+                    deleteOrRestoreDir(deferred, pool);
+
+                for (SyncStateIndex index : indexes)
+                    index.pruneUnseen(rel, pendingDeletes);
+            }
         }
         catch (IOException e) {
             log.error("IO problem in recursive sync: " + e.getMessage());
             log.error("Stacktrace:", e);
         }
+        finally {
+            pool.shutdown();
+            if (event != null)
+                event.commit();
+        }
+    }
 
-        log.debug("recursive scan complete.");
+    /**
+     * Compares the contents of one directory (rel) in all roots, forking a new DirSet for
+     * each sub-directory. In quiet mode it only records what it sees in the index, and with
+     * ignoreIndex it syncs as if there were no index.
+     */
+    private class DirSet extends RecursiveAction {
+
+        private final String rel;
+        private final int id;
+        private final boolean ignoreIndex;
+        private final boolean quiet;
+
+        // The dir's path id is pinned until it's been listed, however long it waits to be
+        DirSet(String rel, int id, boolean ignoreIndex, boolean quiet) {
+            this.rel = rel;
+            this.id = id;
+            this.ignoreIndex = ignoreIndex;
+            this.quiet = quiet;
+            paths.pin(id);
+        }
+
+        @Override
+        protected void compute() {
+
+            SyncJfr.ScanDirEvent event = null;
+            if (SyncJfr.AVAILABLE) {
+                event = new SyncJfr.ScanDirEvent();
+                event.begin();
+            }
+            List<DirSet> subdirs;
+            try {
+                subdirs = compareEntries();
+            } finally {
+                paths.unpin(id);
+            }
+            if (event != null) {
+                event.end();
+                if (event.shouldCommit()) {
+                    event.dir = rel;
+                    event.subdirs = subdirs == null ? 0 : subdirs.size();
+                    event.commit();
+                }
+            }
+            if (subdirs != null && !shallow)
+                invokeAll(subdirs);
+        }
+
+        // Kept apart from compute() so the listings can be collected before the sub-directories run
+        private List<DirSet> compareEntries() {
+
+            Entry[][] listings = new Entry[numRoots][];
+            try {
+                for (int i = 0; i < numRoots; i++) {
+                    Path dir = paths.getRoot(i).resolve(rel);
+                    if (watcher != null)
+                        watcher.registerOnce(dir);
+                    listings[i] = list(dir);
+                }
+            }
+            catch (IOException e) {
+                log.error("Problem listing " + rel + " in recursive search: " + e.getMessage());
+                return null;
+            }
+
+            // Merge join: each round takes the lowest name at the head of any listing, and its
+            //  attributes in every listing that has it there (null where it's missing)
+            List<DirSet> subdirs = new ArrayList<>();
+            int[] next = new int[numRoots];
+            while (true) {
+                String name = null;
+                for (int i = 0; i < numRoots; i++)
+                    if (next[i] < listings[i].length
+                            && (name == null || listings[i][next[i]].name.compareTo(name) < 0))
+                        name = listings[i][next[i]].name;
+                if (name == null)
+                    break;
+
+                BasicFileAttributes[] attrs = new BasicFileAttributes[numRoots];
+                for (int i = 0; i < numRoots; i++)
+                    if (next[i] < listings[i].length && listings[i][next[i]].name.equals(name))
+                        attrs[i] = listings[i][next[i]++].attrs;
+
+                String childRel = rel.isEmpty() ? name : rel + File.separator + name;
+                try {
+                    DirSet subdir = compare(childRel, paths.child(id, name), attrs, ignoreIndex, quiet);
+                    if (subdir != null)
+                        subdirs.add(subdir);
+                }
+                catch (IOException e) {
+                    log.error("Problem adding tasks in recursive search: " + e.getMessage());
+                }
+            }
+            return subdirs;
+        }
+    }
+
+    // One entry of a directory listing
+    private static final class Entry {
+        final String name;
+        final BasicFileAttributes attrs;
+
+        Entry(String name, BasicFileAttributes attrs) {
+            this.name = name;
+            this.attrs = attrs;
+        }
     }
 
-    private void addTask(SyncTask.TYPE type, Path src, Path dst) {
+    private static final Entry[] EMPTY = new Entry[0];
+
+    // Everything in a directory sorted by name, attributes read once each. Missing dirs are empty.
+    private static Entry[] list(Path dir) throws IOException {
+
+        List<Entry> entries = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path path : stream) {
+                if (SyncUtil.isTempFile(path))
+                    continue;
+                BasicFileAttributes attrs = readAttributes(path);
+                if (attrs != null)
+                    entries.add(new Entry(path.getFileName().toString(), attrs));
+            }
+        }
+        catch (NoSuchFileException | NotDirectoryException e) {
+            // Nothing in this root
+        }
+        if (entries.isEmpty())
+            return EMPTY;
+        Entry[] sorted = entries.toArray(new Entry[0]);
+        Arrays.sort(sorted, (a, b) -> a.name.compareTo(b.name));
+        return sorted;
+    }
 
-        SyncTask task = new SyncTask(type, src, dst);
+    // Null if the path doesn't exist (any more)
+    private static BasicFileAttributes readAttributes(Path path) throws IOException {
+        try {
+            return Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        }
+        catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    private void addTask(SyncTask.TYPE type, int id, int from, int to) {
+
+        addTask(type, id, from, to, 0);
+    }
+
+    private void addTask(SyncTask.TYPE type, int id, int from, int to, long size) {
+
+        SyncTask task = new SyncTask(type, paths, id, from, to);
+        task.setSize(size);
+        boolean delete = type == SyncTask.TYPE.RM || type == SyncTask.TYPE.RMDIR;
+        task.setLane(delete ? SyncTask.LANE.DELETE : lane);
+        stats.taskQueued(task);
         q.add(task);
-        stats.setNumTasksQueued(stats.getNumTasksQueued()+1);
     }
 
-    private void addTaskIfNeeded(Path path, Path src, Path dst) throws IOException {
+    /**
+     * Queue whatever it takes to sync rel, given its attributes in each root (null if missing).
+     * The newest copy of a file wins and is copied to every root that's missing it or has an
+     * older one. Returns the sub-directory scan to run for it, if it's a directory.
+     */
+    private DirSet compare(String rel, int id, BasicFileAttributes[] attrs,
+                           boolean ignoreIndex, boolean quiet) throws IOException {
 
-        Path destPath = SyncUtil.srcTodestPath(path, src, dst);
+        boolean useIndex = indexed() && !ignoreIndex;
+        boolean allUnchanged = true;
+        boolean isDir = false;
+        boolean isFile = false;
+        int newest = -1;
+        int numMissing = 0;
 
-        // Avoid trying to process root folders from config
-        if (destPath.toString().equals(dir1.toString()) ||
-                destPath.toString().equals((dir2.toString()))) {
+        for (int i = 0; i < numRoots; i++) {
+            if (attrs[i] == null) {
+                numMissing++;
+                continue;
+            }
+            allUnchanged &= useIndex && indexes[i].markSeen(rel, attrs[i]);
+            if (attrs[i].isDirectory())
+                isDir = true;
+            else
+                isFile = true;
+            if (newest < 0 || attrs[i].lastModifiedTime().toMillis() > attrs[newest].lastModifiedTime().toMillis())
+                newest = i;
+        }
+
+        if (quiet)
+            return isDir ? new DirSet(rel, id, ignoreIndex, true) : null;
+
+        if (isDir && isFile) {
+            log.warn("SKIPPING " + rel + ", it's a file in one dir and a dir in another");
+            return null;
+        }
+
+        if (numMissing > 0 && deletedWhileDown(rel, id, attrs, allUnchanged, useIndex))
+            return isDir ? new DirSet(rel, id, ignoreIndex, true) : null;
+
+        // Only care about newer files, not folders
+        boolean inSync = true;
+        for (int i = 0; i < numRoots; i++) {
+            if (i == newest)
+                continue;
+            if (attrs[i] == null) {
+                addTask(isDir ? SyncTask.TYPE.MKDIR : SyncTask.TYPE.CP, id, newest, i, attrs[newest].size());
+                inSync = false;
+            }
+            else if (!isDir && attrs[newest].lastModifiedTime().toMillis() > attrs[i].lastModifiedTime().toMillis()) {
+                addTask(SyncTask.TYPE.CP, id, newest, i, attrs[newest].size());
+                inSync = false;
+            }
+            else if (!isDir && attrs[newest].size() != attrs[i].size()) {
+                inSync = false;
+            }
+        }
+
+        // Already in sync, remember that for next time
+        if (inSync && indexed() && !allUnchanged)
+            for (int i = 0; i < numRoots; i++)
+                indexes[i].put(rel, attrs[i]);
+
+        return isDir ? new DirSet(rel, id, ignoreIndex, false) : null;
+    }
 
-            log.debug("SKIPPING ROOT DIR IN WALK (" + destPath + ")");
-            return;
+    /**
+     * rel is missing from some roots. Either it's new in the others, or it was synced before
+     * and then deleted from one of them while the daemon was down, in which case it's deleted
+     * from the rest too as long as it hasn't changed anywhere since. Returns true if it's
+     * being deleted (for dirs, once the rest of its subtree has been seen).
+     */
+    private boolean deletedWhileDown(String rel, int id, BasicFileAttributes[] attrs, boolean allUnchanged,
+                                     boolean useIndex) {
+
+        if (!useIndex || !allUnchanged)
+            return false;
+
+        int from = -1;
+        for (int i = 0; i < numRoots && from < 0; i++)
+            if (attrs[i] == null && indexes[i].get(rel) != null)
+                from = i;
+        if (from < 0)
+            return false;
+
+        boolean[] present = new boolean[numRoots];
+        boolean isDir = false;
+        for (int i = 0; i < numRoots; i++) {
+            present[i] = attrs[i] != null;
+            isDir |= present[i] && attrs[i].isDirectory();
+        }
+
+        if (isDir) {
+            if (shallow)
+                return false;
+            deferredDirDeletes.add(new DeferredDelete(rel, from, present));
+            return true;
         }
+        for (int i = 0; i < numRoots; i++) {
+            if (present[i]) {
+                log.debug("DELETED WHILE DOWN: " + paths.resolve(id, i));
+                addTask(SyncTask.TYPE.RM, id, from, i);
+            }
+        }
+        pendingDeletes.add(rel);
+        return true;
+    }
 
-        if (Files.exists(destPath)) {
-            long pathTime = Files.getLastModifiedTime(path).toMillis();
-            long destTime = Files.getLastModifiedTime(destPath).toMillis();
+    // A dir deleted from a root while down: delete it from the rest too unless something under it changed
+    private void deleteOrRestoreDir(DeferredDelete deferred, ForkJoinPool pool) {
 
-             // Only care about newer files in this directory, not older, and not folders.
-             // Since this same check runs on the other directory, only need one direction at a time.
-             if (pathTime > destTime && !Files.isDirectory(path))
-                addTask(SyncTask.TYPE.CP, path, destPath);
+        // Not held on to while its subtree was scanned, so looked up again
+        int id = paths.intern(deferred.rel);
+        boolean unchanged = true;
+        int restoreFrom = -1;
+        for (int i = 0; i < numRoots; i++) {
+            if (deferred.present[i]) {
+                unchanged &= indexes[i].subtreeUnchanged(deferred.rel);
+                restoreFrom = i;
+            }
+        }
+
+        if (unchanged) {
+            for (int i = 0; i < numRoots; i++) {
+                if (deferred.present[i]) {
+                    log.debug("DELETED WHILE DOWN: " + paths.resolve(id, i));
+                    addTask(SyncTask.TYPE.RMDIR, id, deferred.from, i);
+                }
+            }
+            pendingDeletes.add(deferred.rel);
         }
         else {
-            if (Files.isDirectory(path))
-                addTask(SyncTask.TYPE.MKDIR, path, destPath);
-            else
-                addTask(SyncTask.TYPE.CP, path, destPath);
+            for (int i = 0; i < numRoots; i++) {
+                if (!deferred.present[i]) {
+                    log.debug("DELETED WHILE DOWN BUT CHANGED ELSEWHERE, RESTORING: " + paths.resolve(id, i));
+                    addTask(SyncTask.TYPE.MKDIR, id, restoreFrom, i);
+                }
+            }
+            pool.invoke(new DirSet(deferred.rel, id, true, false));
         }
     }
 
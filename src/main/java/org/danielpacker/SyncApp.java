@@ -35,15 +35,19 @@ public class SyncApp {
         // Task mgr is the high level interface for the app
         SyncTaskManager taskMgr = new SyncTaskManager(config);
 
+        // Live metrics over JMX/HTTP for watching a long sync
+        taskMgr.startMetrics();
+
+        // Watch for real-time events and produce tasks, from the start so
+        //  nothing changed during the scan is missed
+        taskMgr.startWatcherWorker();
+
         // Scan recursively for changes and produce tasks
         taskMgr.recursiveScan();
 
         // Watch for tasks and consume/perform tasks
         taskMgr.startDoerWorker();
 
-        // Watch for real-time events and produce tasks
-        taskMgr.startWatcherWorker();
-
         // Display stats on exit
         Runtime.getRuntime().addShutdownHook(new Thread() {
             public void run() {
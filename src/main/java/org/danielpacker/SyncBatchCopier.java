@@ -0,0 +1,127 @@
+package org.danielpacker;
+
+/**
+ * Fast path for copying lots of small files. The doers hand it whole batches of small CPs
+ * (siblings in one directory), and it runs the copies on a dedicated set of I/O threads with
+ * up to batch.inflight copies in flight at once, so the opens, transfers and closes of many
+ * files overlap instead of going one after another on a doer thread.
+ * Each copy is a single zero-copy transferTo, then the source's mtime and permissions are set
+ * on it. Like the copy engine in use, an existing destination is never written into: with the
+ * channel engine the copy goes to a temp file that is atomically renamed over it, otherwise
+ * it's deleted and written anew, as Files.copy does.
+ */
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.*;
+
+
+class SyncBatchCopier {
+
+    private final long smallBytes;
+    private final boolean atomic;
+    private final Semaphore inFlight;
+    private final ExecutorService ioPool;
+    private final SyncStats stats;
+
+    SyncBatchCopier(SyncConfig config, SyncStats stats) {
+
+        this.smallBytes = config.getBatchSmallBytes();
+        this.atomic = "channel".equals(config.getCopyEngine());
+        this.inFlight = new Semaphore(config.getBatchInFlight());
+        this.stats = stats;
+
+        AtomicInteger threadNum = new AtomicInteger();
+        this.ioPool = Executors.newFixedThreadPool(config.getBatchIoThreads(), r -> {
+            Thread t = new Thread(r, "SyncBatchCopier-" + threadNum.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Whether a file with these attributes goes through the batch.
+     */
+    boolean isSmall(BasicFileAttributes attrs) {
+        return attrs.isRegularFile() && attrs.size() <= smallBytes;
+    }
+
+    /**
+     * Start copying src (with attrs, read beforehand) to dst, returning the bytes copied once done.
+     * Waits while too many copies are already in flight.
+     */
+    CompletableFuture<Long> copy(Path src, Path dst, BasicFileAttributes attrs) throws InterruptedException {
+
+        inFlight.acquire();
+        try {
+            return CompletableFuture.supplyAsync(() -> {
+                try {
+                    return copyFile(src, dst, attrs);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                } finally {
+                    inFlight.release();
+                }
+            }, ioPool);
+        }
+        catch (RuntimeException e) {
+            inFlight.release();
+            throw e;
+        }
+    }
+
+    private long copyFile(Path src, Path dst, BasicFileAttributes attrs) throws IOException {
+
+        Path target = atomic ? SyncUtil.tempPath(dst) : dst;
+        if (!atomic)
+            Files.deleteIfExists(dst);
+        boolean done = false;
+
+        try {
+            long pos = 0;
+            try (FileChannel in = FileChannel.open(src, READ);
+                 FileChannel out = FileChannel.open(target, WRITE, CREATE, TRUNCATE_EXISTING)) {
+                long size = in.size();
+                while (pos < size) {
+                    long n = in.transferTo(pos, size - pos, out);
+                    if (n <= 0)
+                        break;
+                    pos += n;
+                }
+                if (atomic)
+                    out.force(true);
+            }
+
+            Files.setLastModifiedTime(target, attrs.lastModifiedTime());
+            if (attrs instanceof PosixFileAttributes)
+                Files.setPosixFilePermissions(target, ((PosixFileAttributes) attrs).permissions());
+            if (atomic)
+                Files.move(target, dst, REPLACE_EXISTING, ATOMIC_MOVE);
+            done = true;
+
+            stats.addBytesCopied(pos);
+            return pos;
+        }
+        finally {
+            if (atomic && !done)
+                Files.deleteIfExists(target);
+        }
+    }
+
+    void shutDown() {
+        ioPool.shutdownNow();
+    }
+}
@@ -0,0 +1,89 @@
+package org.danielpacker;
+
+/**
+ * Copies with FileChannel.transferTo, which lets the kernel copy without going through
+ * user space where it can (e.g. sendfile/copy_file_range on Linux).
+ * The copy goes in chunks into a temp file next to the destination, checking for
+ * interruption between chunks, and the temp file is then flushed to disk and atomically
+ * renamed over the destination, so readers never see a half-written file, nor does a crash
+ * right after the rename leave an empty or partly written one in its place.
+ */
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.*;
+
+
+class SyncChannelCopyEngine implements SyncCopyEngine {
+
+    private static final Logger log = LogManager.getLogger(SyncChannelCopyEngine.class);
+    private final long chunkSize;
+    private final SyncStats stats;
+
+    SyncChannelCopyEngine(long chunkSize, SyncStats stats) {
+
+        this.chunkSize = chunkSize;
+        this.stats = stats;
+    }
+
+    @Override
+    public long copy(Path src, Path dst) throws IOException {
+
+        BasicFileAttributes attrs = Files.readAttributes(src, BasicFileAttributes.class);
+        Path tmp = SyncUtil.tempPath(dst);
+        boolean done = false;
+
+        try {
+            long copied = 0;
+            try (FileChannel in = FileChannel.open(src, READ);
+                 FileChannel out = FileChannel.open(tmp, WRITE, CREATE, TRUNCATE_EXISTING)) {
+
+                long size = in.size();
+                while (copied < size) {
+                    if (Thread.currentThread().isInterrupted())
+                        throw new InterruptedIOException("Copy of " + src + " interrupted");
+
+                    long n = in.transferTo(copied, Math.min(chunkSize, size - copied), out);
+                    if (n <= 0)
+                        break; // src shrank while copying
+                    copied += n;
+                    stats.addBytesCopied(n);
+                    log.debug("Copied " + copied + " of " + size + " bytes of " + src);
+                }
+
+                // On disk before it's renamed into place
+                out.force(true);
+            }
+
+            copyAttributes(src, tmp, attrs);
+            Files.move(tmp, dst, REPLACE_EXISTING, ATOMIC_MOVE);
+            done = true;
+            return copied;
+        }
+        finally {
+            if (!done)
+                Files.deleteIfExists(tmp);
+        }
+    }
+
+    private static void copyAttributes(Path src, Path tmp, BasicFileAttributes attrs) throws IOException {
+
+        Files.setLastModifiedTime(tmp, attrs.lastModifiedTime());
+
+        PosixFileAttributeView posix = Files.getFileAttributeView(tmp, PosixFileAttributeView.class);
+        if (posix != null)
+            posix.setPermissions(Files.readAttributes(src, PosixFileAttributes.class).permissions());
+    }
+}
@@ -8,8 +8,9 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.Properties;
+import java.util.*;
 
 
 public class SyncConfig {
@@ -18,6 +19,42 @@ public class SyncConfig {
 
     private String dir1 = "";
     private String dir2 = "";
+    private final Map<String, List<String>> groups = new LinkedHashMap<>();
+    private int doerThreads = Runtime.getRuntime().availableProcessors();
+    private int scanThreads = Runtime.getRuntime().availableProcessors();
+    private int rmdirThreads = 8;
+    private String stateDir = null;
+    private long coalesceWindowMillis = 250;
+    private long deltaThresholdBytes = 64L * 1024 * 1024;
+    private int deltaBlockBytes = 64 * 1024;
+    private String copyEngine = "files";
+    private long copyChunkBytes = 8L * 1024 * 1024;
+    private int queueCapacity = 100000;
+    private long queueMaxBytes = 64L * 1024 * 1024;
+    private long queueBlockMillis = 1000;
+    private String queueSpillDir = null;
+    private long echoTtlMillis = 2000;
+    private int echoMaxEntries = 100000;
+    private boolean skipIdentical = false;
+    private int hashCacheEntries = 100000;
+    private boolean hardLinks = true;
+    private boolean reflink = true;
+    private long batchSmallBytes = 64 * 1024;
+    private int batchMaxFiles = 256;
+    private int batchIoThreads = 16;
+    private int batchInFlight = 128;
+    private final int[] laneWeights = { 16, 4, 2, 1 };
+    private long throttleBytesPerSec = 0;
+    private long throttleOpsPerSec = 0;
+    private long configFileMillis = 0;
+    private String watcherBackend = "auto";
+    private int watcherBufferBytes = 1024 * 1024;
+    private int metricsHttpPort = 0;
+    private boolean metricsJmx = true;
+    private String journalDir = null;
+    private long journalCommitMillis = 10;
+    private long journalCheckpointTasks = 100000;
+    private boolean journalSkipScan = false;
     private final String CONFIG_FULL_PATH = "src/main/resources/config.properties";
     private final String CONFIG_BASE_PATH = "/config.properties";
 
@@ -38,6 +75,13 @@ public class SyncConfig {
         }
     }
 
+    // Defaults plus the given dirs, without loading config.properties (for benchmarks)
+    SyncConfig(String dir1, String dir2) {
+
+        this.dir1 = dir1;
+        this.dir2 = dir2;
+    }
+
     public String getDir1() {
         return dir1;
     }
@@ -54,6 +98,311 @@ public class SyncConfig {
         this.dir2 = dir2;
     }
 
+    /**
+     * Sync groups by name, each a list of dirs kept in sync with each other.
+     * Without any configured, it's just dir1 and dir2.
+     */
+    public Map<String, List<String>> getGroups() {
+
+        if (!groups.isEmpty())
+            return groups;
+        return Collections.singletonMap("default", Arrays.asList(dir1, dir2));
+    }
+
+    public void addGroup(String name, List<String> dirs) {
+        groups.put(name, dirs);
+    }
+
+    public int getDoerThreads() {
+        return doerThreads;
+    }
+
+    public void setDoerThreads(int doerThreads) {
+        this.doerThreads = doerThreads;
+    }
+
+    public int getScanThreads() {
+        return scanThreads;
+    }
+
+    public void setScanThreads(int scanThreads) {
+        this.scanThreads = scanThreads;
+    }
+
+    public int getRmdirThreads() {
+        return rmdirThreads;
+    }
+
+    public void setRmdirThreads(int rmdirThreads) {
+        this.rmdirThreads = rmdirThreads;
+    }
+
+    public String getStateDir() {
+        return stateDir;
+    }
+
+    public void setStateDir(String stateDir) {
+        this.stateDir = stateDir;
+    }
+
+    public long getCoalesceWindowMillis() {
+        return coalesceWindowMillis;
+    }
+
+    public void setCoalesceWindowMillis(long coalesceWindowMillis) {
+        this.coalesceWindowMillis = coalesceWindowMillis;
+    }
+
+    public long getDeltaThresholdBytes() {
+        return deltaThresholdBytes;
+    }
+
+    public void setDeltaThresholdBytes(long deltaThresholdBytes) {
+        this.deltaThresholdBytes = deltaThresholdBytes;
+    }
+
+    public int getDeltaBlockBytes() {
+        return deltaBlockBytes;
+    }
+
+    public void setDeltaBlockBytes(int deltaBlockBytes) {
+        this.deltaBlockBytes = deltaBlockBytes;
+    }
+
+    public String getCopyEngine() {
+        return copyEngine;
+    }
+
+    public void setCopyEngine(String copyEngine) {
+        this.copyEngine = copyEngine;
+    }
+
+    public long getCopyChunkBytes() {
+        return copyChunkBytes;
+    }
+
+    public void setCopyChunkBytes(long copyChunkBytes) {
+        this.copyChunkBytes = copyChunkBytes;
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    public void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+    }
+
+    public long getQueueMaxBytes() {
+        return queueMaxBytes;
+    }
+
+    public void setQueueMaxBytes(long queueMaxBytes) {
+        this.queueMaxBytes = queueMaxBytes;
+    }
+
+    public long getQueueBlockMillis() {
+        return queueBlockMillis;
+    }
+
+    public void setQueueBlockMillis(long queueBlockMillis) {
+        this.queueBlockMillis = queueBlockMillis;
+    }
+
+    public long getEchoTtlMillis() {
+        return echoTtlMillis;
+    }
+
+    public void setEchoTtlMillis(long echoTtlMillis) {
+        this.echoTtlMillis = echoTtlMillis;
+    }
+
+    public int getEchoMaxEntries() {
+        return echoMaxEntries;
+    }
+
+    public void setEchoMaxEntries(int echoMaxEntries) {
+        this.echoMaxEntries = echoMaxEntries;
+    }
+
+    public boolean isSkipIdentical() {
+        return skipIdentical;
+    }
+
+    public void setSkipIdentical(boolean skipIdentical) {
+        this.skipIdentical = skipIdentical;
+    }
+
+    public boolean isHardLinks() {
+        return hardLinks;
+    }
+
+    public void setHardLinks(boolean hardLinks) {
+        this.hardLinks = hardLinks;
+    }
+
+    public boolean isReflink() {
+        return reflink;
+    }
+
+    public void setReflink(boolean reflink) {
+        this.reflink = reflink;
+    }
+
+    public int getHashCacheEntries() {
+        return hashCacheEntries;
+    }
+
+    public void setHashCacheEntries(int hashCacheEntries) {
+        this.hashCacheEntries = hashCacheEntries;
+    }
+
+    public long getBatchSmallBytes() {
+        return batchSmallBytes;
+    }
+
+    public void setBatchSmallBytes(long batchSmallBytes) {
+        this.batchSmallBytes = batchSmallBytes;
+    }
+
+    public int getBatchMaxFiles() {
+        return batchMaxFiles;
+    }
+
+    public void setBatchMaxFiles(int batchMaxFiles) {
+        this.batchMaxFiles = batchMaxFiles;
+    }
+
+    public int getBatchIoThreads() {
+        return batchIoThreads;
+    }
+
+    public void setBatchIoThreads(int batchIoThreads) {
+        this.batchIoThreads = batchIoThreads;
+    }
+
+    public int getBatchInFlight() {
+        return batchInFlight;
+    }
+
+    public void setBatchInFlight(int batchInFlight) {
+        this.batchInFlight = batchInFlight;
+    }
+
+    public int getLaneWeight(SyncTask.LANE lane) {
+        return laneWeights[lane.ordinal()];
+    }
+
+    public void setLaneWeight(SyncTask.LANE lane, int weight) {
+        laneWeights[lane.ordinal()] = weight;
+    }
+
+    public long getThrottleBytesPerSec() {
+        return throttleBytesPerSec;
+    }
+
+    public void setThrottleBytesPerSec(long throttleBytesPerSec) {
+        this.throttleBytesPerSec = throttleBytesPerSec;
+    }
+
+    public long getThrottleOpsPerSec() {
+        return throttleOpsPerSec;
+    }
+
+    public void setThrottleOpsPerSec(long throttleOpsPerSec) {
+        this.throttleOpsPerSec = throttleOpsPerSec;
+    }
+
+    public String getWatcherBackend() {
+        return watcherBackend;
+    }
+
+    public void setWatcherBackend(String watcherBackend) {
+        this.watcherBackend = watcherBackend;
+    }
+
+    public int getWatcherBufferBytes() {
+        return watcherBufferBytes;
+    }
+
+    public void setWatcherBufferBytes(int watcherBufferBytes) {
+        this.watcherBufferBytes = watcherBufferBytes;
+    }
+
+    public int getMetricsHttpPort() {
+        return metricsHttpPort;
+    }
+
+    public void setMetricsHttpPort(int metricsHttpPort) {
+        this.metricsHttpPort = metricsHttpPort;
+    }
+
+    public boolean isMetricsJmx() {
+        return metricsJmx;
+    }
+
+    public void setMetricsJmx(boolean metricsJmx) {
+        this.metricsJmx = metricsJmx;
+    }
+
+    public String getJournalDir() {
+        return journalDir;
+    }
+
+    public void setJournalDir(String journalDir) {
+        this.journalDir = journalDir;
+    }
+
+    public long getJournalCommitMillis() {
+        return journalCommitMillis;
+    }
+
+    public void setJournalCommitMillis(long journalCommitMillis) {
+        this.journalCommitMillis = journalCommitMillis;
+    }
+
+    public long getJournalCheckpointTasks() {
+        return journalCheckpointTasks;
+    }
+
+    public void setJournalCheckpointTasks(long journalCheckpointTasks) {
+        this.journalCheckpointTasks = journalCheckpointTasks;
+    }
+
+    public boolean isJournalSkipScan() {
+        return journalSkipScan;
+    }
+
+    public void setJournalSkipScan(boolean journalSkipScan) {
+        this.journalSkipScan = journalSkipScan;
+    }
+
+    public String getQueueSpillDir() {
+        return queueSpillDir;
+    }
+
+    public void setQueueSpillDir(String queueSpillDir) {
+        this.queueSpillDir = queueSpillDir;
+    }
+
+    // Every group needs 2+ dirs, and no dir may be inside another (in any group)
+    private void checkGroups() throws SyncException {
+
+        List<Path> all = new ArrayList<>();
+        for (Map.Entry<String, List<String>> group : getGroups().entrySet()) {
+            if (group.getValue().size() < 2 || group.getValue().size() > SyncPathTable.MAX_ROOTS)
+                throw new SyncException("Sync group " + group.getKey() + " needs 2 to "
+                        + SyncPathTable.MAX_ROOTS + " dirs.");
+            for (String dir : group.getValue()) {
+                Path path = Paths.get(dir);
+                for (Path other : all)
+                    if (path.startsWith(other) || other.startsWith(path))
+                        throw new SyncException("Synced dirs can't overlap: " + other + " and " + path);
+                all.add(path);
+            }
+        }
+    }
+
     public String load() throws Exception {
 
         Properties props = new Properties();
@@ -67,6 +416,7 @@ public class SyncConfig {
                 System.exit(1);
             }
             source = CONFIG_FULL_PATH;
+            configFileMillis = Files.getLastModifiedTime(Paths.get(CONFIG_FULL_PATH)).toMillis();
         }
         else {
             InputStream in = getClass().getResourceAsStream(CONFIG_BASE_PATH);
@@ -74,14 +424,193 @@ public class SyncConfig {
             source = CONFIG_BASE_PATH;
         }
 
-        dir1 = props.getProperty("dir1");
-        dir2 = props.getProperty("dir2");
+        String groupNames = props.getProperty("sync.groups");
+        if (groupNames != null) {
+            for (String name : groupNames.split(",")) {
+                name = name.trim();
+                String dirs = props.getProperty("group." + name + ".dirs");
+                if (dirs == null) {
+                    log.error("group." + name + ".dirs must be configured.");
+                    System.exit(1);
+                }
+                List<String> groupDirs = new ArrayList<>();
+                for (String dir : dirs.split(","))
+                    groupDirs.add(dir.trim());
+                groups.put(name, groupDirs);
+            }
+            dir1 = props.getProperty("dir1", "");
+            dir2 = props.getProperty("dir2", "");
+        }
+        else {
+            dir1 = props.getProperty("dir1");
+            dir2 = props.getProperty("dir2");
+
+            if (dir1 == null || dir2 == null) {
+                log.error("Both dir1 and dir2 must be configured.");
+                System.exit(1);
+            }
+        }
+        checkGroups();
+
+        String threads = props.getProperty("doer.threads");
+        if (threads != null) {
+            doerThreads = Integer.parseInt(threads.trim());
+            if (doerThreads < 1) {
+                log.error("doer.threads must be at least 1.");
+                System.exit(1);
+            }
+        }
+
+        String scan = props.getProperty("scan.threads");
+        if (scan != null) {
+            scanThreads = Integer.parseInt(scan.trim());
+            if (scanThreads < 1) {
+                log.error("scan.threads must be at least 1.");
+                System.exit(1);
+            }
+        }
 
-        if (dir1 == null || dir2 == null) {
-            log.error("Both dir1 and dir2 must be configured.");
+        String rmdir = props.getProperty("rmdir.threads");
+        if (rmdir != null) {
+            rmdirThreads = Integer.parseInt(rmdir.trim());
+            if (rmdirThreads < 1) {
+                log.error("rmdir.threads must be at least 1.");
+                System.exit(1);
+            }
+        }
+
+        stateDir = props.getProperty("state.dir");
+
+        String window = props.getProperty("coalesce.window.ms");
+        if (window != null)
+            coalesceWindowMillis = Long.parseLong(window.trim());
+
+        String deltaThreshold = props.getProperty("delta.threshold.bytes");
+        if (deltaThreshold != null)
+            deltaThresholdBytes = Long.parseLong(deltaThreshold.trim());
+
+        String deltaBlock = props.getProperty("delta.block.bytes");
+        if (deltaBlock != null)
+            deltaBlockBytes = Integer.parseInt(deltaBlock.trim());
+
+        copyEngine = props.getProperty("copy.engine", copyEngine).trim();
+        if (!copyEngine.equals("files") && !copyEngine.equals("channel")) {
+            log.error("copy.engine must be 'files' or 'channel'.");
+            System.exit(1);
+        }
+
+        String chunk = props.getProperty("copy.chunk.bytes");
+        if (chunk != null)
+            copyChunkBytes = Long.parseLong(chunk.trim());
+
+        String capacity = props.getProperty("queue.capacity");
+        if (capacity != null) {
+            queueCapacity = Integer.parseInt(capacity.trim());
+            if (queueCapacity < 1) {
+                log.error("queue.capacity must be at least 1.");
+                System.exit(1);
+            }
+        }
+
+        String maxBytes = props.getProperty("queue.max.bytes");
+        if (maxBytes != null)
+            queueMaxBytes = Long.parseLong(maxBytes.trim());
+
+        String block = props.getProperty("queue.block.ms");
+        if (block != null)
+            queueBlockMillis = Long.parseLong(block.trim());
+
+        queueSpillDir = props.getProperty("queue.spill.dir");
+
+        String echoTtl = props.getProperty("echo.ttl.ms");
+        if (echoTtl != null)
+            echoTtlMillis = Long.parseLong(echoTtl.trim());
+
+        String echoMax = props.getProperty("echo.max.entries");
+        if (echoMax != null)
+            echoMaxEntries = Integer.parseInt(echoMax.trim());
+
+        String skip = props.getProperty("copy.skip.identical");
+        if (skip != null)
+            skipIdentical = Boolean.parseBoolean(skip.trim());
+
+        String links = props.getProperty("copy.hard.links");
+        if (links != null)
+            hardLinks = Boolean.parseBoolean(links.trim());
+
+        String clone = props.getProperty("copy.reflink");
+        if (clone != null)
+            reflink = Boolean.parseBoolean(clone.trim());
+
+        String hashEntries = props.getProperty("hash.cache.entries");
+        if (hashEntries != null)
+            hashCacheEntries = Integer.parseInt(hashEntries.trim());
+
+        String small = props.getProperty("batch.small.bytes");
+        if (small != null)
+            batchSmallBytes = Long.parseLong(small.trim());
+
+        String batchMax = props.getProperty("batch.max.files");
+        if (batchMax != null)
+            batchMaxFiles = Integer.parseInt(batchMax.trim());
+
+        String ioThreads = props.getProperty("batch.io.threads");
+        if (ioThreads != null)
+            batchIoThreads = Integer.parseInt(ioThreads.trim());
+
+        String inFlight = props.getProperty("batch.inflight");
+        if (inFlight != null)
+            batchInFlight = Integer.parseInt(inFlight.trim());
+
+        if (batchMaxFiles < 1 || batchIoThreads < 1 || batchInFlight < 1) {
+            log.error("batch.max.files, batch.io.threads and batch.inflight must be at least 1.");
             System.exit(1);
         }
 
+        for (SyncTask.LANE lane : SyncTask.LANE.values()) {
+            String weight = props.getProperty("queue.weight." + lane.name().toLowerCase());
+            if (weight != null)
+                laneWeights[lane.ordinal()] = Integer.parseInt(weight.trim());
+            if (laneWeights[lane.ordinal()] < 1) {
+                log.error("queue.weight." + lane.name().toLowerCase() + " must be at least 1.");
+                System.exit(1);
+            }
+        }
+
+        loadThrottle(props);
+
+        watcherBackend = props.getProperty("watcher.backend", watcherBackend).trim();
+        if (!watcherBackend.equals("auto") && !watcherBackend.equals("jdk") && !watcherBackend.equals("inotify")) {
+            log.error("watcher.backend must be 'auto', 'jdk' or 'inotify'.");
+            System.exit(1);
+        }
+
+        String watcherBuffer = props.getProperty("watcher.buffer.bytes");
+        if (watcherBuffer != null)
+            watcherBufferBytes = Integer.parseInt(watcherBuffer.trim());
+
+        String metricsPort = props.getProperty("metrics.http.port");
+        if (metricsPort != null)
+            metricsHttpPort = Integer.parseInt(metricsPort.trim());
+
+        String jmx = props.getProperty("metrics.jmx");
+        if (jmx != null)
+            metricsJmx = Boolean.parseBoolean(jmx.trim());
+
+        journalDir = props.getProperty("journal.dir");
+
+        String commit = props.getProperty("journal.commit.ms");
+        if (commit != null)
+            journalCommitMillis = Long.parseLong(commit.trim());
+
+        String checkpoint = props.getProperty("journal.checkpoint.tasks");
+        if (checkpoint != null)
+            journalCheckpointTasks = Long.parseLong(checkpoint.trim());
+
+        String skipScan = props.getProperty("journal.skip.scan");
+        if (skipScan != null)
+            journalSkipScan = Boolean.parseBoolean(skipScan.trim());
+
         File f1 = new File(dir1);
         File f2 = new File(dir2);
 
@@ -97,4 +626,40 @@ public class SyncConfig {
 
         return source;
     }
+
+    private void loadThrottle(Properties props) {
+
+        // Both or neither, a reload with a typo in one shouldn't apply the other
+        String bytesPerSec = props.getProperty("throttle.bytes.per.sec");
+        String opsPerSec = props.getProperty("throttle.ops.per.sec");
+        long bytes = bytesPerSec == null ? 0 : Long.parseLong(bytesPerSec.trim());
+        long ops = opsPerSec == null ? 0 : Long.parseLong(opsPerSec.trim());
+        throttleBytesPerSec = bytes;
+        throttleOpsPerSec = ops;
+    }
+
+    /**
+     * Re-read the throttle settings if the config file changed since it was last read,
+     * so they can be adjusted while running. Returns whether they were re-read.
+     */
+    public boolean reloadThrottle() {
+
+        Path file = Paths.get(CONFIG_FULL_PATH);
+        try {
+            if (!Files.exists(file) || Files.getLastModifiedTime(file).toMillis() == configFileMillis)
+                return false;
+            configFileMillis = Files.getLastModifiedTime(file).toMillis();
+
+            Properties props = new Properties();
+            try (FileInputStream in = new FileInputStream(CONFIG_FULL_PATH)) {
+                props.load(in);
+            }
+            loadThrottle(props);
+            return true;
+        }
+        catch (IOException | NumberFormatException e) {
+            log.error("Problem reloading throttle settings, keeping the current ones: " + e.getMessage());
+            return false;
+        }
+    }
 }
@@ -0,0 +1,103 @@
+package org.danielpacker;
+
+/**
+ * Content fingerprints (XXH64) of files, cached by path along with the size and mtime they
+ * were taken at, so a file is only read again once it has changed. Used by the doers to skip
+ * copies whose destination already has the same contents (e.g. after a touch, or a rewrite
+ * with identical data). The cache is bounded, evicting the least recently used.
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static java.nio.file.StandardOpenOption.READ;
+
+
+class SyncContentHashes {
+
+    private static final int READ_BYTES = 64 * 1024;
+
+    private static class Fingerprint {
+        final long size;
+        final long mtime;
+        final long hash;
+
+        Fingerprint(BasicFileAttributes attrs, long hash) {
+            this.size = attrs.size();
+            this.mtime = attrs.lastModifiedTime().toMillis();
+            this.hash = hash;
+        }
+
+        boolean matches(BasicFileAttributes attrs) {
+            return size == attrs.size() && mtime == attrs.lastModifiedTime().toMillis();
+        }
+    }
+
+    private final int maxEntries;
+
+    // Keyed by SyncPathTable.key() of the file, in access order for eviction
+    private final LinkedHashMap<Long, Fingerprint> fingerprints;
+
+    SyncContentHashes(SyncConfig config) {
+
+        this.maxEntries = config.getHashCacheEntries();
+        this.fingerprints = new LinkedHashMap<Long, Fingerprint>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Fingerprint> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Hash of the file at path (with key), given its current attributes.
+     * Read from the cache if the file hasn't changed since it was last hashed.
+     */
+    long hash(long key, Path path, BasicFileAttributes attrs) throws IOException {
+
+        synchronized (this) {
+            Fingerprint cached = fingerprints.get(key);
+            if (cached != null && cached.matches(attrs))
+                return cached.hash;
+        }
+
+        long hash = hash(path);
+
+        // Only cache it if the file didn't change while being read
+        BasicFileAttributes after = Files.readAttributes(path, BasicFileAttributes.class);
+        if (after.size() == attrs.size() && after.lastModifiedTime().equals(attrs.lastModifiedTime()))
+            remember(key, attrs, hash);
+        return hash;
+    }
+
+    /**
+     * Record the hash of a file known some other way (e.g. it was just made identical to another).
+     */
+    synchronized void remember(long key, BasicFileAttributes attrs, long hash) {
+        fingerprints.put(key, new Fingerprint(attrs, hash));
+    }
+
+    synchronized int size() {
+        return fingerprints.size();
+    }
+
+    // Streamed through one buffer, so any size of file hashes in constant memory
+    static long hash(Path path) throws IOException {
+
+        SyncXxHash64 xxHash = new SyncXxHash64();
+        ByteBuffer buf = ByteBuffer.allocate(READ_BYTES);
+        try (FileChannel in = FileChannel.open(path, READ)) {
+            while (in.read(buf) >= 0) {
+                xxHash.update(buf.array(), 0, buf.position());
+                buf.clear();
+            }
+        }
+        return xxHash.digest();
+    }
+}
@@ -0,0 +1,31 @@
+package org.danielpacker;
+
+/**
+ * How the doer copies a file's contents for CP tasks.
+ * Picked with copy.engine in the config:
+ *  - files: Files.copy, replacing the destination directly (the default)
+ *  - channel: chunked, interruptible FileChannel.transferTo into a temp file that is
+ *    then atomically renamed over the destination
+ */
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+
+interface SyncCopyEngine {
+
+    /**
+     * Copy src to dst (replacing it) along with its modified time, returning the bytes copied.
+     */
+    long copy(Path src, Path dst) throws IOException;
+
+    static SyncCopyEngine create(SyncConfig config, SyncStats stats) {
+
+        switch (config.getCopyEngine()) {
+            case "channel":
+                return new SyncChannelCopyEngine(config.getCopyChunkBytes(), stats);
+            default:
+                return new SyncFilesCopyEngine(stats);
+        }
+    }
+}
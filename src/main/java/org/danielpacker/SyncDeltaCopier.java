@@ -0,0 +1,261 @@
+package org.danielpacker;
+
+/**
+ * Updates an existing destination file in place to match the source, rsync-style.
+ * The destination is split into fixed size blocks with a weak (rolling) and a strong (MD5)
+ * checksum each. The source is then scanned with a rolling checksum to find runs that match
+ * a destination block, so only the ranges that actually changed get written.
+ * A block can only be reused from the same or a later offset, as everything before the
+ * current position may already have been overwritten.
+ */
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+
+class SyncDeltaCopier {
+
+    private static final Logger log = LogManager.getLogger(SyncDeltaCopier.class);
+
+    private static class Block {
+        final long offset;
+        final byte[] strong;
+        final Block next; // other blocks with the same weak checksum
+
+        Block(long offset, byte[] strong, Block next) {
+            this.offset = offset;
+            this.strong = strong;
+            this.next = next;
+        }
+    }
+
+    private final int blockSize;
+    private final SyncStats stats;
+
+    SyncDeltaCopier(int blockSize, SyncStats stats) {
+
+        this.blockSize = blockSize;
+        this.stats = stats;
+    }
+
+    /**
+     * Copy src over the existing dst, writing only the changed ranges.
+     */
+    void copy(Path src, Path dst) throws IOException {
+
+        // Taken up front, so a change to src while copying shows up as newer next time
+        FileTime srcTime = Files.getLastModifiedTime(src);
+
+        try (FileChannel in = FileChannel.open(src, READ);
+             FileChannel out = FileChannel.open(dst, READ, WRITE)) {
+
+            Delta delta = new Delta(in, out);
+            delta.run();
+            out.truncate(in.size());
+
+            stats.addDeltaCopy(delta.transferred, delta.skipped);
+            log.info("Delta copied " + src + ": " + delta.transferred + " bytes transferred, "
+                    + delta.skipped + " bytes skipped");
+        }
+
+        Files.setLastModifiedTime(dst, srcTime);
+    }
+
+    private static MessageDigest md5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // State for a single copy
+    private class Delta {
+
+        private final FileChannel in;
+        private final FileChannel out;
+        private final MessageDigest md5 = md5();
+        private final Map<Integer, Block> blocks = new HashMap<>();
+        private final long srcSize;
+
+        // buf holds src bytes [bufStart, bufStart + bufLen), always including [litStart, pos]
+        private final byte[] buf;
+        private long bufStart = 0;
+        private int bufLen = 0;
+
+        private long pos = 0;       // start of the rolling window
+        private long litStart = 0;  // start of literal (unmatched) bytes not yet written
+        private int a = 0;
+        private int b = 0;
+
+        long transferred = 0;
+        long skipped = 0;
+
+        Delta(FileChannel in, FileChannel out) throws IOException {
+            this.in = in;
+            this.out = out;
+            this.srcSize = in.size();
+            this.buf = new byte[Math.max(4 * blockSize, 1 << 20)];
+        }
+
+        void run() throws IOException {
+
+            signature();
+
+            boolean rolling = false;
+            while (pos + blockSize <= srcSize) {
+
+                // Need the window, plus the next byte to roll in
+                if (Math.min(pos + blockSize + 1, srcSize) > bufStart + bufLen) {
+                    refill();
+                    continue;
+                }
+
+                int off = (int) (pos - bufStart);
+                if (!rolling) {
+                    weakChecksum(buf, off);
+                    rolling = true;
+                }
+
+                Block match = findMatch(blocks.get(weak()), off);
+                if (match != null) {
+                    writeLiteral(pos);
+                    if (match.offset != pos)
+                        moveBlock(match.offset, pos);
+                    skipped += blockSize;
+                    pos += blockSize;
+                    litStart = pos;
+                    rolling = false;
+                }
+                else if (pos + blockSize < srcSize) {
+                    int outByte = buf[off] & 0xff;
+                    int inByte = buf[off + blockSize] & 0xff;
+                    a = (a - outByte + inByte) & 0xffff;
+                    b = (b - blockSize * outByte + a) & 0xffff;
+                    pos++;
+                }
+                else {
+                    break;
+                }
+            }
+
+            // Whatever's left is too short to match a block
+            while (srcSize > bufStart + bufLen)
+                refill();
+            writeLiteral(srcSize);
+        }
+
+        // Weak and strong checksums of every full block of the destination
+        private void signature() throws IOException {
+
+            ByteBuffer block = ByteBuffer.allocate(blockSize);
+            long size = out.size();
+            for (long offset = 0; offset + blockSize <= size; offset += blockSize) {
+                block.clear();
+                while (block.hasRemaining())
+                    if (out.read(block, offset + block.position()) < 0)
+                        return;
+
+                byte[] bytes = block.array();
+                int weak = weakChecksum(bytes, 0);
+                md5.update(bytes, 0, blockSize);
+                blocks.put(weak, new Block(offset, md5.digest(), blocks.get(weak)));
+            }
+        }
+
+        private int weakChecksum(byte[] bytes, int off) {
+
+            int sa = 0;
+            int sb = 0;
+            for (int i = 0; i < blockSize; i++) {
+                sa += bytes[off + i] & 0xff;
+                sb += (blockSize - i) * (bytes[off + i] & 0xff);
+            }
+            a = sa & 0xffff;
+            b = sb & 0xffff;
+            return weak();
+        }
+
+        private int weak() {
+            return a | (b << 16);
+        }
+
+        private Block findMatch(Block candidates, int off) {
+
+            if (candidates == null)
+                return null;
+
+            md5.update(buf, off, blockSize);
+            byte[] strong = md5.digest();
+
+            // Prefer the block already in place, which needs no write at all
+            Block found = null;
+            for (Block block = candidates; block != null; block = block.next) {
+                if (block.offset < pos || !Arrays.equals(block.strong, strong))
+                    continue;
+                if (block.offset == pos)
+                    return block;
+                found = block;
+            }
+            return found;
+        }
+
+        // Keep [litStart, ...) and read more of src after it
+        private void refill() throws IOException {
+
+            // Don't let a long run of changed bytes fill the buffer
+            if (pos - litStart >= buf.length / 2)
+                writeLiteral(pos);
+
+            int drop = (int) (litStart - bufStart);
+            System.arraycopy(buf, drop, buf, 0, bufLen - drop);
+            bufStart += drop;
+            bufLen -= drop;
+
+            int n = in.read(ByteBuffer.wrap(buf, bufLen, buf.length - bufLen), bufStart + bufLen);
+            if (n < 0)
+                throw new IOException("Source changed size while copying");
+            bufLen += n;
+        }
+
+        // Write the unmatched src bytes [litStart, end) to the same place in dst
+        private void writeLiteral(long end) throws IOException {
+
+            ByteBuffer literal = ByteBuffer.wrap(buf, (int) (litStart - bufStart), (int) (end - litStart));
+            long position = litStart;
+            while (literal.hasRemaining())
+                position += out.write(literal, position);
+
+            transferred += end - litStart;
+            litStart = end;
+        }
+
+        // Reuse a dst block found further along the file, at the current position
+        private void moveBlock(long from, long to) throws IOException {
+
+            ByteBuffer block = ByteBuffer.allocate(blockSize);
+            while (block.hasRemaining())
+                if (out.read(block, from + block.position()) < 0)
+                    throw new IOException("Destination changed size while copying");
+            block.flip();
+            while (block.hasRemaining())
+                out.write(block, to + block.position());
+        }
+    }
+}
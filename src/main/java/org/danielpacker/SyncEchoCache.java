@@ -0,0 +1,156 @@
+package org.danielpacker;
+
+/**
+ * Remembers what the doers last wrote to each destination, so the watcher can tell the
+ * events caused by our own writes (echoes) from real changes.
+ * A destination is marked while a task is writing it, then fingerprinted (exists, type,
+ * size, mtime) once the task is done. An event on it counts as an echo while the write is
+ * in progress, or if the path still matches the fingerprint, so an edit that lands right
+ * after our write is not swallowed. Entries expire after a while and the cache is bounded,
+ * evicting the least recently used.
+ */
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+class SyncEchoCache {
+
+    private static final Logger log = LogManager.getLogger(SyncEchoCache.class);
+
+    private static class Echo {
+        final boolean inProgress;
+        final boolean exists;
+        final boolean dir;
+        final long size;
+        final long mtime;
+        final long expires;
+
+        Echo(boolean inProgress, BasicFileAttributes attrs, long expires) {
+            this.inProgress = inProgress;
+            this.exists = attrs != null;
+            this.dir = attrs != null && attrs.isDirectory();
+            this.size = attrs == null ? 0 : attrs.size();
+            this.mtime = attrs == null ? 0 : attrs.lastModifiedTime().toMillis();
+            this.expires = expires;
+        }
+
+        // Directory mtimes change whenever their contents do, so only the type counts for them
+        boolean matches(BasicFileAttributes attrs) {
+            if (attrs == null || !exists)
+                return attrs == null && !exists;
+            if (dir || attrs.isDirectory())
+                return dir == attrs.isDirectory();
+            return size == attrs.size() && mtime == attrs.lastModifiedTime().toMillis();
+        }
+    }
+
+    private final long ttlMillis;
+    private final int maxEntries;
+
+    // Keyed by SyncPathTable.key() of the destination, in access order for eviction
+    private final LinkedHashMap<Long, Echo> echoes;
+
+    SyncEchoCache(SyncConfig config) {
+
+        this.ttlMillis = config.getEchoTtlMillis();
+        this.maxEntries = config.getEchoMaxEntries();
+        this.echoes = new LinkedHashMap<Long, Echo>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Echo> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * A task is about to write the destination, everything seen on it until written() is ours.
+     */
+    synchronized void writing(long key) {
+        echoes.put(key, new Echo(true, null, Long.MAX_VALUE));
+    }
+
+    /**
+     * A task is done writing the destination (successfully or not), remember what it left there.
+     */
+    void written(long key, Path path) {
+
+        BasicFileAttributes attrs = readAttributes(path);
+        synchronized (this) {
+            echoes.put(key, new Echo(false, attrs, System.currentTimeMillis() + ttlMillis));
+            expire();
+        }
+    }
+
+    /**
+     * Whether an event on path (with key) was caused by our own write rather than a real change.
+     */
+    boolean isEcho(long key, Path path, WatchEvent.Kind<?> kind) {
+
+        Echo echo;
+        synchronized (this) {
+            echo = echoes.get(key);
+            if (echo == null)
+                return false;
+            if (echo.inProgress)
+                return true;
+            if (echo.expires < System.currentTimeMillis()) {
+                echoes.remove(key);
+                return false;
+            }
+        }
+
+        if (echo.matches(readAttributes(path)))
+            return true;
+
+        // Changed since we wrote it, this and anything after it is real
+        log.debug("CHANGED SINCE OUR WRITE, NOT AN ECHO: " + kind.name() + " " + path);
+        synchronized (this) {
+            if (echoes.get(key) == echo)
+                echoes.remove(key);
+        }
+        return false;
+    }
+
+    // Drop expired entries, oldest (least recently used) first
+    private void expire() {
+
+        long now = System.currentTimeMillis();
+        Iterator<Echo> it = echoes.values().iterator();
+        while (it.hasNext()) {
+            Echo echo = it.next();
+            if (echo.expires >= now)
+                break;
+            it.remove();
+        }
+    }
+
+    synchronized int size() {
+        return echoes.size();
+    }
+
+    // Null if the path doesn't exist
+    private static BasicFileAttributes readAttributes(Path path) {
+        try {
+            return Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        }
+        catch (NoSuchFileException e) {
+            return null;
+        }
+        catch (IOException e) {
+            log.debug("Problem reading attributes of " + path + ": " + e.getMessage());
+            return null;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package org.danielpacker;
+
+/**
+ * Where the watcher gets its file system events from.
+ * Picked with watcher.backend in the config:
+ *  - jdk: the Java WatchService (any OS, at most 512 queued events per directory)
+ *  - inotify: Linux inotify through JNA, read in batches into a buffer of watcher.buffer.bytes
+ *  - auto: inotify on Linux when it can be loaded, jdk otherwise (the default)
+ */
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.util.List;
+
+
+interface SyncEventSource extends Closeable {
+
+    /**
+     * An ENTRY_CREATE/DELETE/MODIFY on path, or an OVERFLOW for events lost under path.
+     */
+    class Event {
+
+        final WatchEvent.Kind<?> kind;
+        final Path path;
+
+        Event(WatchEvent.Kind<?> kind, Path path) {
+            this.kind = kind;
+            this.path = path;
+        }
+
+        public String toString() {
+            return kind.name() + ": " + path;
+        }
+    }
+
+    /**
+     * Start watching the entries of dir (not its sub-directories).
+     */
+    void register(Path dir) throws IOException;
+
+    /**
+     * The next batch of events, waiting for one if needed.
+     * Null once nothing is watched anymore (every watched directory is gone).
+     */
+    List<Event> take() throws InterruptedException, IOException;
+
+    /**
+     * How many directories are being watched right now.
+     */
+    int numWatched();
+
+    static SyncEventSource create(SyncConfig config, List<SyncPathTable> groups) throws IOException {
+
+        Logger log = LogManager.getLogger(SyncEventSource.class);
+
+        switch (config.getWatcherBackend()) {
+            case "inotify":
+                return new SyncInotifyEventSource(groups, config.getWatcherBufferBytes());
+            case "auto":
+                if (SyncUtil.getOS() == SyncUtil.OS.LINUX) {
+                    try {
+                        return new SyncInotifyEventSource(groups, config.getWatcherBufferBytes());
+                    }
+                    catch (IOException | LinkageError e) {
+                        log.warn("Couldn't use inotify, falling back to the JDK watch service: " + e);
+                    }
+                }
+                return new SyncJdkEventSource();
+            default:
+                return new SyncJdkEventSource();
+        }
+    }
+}
@@ -6,12 +6,4 @@ class SyncException extends Exception
     {
         super(s);
     }
-}
-
-class SyncOverflowException extends Exception
-{
-    public SyncOverflowException(String s)
-    {
-        super(s);
-    }
 }
\ No newline at end of file
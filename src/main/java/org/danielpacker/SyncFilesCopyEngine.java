@@ -0,0 +1,32 @@
+package org.danielpacker;
+
+/**
+ * Copies with Files.copy, which writes straight over the destination.
+ */
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static java.nio.file.StandardCopyOption.COPY_ATTRIBUTES;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+
+class SyncFilesCopyEngine implements SyncCopyEngine {
+
+    private final SyncStats stats;
+
+    SyncFilesCopyEngine(SyncStats stats) {
+
+        this.stats = stats;
+    }
+
+    @Override
+    public long copy(Path src, Path dst) throws IOException {
+
+        Files.copy(src, dst, REPLACE_EXISTING, COPY_ATTRIBUTES);
+        long size = Files.size(dst);
+        stats.addBytesCopied(size);
+        return size;
+    }
+}
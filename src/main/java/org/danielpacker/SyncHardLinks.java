@@ -0,0 +1,171 @@
+package org.danielpacker;
+
+/**
+ * Keeps hard links hard links. A source file with more than one link is remembered by its
+ * file key (device and inode) along with where it was first copied to, per destination dir,
+ * and every other path to it is then made a hard link to that copy instead of another copy
+ * of the same bytes. The copy is only linked to while it still matches the source (size and
+ * mtime), otherwise the path is copied as usual and becomes the one linked to from then on.
+ * Shared by all the doers. Only files with a link count above one are remembered, which
+ * takes a stat of each file copied (unix:nlink), so it can be turned off (copy.hard.links).
+ * A destination with other links is never written into in place (see isShared()), as that
+ * would change its other paths too, e.g. after one of the source's links was replaced.
+ */
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+
+class SyncHardLinks {
+
+    private static final Logger log = LogManager.getLogger(SyncHardLinks.class);
+
+    // A source file in a group, as copied to one of the group's other dirs
+    private static final class Key {
+        final Object fileKey;
+        final int group;
+        final int to;
+
+        Key(Object fileKey, int group, int to) {
+            this.fileKey = fileKey;
+            this.group = group;
+            this.to = to;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key k = (Key) o;
+            return group == k.group && to == k.to && fileKey.equals(k.fileKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(fileKey, group, to);
+        }
+    }
+
+    private final SyncStats stats;
+    private volatile boolean enabled;
+
+    // Path id of the copy the other links are made to, pinned while it's here
+    private final Map<Key, Integer> copies = new ConcurrentHashMap<>();
+
+    SyncHardLinks(SyncConfig config, SyncStats stats) {
+
+        this.stats = stats;
+        this.enabled = config.isHardLinks();
+    }
+
+    /**
+     * Whether src is one of several links to the same file.
+     */
+    boolean isLinked(Path src) {
+
+        if (!enabled)
+            return false;
+        try {
+            return ((Number) Files.getAttribute(src, "unix:nlink", LinkOption.NOFOLLOW_LINKS)).intValue() > 1;
+        }
+        catch (UnsupportedOperationException | IllegalArgumentException e) {
+            // No link counts on this platform
+            log.info("Hard links can't be told apart here, copying each path on its own");
+            enabled = false;
+            return false;
+        }
+        catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Whether dst is one of several links to the same file, so writing into it in place would
+     * change the other paths too. Checked even with copy.hard.links off, they may be there anyway.
+     */
+    boolean isShared(Path dst) {
+
+        try {
+            return ((Number) Files.getAttribute(dst, "unix:nlink", LinkOption.NOFOLLOW_LINKS)).intValue() > 1;
+        }
+        catch (UnsupportedOperationException | IllegalArgumentException | IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Make the task's dst a hard link to where another link of src was copied, returning
+     * whether it was. When it wasn't, the caller copies src to dst as usual.
+     */
+    boolean link(SyncTask task, Path src, Path dst) throws IOException {
+
+        if (!isLinked(src))
+            return false;
+
+        BasicFileAttributes srcAttrs = Files.readAttributes(src, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        if (srcAttrs.fileKey() == null)
+            return false;
+
+        SyncPathTable paths = task.getPaths();
+        Key key = new Key(srcAttrs.fileKey(), paths.getIndex(), task.getTo());
+        Integer first = copies.putIfAbsent(key, task.getPathId());
+        if (first == null)
+            paths.pin(task.getPathId());
+        if (first == null || first == task.getPathId())
+            return false;
+
+        Path target = paths.resolve(first, task.getTo());
+        BasicFileAttributes targetAttrs;
+        try {
+            targetAttrs = Files.readAttributes(target, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        }
+        catch (IOException e) {
+            targetAttrs = null;
+        }
+        if (targetAttrs == null || !targetAttrs.isRegularFile() || targetAttrs.size() != srcAttrs.size()
+                || targetAttrs.lastModifiedTime().toMillis() != srcAttrs.lastModifiedTime().toMillis()) {
+            // Gone or changed since, this copy is the one to link to now
+            if (copies.replace(key, first, task.getPathId())) {
+                paths.pin(task.getPathId());
+                paths.unpin(first);
+            }
+            return false;
+        }
+
+        // Already the same file
+        if (Files.exists(dst, LinkOption.NOFOLLOW_LINKS)
+                && targetAttrs.fileKey() != null && targetAttrs.fileKey().equals(
+                Files.readAttributes(dst, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS).fileKey())) {
+            stats.addHardLinked(srcAttrs.size());
+            return true;
+        }
+
+        // Linked beside it and renamed over it, so dst is never missing
+        Path temp = SyncUtil.tempPath(dst);
+        Files.deleteIfExists(temp);
+        Files.createLink(temp, target);
+        try {
+            Files.move(temp, dst, REPLACE_EXISTING, ATOMIC_MOVE);
+        }
+        catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+
+        stats.addHardLinked(srcAttrs.size());
+        log.info("Hard-linked " + dst + " -> " + target);
+        return true;
+    }
+}
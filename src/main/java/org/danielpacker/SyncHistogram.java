@@ -0,0 +1,123 @@
+package org.danielpacker;
+
+/**
+ * Lock-free latency histogram with HDR-style log-linear buckets: each power of two is split
+ * into 16 linear sub-buckets, so any recorded value is reported within ~6% of its true value
+ * while the whole range of a long fits in under a thousand counters.
+ * Recording is a couple of atomic adds, and reading never blocks recording threads.
+ */
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+
+class SyncHistogram {
+
+    private static final int SUB_BITS = 4;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int NUM_BUCKETS = (64 - SUB_BITS) * SUB_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    void record(long value) {
+
+        if (value < 0)
+            value = 0;
+        counts.incrementAndGet(bucket(value));
+        count.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    static int bucket(long value) {
+
+        if (value < SUB_COUNT)
+            return (int) value;
+        int exp = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exp - SUB_BITS)) - SUB_COUNT;
+        return (exp - SUB_BITS + 1) * SUB_COUNT + sub;
+    }
+
+    // Largest value that lands in a bucket
+    static long highestValue(int bucket) {
+
+        if (bucket < SUB_COUNT)
+            return bucket;
+        int exp = bucket / SUB_COUNT + SUB_BITS - 1;
+        long sub = bucket % SUB_COUNT;
+        int shift = exp - SUB_BITS;
+        return ((SUB_COUNT + sub) << shift) + (1L << shift) - 1;
+    }
+
+    /**
+     * A point-in-time copy for reporting. Counters keep moving while it's taken,
+     * so it may be off by the few values recorded meanwhile.
+     */
+    Snapshot snapshot() {
+
+        long[] copy = new long[NUM_BUCKETS];
+        for (int i = 0; i < NUM_BUCKETS; i++)
+            copy[i] = counts.get(i);
+        return new Snapshot(copy, count.sum(), sum.sum(), max.get());
+    }
+
+    static class Snapshot {
+
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        private Snapshot(long[] counts, long count, long sum, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        long getCount() {
+            return count;
+        }
+
+        long getMax() {
+            return max;
+        }
+
+        double getMean() {
+            return count > 0 ? (double) sum / count : 0.0;
+        }
+
+        /**
+         * Value at the given percentile (0-100), never more than the max recorded.
+         */
+        long percentile(double percentile) {
+
+            long total = 0;
+            for (long c : counts)
+                total += c;
+            if (total == 0)
+                return 0;
+
+            long rank = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank)
+                    return Math.min(highestValue(i), max);
+            }
+            return max;
+        }
+
+        // Summary of a histogram of nanosecond values, in ms
+        String toMillisString() {
+
+            return String.format("n=%d mean=%.3f p50=%.3f p90=%.3f p99=%.3f p99.9=%.3f max=%.3f",
+                    count, getMean() / 1e6, percentile(50) / 1e6, percentile(90) / 1e6,
+                    percentile(99) / 1e6, percentile(99.9) / 1e6, max / 1e6);
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package org.danielpacker;
+
+/**
+ * Events straight from Linux inotify (through JNA), without the WatchService's limit of
+ * 512 queued events per directory. One read drains as many events as fit in the buffer, so
+ * a burst of tens of thousands of events is picked up in a handful of reads. Events are only
+ * lost if the kernel's own queue fills up first (fs.inotify.max_queued_events), in which case
+ * one OVERFLOW is reported for each sync group, at its first root (a rescan of a dir
+ * compares it across all the group's roots).
+ * A watched directory costs one slot in an array of path table keys, indexed by watch descriptor.
+ */
+
+import com.sun.jna.LastErrorException;
+import com.sun.jna.Library;
+import com.sun.jna.Memory;
+import com.sun.jna.Native;
+import com.sun.jna.NativeLong;
+import com.sun.jna.Pointer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.WatchEvent;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+
+class SyncInotifyEventSource implements SyncEventSource {
+
+    private static final Logger log = LogManager.getLogger(SyncInotifyEventSource.class);
+
+    private interface LibC extends Library {
+        int inotify_init1(int flags) throws LastErrorException;
+        int inotify_add_watch(int fd, String path, int mask) throws LastErrorException;
+        NativeLong read(int fd, Pointer buf, NativeLong count) throws LastErrorException;
+        int poll(Pointer fds, NativeLong nfds, int timeout) throws LastErrorException;
+        int close(int fd) throws LastErrorException;
+    }
+
+    // From <sys/inotify.h>
+    private static final int IN_MODIFY = 0x2;
+    private static final int IN_ATTRIB = 0x4;
+    private static final int IN_MOVED_FROM = 0x40;
+    private static final int IN_MOVED_TO = 0x80;
+    private static final int IN_CREATE = 0x100;
+    private static final int IN_DELETE = 0x200;
+    private static final int IN_Q_OVERFLOW = 0x4000;
+    private static final int IN_IGNORED = 0x8000;
+    private static final int IN_ONLYDIR = 0x1000000;
+    private static final int IN_DONT_FOLLOW = 0x2000000;
+    private static final int IN_CLOEXEC = 0x80000;
+
+    // Same events the WatchService asks for on Linux
+    private static final int MASK = IN_CREATE | IN_MOVED_TO | IN_DELETE | IN_MOVED_FROM
+            | IN_MODIFY | IN_ATTRIB | IN_ONLYDIR | IN_DONT_FOLLOW;
+
+    private static final short POLLIN = 0x1;
+    private static final int EINTR = 4;
+    private static final int ENOENT = 2;
+    private static final int ENOSPC = 28;
+
+    // struct inotify_event { int wd; uint32_t mask, cookie, len; char name[]; }
+    private static final int EVENT_HEADER_BYTES = 16;
+
+    // How long a take() waits in poll() before checking for interruption
+    private static final int POLL_MILLIS = 100;
+
+    private static LibC libc;
+
+    private final List<SyncPathTable> groups;
+    private final int fd;
+    private final Memory buffer;
+    private final Memory pollFd = new Memory(8);
+
+    // SyncPathTable key + 1 of each watch descriptor's dir, 0 for none
+    private long[] dirs = new long[1024];
+    private int numDirs = 0;
+    private volatile boolean done = false;
+
+    SyncInotifyEventSource(List<SyncPathTable> groups, int bufferBytes) throws IOException {
+
+        this.groups = groups;
+        synchronized (SyncInotifyEventSource.class) {
+            if (libc == null)
+                libc = Native.load("c", LibC.class);
+        }
+
+        try {
+            fd = libc.inotify_init1(IN_CLOEXEC);
+        }
+        catch (LastErrorException e) {
+            throw new IOException("inotify_init1 failed: " + e.getMessage());
+        }
+
+        // Room for at least one event with the longest name
+        buffer = new Memory(Math.max(bufferBytes, 4096));
+
+        pollFd.setInt(0, fd);
+        pollFd.setShort(4, POLLIN);
+
+        log.info("Watching with inotify, reading events into a " + buffer.size() + " byte buffer (kernel queue: "
+                + readLimit("max_queued_events") + " events, watches: " + readLimit("max_user_watches") + ")");
+    }
+
+    private static String readLimit(String name) {
+        try {
+            return new String(Files.readAllBytes(Paths.get("/proc/sys/fs/inotify", name))).trim();
+        }
+        catch (IOException e) {
+            return "unknown";
+        }
+    }
+
+    @Override
+    public void register(Path dir) throws IOException {
+
+        int wd;
+        try {
+            wd = libc.inotify_add_watch(fd, dir.toString(), MASK);
+        }
+        catch (LastErrorException e) {
+            if (e.getErrorCode() == ENOENT)
+                throw new NoSuchFileException(dir.toString());
+            if (e.getErrorCode() == ENOSPC)
+                throw new IOException("Out of inotify watches registering " + dir
+                        + ", raise fs.inotify.max_user_watches");
+            throw new IOException("inotify_add_watch failed for " + dir + ": " + e.getMessage());
+        }
+
+        long key = -1;
+        for (SyncPathTable paths : groups)
+            if (paths.rootOf(dir) >= 0)
+                key = paths.key(paths.intern(dir), paths.rootOf(dir));
+        if (key < 0)
+            throw new IOException(dir + " isn't in any sync group");
+        key++;
+
+        synchronized (this) {
+            if (wd >= dirs.length)
+                dirs = Arrays.copyOf(dirs, Math.max(wd + 1, dirs.length * 2));
+            if (dirs[wd] == 0)
+                numDirs++;
+            dirs[wd] = key;
+        }
+        log.debug("Registered to watch: " + dir);
+    }
+
+    // Null if wd isn't (or is no longer) watched
+    private synchronized Path dirFor(int wd) {
+
+        if (wd < 0 || wd >= dirs.length || dirs[wd] == 0)
+            return null;
+        return SyncPathTable.resolve(dirs[wd] - 1);
+    }
+
+    // The kernel dropped the watch (dir deleted or unmounted)
+    private synchronized void unregister(int wd) {
+
+        if (wd >= 0 && wd < dirs.length && dirs[wd] != 0) {
+            dirs[wd] = 0;
+            if (--numDirs == 0)
+                done = true;
+        }
+    }
+
+    @Override
+    public synchronized int numWatched() {
+        return numDirs;
+    }
+
+    @Override
+    public List<Event> take() throws InterruptedException, IOException {
+
+        while (!done) {
+
+            if (Thread.interrupted())
+                throw new InterruptedException();
+
+            int ready;
+            long n;
+            try {
+                ready = libc.poll(pollFd, new NativeLong(1), POLL_MILLIS);
+                if (ready <= 0)
+                    continue;
+                n = libc.read(fd, buffer, new NativeLong(buffer.size())).longValue();
+            }
+            catch (LastErrorException e) {
+                if (e.getErrorCode() == EINTR)
+                    continue;
+                throw new IOException("Reading inotify events failed: " + e.getMessage());
+            }
+
+            List<Event> events = parse(n);
+            if (!events.isEmpty())
+                return events;
+        }
+        return null;
+    }
+
+    private List<Event> parse(long n) {
+
+        List<Event> events = new ArrayList<>();
+        Event last = null;
+        boolean overflowed = false;
+
+        for (long offset = 0; offset + EVENT_HEADER_BYTES <= n; ) {
+
+            int wd = buffer.getInt(offset);
+            int mask = buffer.getInt(offset + 4);
+            int len = buffer.getInt(offset + 12);
+            String name = len > 0 ? buffer.getString(offset + EVENT_HEADER_BYTES, "UTF-8") : null;
+            offset += EVENT_HEADER_BYTES + len;
+
+            if ((mask & IN_Q_OVERFLOW) != 0) {
+                if (!overflowed) {
+                    log.warn("inotify queue overflowed, consider raising fs.inotify.max_queued_events");
+                    for (SyncPathTable paths : groups)
+                        events.add(new Event(OVERFLOW, paths.getRoot(0)));
+                    overflowed = true;
+                }
+                continue;
+            }
+            if ((mask & IN_IGNORED) != 0) {
+                unregister(wd);
+                continue;
+            }
+
+            Path dir = dirFor(wd);
+            if (dir == null || name == null || name.isEmpty())
+                continue;
+
+            WatchEvent.Kind<?> kind;
+            if ((mask & (IN_CREATE | IN_MOVED_TO)) != 0)
+                kind = ENTRY_CREATE;
+            else if ((mask & (IN_DELETE | IN_MOVED_FROM)) != 0)
+                kind = ENTRY_DELETE;
+            else if ((mask & (IN_MODIFY | IN_ATTRIB)) != 0)
+                kind = ENTRY_MODIFY;
+            else
+                continue;
+
+            // Collapse repeats (e.g. a MODIFY per write) like the WatchService does
+            Path child = dir.resolve(name);
+            if (last != null && last.kind == kind && last.path.equals(child))
+                continue;
+            last = new Event(kind, child);
+            events.add(last);
+        }
+        return events;
+    }
+
+    @Override
+    public void close() throws IOException {
+
+        done = true;
+        try {
+            libc.close(fd);
+        }
+        catch (LastErrorException e) {
+            throw new IOException("Closing inotify failed: " + e.getMessage());
+        }
+    }
+}
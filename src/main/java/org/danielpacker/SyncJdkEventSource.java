@@ -0,0 +1,93 @@
+package org.danielpacker;
+
+/**
+ * Events from the Java WatchService, one WatchKey per watched directory.
+ */
+
+import com.sun.nio.file.SensitivityWatchEventModifier;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+
+class SyncJdkEventSource implements SyncEventSource {
+
+    private static final Logger log = LogManager.getLogger(SyncJdkEventSource.class);
+
+    private final WatchService watcher;
+    private final Map<WatchKey, Path> keys = new ConcurrentHashMap<>();
+    private volatile boolean done = false;
+
+    SyncJdkEventSource() throws IOException {
+        this.watcher = FileSystems.getDefault().newWatchService();
+    }
+
+    @Override
+    public void register(Path dir) throws IOException {
+
+        WatchKey key = dir.register(watcher,
+                new WatchEvent.Kind[] {ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY},
+                SensitivityWatchEventModifier.HIGH);
+
+        Path prev = keys.put(key, dir);
+        if (prev == null)
+            log.debug("Registered to watch: " + dir);
+        else if (!dir.equals(prev))
+            log.debug("Updated registration: " + prev + " -> " + dir);
+    }
+
+    @Override
+    public int numWatched() {
+        return keys.size();
+    }
+
+    @Override
+    public List<Event> take() throws InterruptedException {
+
+        while (!done) {
+
+            // wait for key to be signalled
+            WatchKey key = watcher.take();
+
+            Path dir = keys.get(key);
+            if (dir == null) {
+                log.error("WatchKey not recognized!!");
+                continue;
+            }
+
+            List<Event> events = new ArrayList<>();
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == OVERFLOW)
+                    events.add(new Event(OVERFLOW, dir));
+                else
+                    events.add(new Event(event.kind(), dir.resolve((Path) event.context())));
+            }
+
+            // reset key and remove from set if directory no longer accessible
+            if (!key.reset()) {
+                keys.remove(key);
+
+                // all directories are inaccessible
+                if (keys.isEmpty())
+                    done = true;
+            }
+
+            if (!events.isEmpty())
+                return events;
+        }
+        return null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        watcher.close();
+    }
+}
@@ -0,0 +1,122 @@
+package org.danielpacker;
+
+/**
+ * Custom Flight Recorder events for the hot spots of the pipeline: scanning a directory (and
+ * a whole scan), doing a task, and handling a watch event. They cost next to nothing unless a
+ * recording is running, e.g. started with -XX:StartFlightRecording or jcmd <pid> JFR.start,
+ * and show up under "LightSync" in JDK Mission Control. Only the slow ones are recorded by
+ * default (see the thresholds). On a JVM without jdk.jfr none of this is used.
+ */
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+
+final class SyncJfr {
+
+    // The event classes are only loaded if this is true
+    static final boolean AVAILABLE = isAvailable();
+
+    private SyncJfr() {
+    }
+
+    private static boolean isAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+
+    @Name("org.danielpacker.Scan")
+    @Label("Scan")
+    @Description("A startup scan of a sync group, or a rescan of one dir after an overflow")
+    @Category("LightSync")
+    static class ScanEvent extends Event {
+
+        @Label("Root")
+        String root;
+
+        @Label("Dir")
+        String dir;
+
+        @Label("Rescan")
+        boolean rescan;
+    }
+
+    @Name("org.danielpacker.ScanDir")
+    @Label("Scan Dir")
+    @Description("Listing and comparing one dir in every root of a group")
+    @Category("LightSync")
+    @Threshold("1 ms")
+    static class ScanDirEvent extends Event {
+
+        @Label("Dir")
+        String dir;
+
+        @Label("Subdirs")
+        int subdirs;
+    }
+
+    @Name("org.danielpacker.Task")
+    @Label("Task")
+    @Description("A doer doing one sync task (a copy, mkdir, rm, rmdir or move)")
+    @Category("LightSync")
+    @Threshold("1 ms")
+    static class TaskEvent extends Event {
+
+        @Label("Type")
+        String type;
+
+        @Label("Lane")
+        String lane;
+
+        @Label("Source")
+        String src;
+
+        @Label("Destination")
+        String dst;
+
+        @Label("Bytes")
+        long bytes;
+    }
+
+    @Name("org.danielpacker.WatchEvent")
+    @Label("Watch Event")
+    @Description("The watcher handling one file system event")
+    @Category("LightSync")
+    @Threshold("1 ms")
+    static class WatchHandlingEvent extends Event {
+
+        @Label("Kind")
+        String kind;
+
+        @Label("Path")
+        String path;
+    }
+
+    static TaskEvent beginTask() {
+
+        TaskEvent event = new TaskEvent();
+        event.begin();
+        return event;
+    }
+
+    static void endTask(TaskEvent event, SyncTask task) {
+
+        event.end();
+        if (event.shouldCommit()) {
+            event.type = task.getType().name();
+            event.lane = task.getLane().name();
+            event.src = task.getSrc().toString();
+            event.dst = task.getDst().toString();
+            event.bytes = task.getSize();
+            event.commit();
+        }
+    }
+}
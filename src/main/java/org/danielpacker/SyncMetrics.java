@@ -0,0 +1,310 @@
+package org.danielpacker;
+
+/**
+ * Live view of the pipeline while it runs: queue depth, tasks/s per type, bytes/s, copy
+ * latency percentiles, watched dirs, overflows and the echo cache. Published as a JMX MXBean
+ * (metrics.jmx) and, with metrics.http.port set, as Prometheus text on
+ * http://127.0.0.1:<port>/metrics. Reads the same lock-free counters as SyncStats, so
+ * scraping it never slows the workers down. Rates are recomputed every few seconds by sample().
+ */
+
+import com.sun.net.httpserver.HttpServer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.IntSupplier;
+
+
+public class SyncMetrics implements SyncMetricsMXBean {
+
+    private static final Logger log = LogManager.getLogger(SyncMetrics.class);
+    static final String OBJECT_NAME = "org.danielpacker:type=SyncMetrics";
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+    private final SyncConfig config;
+    private final SyncStats stats;
+    private final SyncEchoCache echoes;
+    private final SyncThrottle throttle;
+    private final IntSupplier watchedDirs;
+    private final IntSupplier pathNodes;
+    private HttpServer server = null;
+    private ObjectName name = null;
+
+    // Counters as of the last sample, and the rates between it and the one before
+    private final long[] lastCompleted = new long[SyncTask.TYPE.values().length];
+    private long lastBytes = 0;
+    private long lastNanos = System.nanoTime();
+    private volatile double[] tasksPerSec = new double[SyncTask.TYPE.values().length];
+    private volatile double bytesPerSec = 0;
+
+    SyncMetrics(SyncConfig config, SyncStats stats, SyncEchoCache echoes, SyncThrottle throttle,
+                IntSupplier watchedDirs, IntSupplier pathNodes) {
+
+        this.config = config;
+        this.stats = stats;
+        this.echoes = echoes;
+        this.throttle = throttle;
+        this.watchedDirs = watchedDirs;
+        this.pathNodes = pathNodes;
+    }
+
+    /**
+     * Register the MXBean and start the HTTP endpoint, as configured. Either one failing
+     * (e.g. the port is taken) is logged, and the sync goes on without it.
+     */
+    void start() {
+
+        if (config.isMetricsJmx()) {
+            try {
+                MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+                ObjectName objectName = new ObjectName(OBJECT_NAME);
+                // Left behind by an earlier task manager in this JVM
+                if (mbs.isRegistered(objectName))
+                    mbs.unregisterMBean(objectName);
+                mbs.registerMBean(this, objectName);
+                name = objectName;
+            } catch (Exception e) {
+                log.error("Problem registering metrics with JMX: " + e.getMessage());
+            }
+        }
+
+        if (config.getMetricsHttpPort() > 0) {
+            try {
+                server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                        config.getMetricsHttpPort()), 0);
+                server.createContext("/metrics", exchange -> {
+                    byte[] body = prometheus().getBytes(StandardCharsets.UTF_8);
+                    exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                    exchange.sendResponseHeaders(200, body.length);
+                    try (OutputStream out = exchange.getResponseBody()) {
+                        out.write(body);
+                    }
+                });
+                server.start();
+                log.info("Serving metrics on http://127.0.0.1:" + config.getMetricsHttpPort() + "/metrics");
+            } catch (IOException e) {
+                log.error("Problem starting the metrics endpoint: " + e.getMessage());
+                server = null;
+            }
+        }
+    }
+
+    void stop() {
+
+        if (server != null)
+            server.stop(0);
+        if (name != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            } catch (Exception e) {
+                log.debug("Problem unregistering metrics: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Recompute the rates from the counters' change since the last sample.
+     */
+    synchronized void sample() {
+
+        long now = System.nanoTime();
+        double secs = (now - lastNanos) / 1e9;
+        if (secs <= 0)
+            return;
+
+        double[] rates = new double[lastCompleted.length];
+        for (SyncTask.TYPE type : SyncTask.TYPE.values()) {
+            long completed = stats.getNumTasksCompleted(type);
+            rates[type.ordinal()] = (completed - lastCompleted[type.ordinal()]) / secs;
+            lastCompleted[type.ordinal()] = completed;
+        }
+        long bytes = stats.getBytesCopied();
+        bytesPerSec = (bytes - lastBytes) / secs;
+        lastBytes = bytes;
+        lastNanos = now;
+        tasksPerSec = rates;
+    }
+
+    @Override
+    public long getQueueDepth() {
+        return stats.getQueueDepth();
+    }
+
+    @Override
+    public long getQueueBytes() {
+        return stats.getQueueBytes();
+    }
+
+    @Override
+    public long getQueueHighWater() {
+        return stats.getQueueHighWater();
+    }
+
+    @Override
+    public long getTasksCompleted() {
+        return stats.getNumTasksCompleted();
+    }
+
+    @Override
+    public long getTasksFailed() {
+        return stats.getNumTasksFailed();
+    }
+
+    @Override
+    public Map<String, Double> getTasksPerSecByType() {
+
+        double[] rates = tasksPerSec;
+        Map<String, Double> byType = new LinkedHashMap<>();
+        for (SyncTask.TYPE type : SyncTask.TYPE.values())
+            byType.put(type.name(), rates[type.ordinal()]);
+        return byType;
+    }
+
+    @Override
+    public double getBytesPerSec() {
+        return bytesPerSec;
+    }
+
+    @Override
+    public long getBytesCopied() {
+        return stats.getBytesCopied();
+    }
+
+    @Override
+    public Map<String, Double> getCopyLatencyMillis() {
+
+        SyncHistogram.Snapshot copies = stats.getExecTime(SyncTask.TYPE.CP);
+        Map<String, Double> latency = new LinkedHashMap<>();
+        latency.put("p50", copies.percentile(50) / 1e6);
+        latency.put("p90", copies.percentile(90) / 1e6);
+        latency.put("p99", copies.percentile(99) / 1e6);
+        latency.put("p99.9", copies.percentile(99.9) / 1e6);
+        latency.put("max", copies.getMax() / 1e6);
+        return latency;
+    }
+
+    @Override
+    public int getWatchedDirs() {
+        return watchedDirs.getAsInt();
+    }
+
+    @Override
+    public long getOverflowsRecovered() {
+        return stats.getNumOverflowsRecovered();
+    }
+
+    @Override
+    public int getEchoCacheEntries() {
+        return echoes.size();
+    }
+
+    @Override
+    public int getPathTableNodes() {
+        return pathNodes.getAsInt();
+    }
+
+    @Override
+    public long getThrottleBytesPerSec() {
+        return throttle.getBytesPerSec();
+    }
+
+    @Override
+    public void setThrottleBytesPerSec(long bytesPerSec) {
+        throttle.setRates(bytesPerSec, throttle.getOpsPerSec());
+    }
+
+    @Override
+    public long getThrottleOpsPerSec() {
+        return throttle.getOpsPerSec();
+    }
+
+    @Override
+    public void setThrottleOpsPerSec(long opsPerSec) {
+        throttle.setRates(throttle.getBytesPerSec(), opsPerSec);
+    }
+
+    /**
+     * Everything in the Prometheus text exposition format.
+     */
+    String prometheus() {
+
+        StringBuilder sb = new StringBuilder();
+
+        header(sb, "lightsync_tasks_queued_total", "counter", "Sync tasks queued");
+        for (SyncTask.TYPE type : SyncTask.TYPE.values())
+            sample(sb, "lightsync_tasks_queued_total", "type", type.name(), stats.getNumTasksQueued(type));
+        header(sb, "lightsync_tasks_completed_total", "counter", "Sync tasks completed");
+        for (SyncTask.TYPE type : SyncTask.TYPE.values())
+            sample(sb, "lightsync_tasks_completed_total", "type", type.name(), stats.getNumTasksCompleted(type));
+        header(sb, "lightsync_tasks_per_second", "gauge", "Sync tasks completed per second, recently");
+        double[] rates = tasksPerSec;
+        for (SyncTask.TYPE type : SyncTask.TYPE.values())
+            sample(sb, "lightsync_tasks_per_second", "type", type.name(), rates[type.ordinal()]);
+
+        value(sb, "lightsync_tasks_failed_total", "counter", "Sync tasks failed", stats.getNumTasksFailed());
+        value(sb, "lightsync_tasks_stale_total", "counter", "Scan tasks skipped as stale", stats.getNumTasksStale());
+        value(sb, "lightsync_tasks_coalesced_total", "counter", "Watcher tasks coalesced or cancelled",
+                stats.getNumTasksCoalesced());
+        value(sb, "lightsync_tasks_spilled_total", "counter", "Tasks spilled to disk", stats.getNumTasksSpilled());
+        value(sb, "lightsync_bytes_copied_total", "counter", "Bytes copied", stats.getBytesCopied());
+        value(sb, "lightsync_bytes_per_second", "gauge", "Bytes copied per second, recently", bytesPerSec);
+        value(sb, "lightsync_queue_depth", "gauge", "Tasks queued, in memory and spilled", stats.getQueueDepth());
+        value(sb, "lightsync_queue_bytes", "gauge", "Estimated memory of the tasks queued", stats.getQueueBytes());
+        value(sb, "lightsync_queue_high_water", "gauge", "Most tasks queued at once", stats.getQueueHighWater());
+        value(sb, "lightsync_watched_dirs", "gauge", "Dirs registered with the watcher", watchedDirs.getAsInt());
+        value(sb, "lightsync_overflows_recovered_total", "counter", "Watcher overflows recovered by a rescan",
+                stats.getNumOverflowsRecovered());
+        value(sb, "lightsync_echo_cache_entries", "gauge", "Paths in the echo cache", echoes.size());
+        value(sb, "lightsync_path_table_nodes", "gauge", "Paths held in the path tables", pathNodes.getAsInt());
+        value(sb, "lightsync_throttled_tasks_total", "counter", "Tasks that waited for the throttle",
+                stats.getNumTasksThrottled());
+        value(sb, "lightsync_throttled_seconds_total", "counter", "Time spent waiting for the throttle",
+                stats.getThrottledMillis() / 1e3);
+
+        header(sb, "lightsync_task_seconds", "summary", "Time to do a sync task");
+        for (SyncTask.TYPE type : SyncTask.TYPE.values())
+            summary(sb, "lightsync_task_seconds", "type", type.name(), stats.getExecTime(type));
+        header(sb, "lightsync_queue_wait_seconds", "summary", "Time from being queued to being taken by a doer");
+        for (SyncTask.LANE lane : SyncTask.LANE.values())
+            summary(sb, "lightsync_queue_wait_seconds", "lane", lane.name(), stats.getQueueWait(lane));
+
+        return sb.toString();
+    }
+
+    private static void header(StringBuilder sb, String metric, String type, String help) {
+        sb.append("# HELP ").append(metric).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(metric).append(' ').append(type).append('\n');
+    }
+
+    private static void value(StringBuilder sb, String metric, String type, String help, double value) {
+        header(sb, metric, type, help);
+        sb.append(metric).append(' ').append(value).append('\n');
+    }
+
+    private static void sample(StringBuilder sb, String metric, String label, String labelValue, double value) {
+        sb.append(metric).append('{').append(label).append("=\"").append(labelValue).append("\"} ")
+                .append(value).append('\n');
+    }
+
+    // Histogram values are nanoseconds, Prometheus wants seconds
+    private static void summary(StringBuilder sb, String metric, String label, String labelValue,
+                                SyncHistogram.Snapshot snapshot) {
+
+        for (double q : QUANTILES)
+            sb.append(metric).append('{').append(label).append("=\"").append(labelValue)
+                    .append("\",quantile=\"").append(q).append("\"} ")
+                    .append(snapshot.percentile(q * 100) / 1e9).append('\n');
+        sample(sb, metric + "_sum", label, labelValue, snapshot.getMean() * snapshot.getCount() / 1e9);
+        sample(sb, metric + "_count", label, labelValue, snapshot.getCount());
+    }
+}
@@ -0,0 +1,47 @@
+package org.danielpacker;
+
+/**
+ * What SyncMetrics shows in JConsole/VisualVM (or any JMX client), under
+ * org.danielpacker:type=SyncMetrics. Rates are averaged over the last few seconds,
+ * latencies are since startup.
+ */
+
+import java.util.Map;
+
+
+public interface SyncMetricsMXBean {
+
+    long getQueueDepth();
+
+    long getQueueBytes();
+
+    long getQueueHighWater();
+
+    long getTasksCompleted();
+
+    long getTasksFailed();
+
+    Map<String, Double> getTasksPerSecByType();
+
+    double getBytesPerSec();
+
+    long getBytesCopied();
+
+    Map<String, Double> getCopyLatencyMillis();
+
+    int getWatchedDirs();
+
+    long getOverflowsRecovered();
+
+    int getEchoCacheEntries();
+
+    int getPathTableNodes();
+
+    long getThrottleBytesPerSec();
+
+    void setThrottleBytesPerSec(long bytesPerSec);
+
+    long getThrottleOpsPerSec();
+
+    void setThrottleOpsPerSec(long opsPerSec);
+}
@@ -0,0 +1,644 @@
+package org.danielpacker;
+
+/**
+ * Table of the relative paths seen under a group of synced roots, stored once as a trie.
+ * Each path is a node with an int id, holding only its parent's id and the id of its
+ * (interned) last segment, so e.g. a million files in one dir share one copy of the dir.
+ * Tasks and the watcher carry these ids instead of two absolute Paths, and Paths are only
+ * built against a root when something actually touches the file system.
+ * Whatever holds on to an id (a task, a watched dir, a hard link's first copy) pins it.
+ * Once a path is deleted it's released, and its node is removed when nothing pins it, it has
+ * no children left and it has stayed released a little while (RELEASE_GRACE_MILLIS), so
+ * the table only holds the paths still around. A removed node's id is used again, and its
+ * generation, part of every key(), goes up, so a key of the path it was before matches nothing.
+ */
+
+import java.io.File;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+
+class SyncPathTable {
+
+    // Id of the roots themselves, i.e. the relative path ""
+    static final int ROOT = 0;
+
+    // Most roots in one group, so a root's index fits in the low byte of a key
+    static final int MAX_ROOTS = 256;
+
+    // Most groups, so a table's index fits in the high byte of a key
+    static final int MAX_GROUPS = 256;
+
+    // How long a released node is kept, far longer than it takes anything that just
+    //  looked a path up to pin it, and for the path to turn up again right away
+    static final long RELEASE_GRACE_MILLIS = 2000;
+
+    // Parent of a removed node
+    private static final int REMOVED = -2;
+
+    // Rough heap footprint of a node (its slots in the node arrays and the child table),
+    //  and of an interned segment name besides its characters
+    private static final int NODE_BYTES = 50;
+    private static final int SEGMENT_BYTES = 100;
+
+    // One table per group of roots, shared by everything syncing them
+    private static final Map<List<Path>, SyncPathTable> tables = new ConcurrentHashMap<>();
+
+    // The same tables by index, to find a key's (or spilled task's) table again
+    private static final List<SyncPathTable> tablesByIndex = new CopyOnWriteArrayList<>();
+
+    private final Path[] roots;
+    private final int index;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // Nodes, by id
+    private int[] parents = new int[1024];
+    private int[] segments = new int[1024];
+    private char[] generations = new char[1024];
+    private int[] numChildren = new int[1024];
+    private AtomicIntegerArray pins = new AtomicIntegerArray(1024);
+    private int numNodes = 1;
+
+    // When each node was released, 0 while it isn't
+    private long[] releasedAt = new long[1024];
+
+    // Released nodes (maybe more than once, or taken back since), for sweep() to remove
+    private final ArrayDeque<Integer> released = new ArrayDeque<>();
+
+    // Released nodes whose descendants have been released along with them
+    private final BitSet releasedTrees = new BitSet();
+
+    // Ids of removed nodes, to be used again
+    private int[] freeIds = new int[16];
+    private int numFree = 0;
+
+    // Interned segment names, and how many nodes use each, null once none do
+    private final Map<String, Integer> segmentIds = new HashMap<>();
+    private final List<String> segmentNames = new ArrayList<>();
+    private int[] segmentUses = new int[1024];
+    private final ArrayDeque<Integer> freeSegments = new ArrayDeque<>();
+
+    // (parent id, segment id) -> child id, open addressing, 0 means empty (ROOT is never a child)
+    private long[] childKeys = new long[2048];
+    private int[] childIds = new int[2048];
+
+    private SyncPathTable(List<Path> roots, int index) {
+
+        this.roots = roots.toArray(new Path[0]);
+        this.index = index;
+        parents[ROOT] = -1;
+    }
+
+    /**
+     * The tables of every sync group in the config, in order.
+     */
+    static List<SyncPathTable> forConfig(SyncConfig config) {
+
+        List<SyncPathTable> groups = new ArrayList<>();
+        for (List<String> dirs : config.getGroups().values()) {
+            List<Path> roots = new ArrayList<>();
+            for (String dir : dirs)
+                roots.add(Paths.get(dir));
+            groups.add(forRoots(roots));
+        }
+        return groups;
+    }
+
+    static SyncPathTable forRoots(Path... roots) {
+        return forRoots(Arrays.asList(roots));
+    }
+
+    static SyncPathTable forRoots(List<Path> roots) {
+
+        if (roots.size() < 2 || roots.size() > MAX_ROOTS)
+            throw new IllegalArgumentException("A sync group needs 2 to " + MAX_ROOTS + " dirs: " + roots);
+
+        SyncPathTable table = tables.get(roots);
+        if (table != null)
+            return table;
+        synchronized (tables) {
+            if (!tables.containsKey(roots) && tablesByIndex.size() == MAX_GROUPS)
+                throw new IllegalArgumentException("At most " + MAX_GROUPS + " sync groups can be synced at once");
+            return tables.computeIfAbsent(new ArrayList<>(roots), k -> {
+                SyncPathTable created = new SyncPathTable(k, tablesByIndex.size());
+                tablesByIndex.add(created);
+                return created;
+            });
+        }
+    }
+
+    /**
+     * A key for a path under one root, unique across all tables,
+     * e.g. for maps of things expected to happen to it.
+     */
+    long key(int id, int root) {
+
+        lock.readLock().lock();
+        try {
+            return ((long) index << 56) | ((long) generations[id] << 40) | ((long) id << 8) | root;
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * The absolute path a key() stands for, null if its node has been removed since.
+     */
+    static Path resolve(long key) {
+
+        SyncPathTable table = tablesByIndex.get((int) (key >>> 56));
+        int id = (int) (key >>> 8);
+        table.lock.readLock().lock();
+        try {
+            if (id >= table.numNodes || table.parents[id] == REMOVED || table.generations[id] != (char) (key >>> 40))
+                return null;
+        }
+        finally {
+            table.lock.readLock().unlock();
+        }
+        return table.resolve(id, (int) (key & 0xff));
+    }
+
+    static SyncPathTable byIndex(int index) {
+        return tablesByIndex.get(index);
+    }
+
+    int getIndex() {
+        return index;
+    }
+
+    Path getRoot(int root) {
+        return roots[root];
+    }
+
+    int numRoots() {
+        return roots.length;
+    }
+
+    /**
+     * Index of the root path is under, or -1 if it's under none of them.
+     */
+    int rootOf(Path path) {
+
+        for (int i = 0; i < roots.length; i++)
+            if (path.startsWith(roots[i]))
+                return i;
+        return -1;
+    }
+
+    /**
+     * Id for an absolute path under any of the roots.
+     */
+    int intern(Path path) {
+
+        int root = rootOf(path);
+        if (root < 0)
+            throw new IllegalArgumentException(path + " is not under any of " + Arrays.toString(roots));
+
+        int id = ROOT;
+        for (Path name : roots[root].relativize(path))
+            if (!name.toString().isEmpty())
+                id = child(id, name.toString());
+        return id;
+    }
+
+    /**
+     * Id for a path relative to the roots, "" being the roots themselves.
+     */
+    int intern(String rel) {
+
+        int id = ROOT;
+        int start = 0;
+        while (start < rel.length()) {
+            int end = rel.indexOf(File.separatorChar, start);
+            if (end < 0)
+                end = rel.length();
+            if (end > start)
+                id = child(id, rel.substring(start, end));
+            start = end + 1;
+        }
+        return id;
+    }
+
+    /**
+     * Id for the entry called name in the dir with id parent. Looking up a released path
+     * takes it back, unless the dir it's in is still released too.
+     */
+    int child(int parent, String name) {
+
+        lock.readLock().lock();
+        try {
+            Integer segment = segmentIds.get(name);
+            if (segment != null) {
+                int found = findChild(childKey(parent, segment));
+                if (found != ROOT && releasedAt[found] == 0 && releasedAt[parent] == 0)
+                    return found;
+            }
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+
+        lock.writeLock().lock();
+        try {
+            long now = System.currentTimeMillis();
+            Integer segment = segmentIds.get(name);
+            if (segment != null) {
+                int found = findChild(childKey(parent, segment));
+                if (found != ROOT) {
+                    releasedAt[found] = releasedAt[parent] == 0 ? 0 : now;
+                    if (releasedAt[found] == 0)
+                        releasedTrees.clear(found);
+                    else
+                        released.add(found);
+                    return found;
+                }
+            }
+            else {
+                segment = internSegment(name);
+            }
+
+            int id = newNode();
+            parents[id] = parent;
+            segments[id] = segment;
+            segmentUses[segment]++;
+            numChildren[parent]++;
+            // In a released dir, e.g. one deleted while it's being scanned
+            if (releasedAt[parent] != 0) {
+                releasedAt[id] = now;
+                released.add(id);
+            }
+            putChild(childKey(parent, segment), id);
+            return id;
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private int internSegment(String name) {
+
+        Integer segment = freeSegments.poll();
+        if (segment == null) {
+            segment = segmentNames.size();
+            segmentNames.add(name);
+            if (segment == segmentUses.length)
+                segmentUses = Arrays.copyOf(segmentUses, segment * 2);
+        }
+        else {
+            segmentNames.set(segment, name);
+        }
+        segmentIds.put(name, segment);
+        return segment;
+    }
+
+    private int newNode() {
+
+        if (numFree > 0)
+            return freeIds[--numFree];
+
+        if (numNodes == parents.length) {
+            int length = numNodes * 2;
+            parents = Arrays.copyOf(parents, length);
+            segments = Arrays.copyOf(segments, length);
+            generations = Arrays.copyOf(generations, length);
+            numChildren = Arrays.copyOf(numChildren, length);
+            releasedAt = Arrays.copyOf(releasedAt, length);
+            AtomicIntegerArray grown = new AtomicIntegerArray(length);
+            for (int i = 0; i < numNodes; i++)
+                grown.set(i, pins.get(i));
+            pins = grown;
+        }
+        return numNodes++;
+    }
+
+    /**
+     * Keep id from being removed, until unpin().
+     */
+    void pin(int id) {
+
+        lock.readLock().lock();
+        try {
+            pins.incrementAndGet(id);
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    void unpin(int id) {
+
+        lock.readLock().lock();
+        try {
+            pins.decrementAndGet(id);
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * The path (and anything under it) is gone, e.g. deleted or moved away, so its node can
+     * be removed once nothing pins it. Looking it up again before then takes it back.
+     */
+    void release(int id) {
+
+        if (id == ROOT)
+            return;
+        lock.writeLock().lock();
+        try {
+            releasedAt[id] = System.currentTimeMillis();
+            released.add(id);
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Remove the nodes released at least RELEASE_GRACE_MILLIS ago that nothing pins. One that
+     * still has children has its descendants released along with it, to be removed first.
+     * Those still pinned are checked again on the next sweep.
+     */
+    void sweep() {
+
+        lock.writeLock().lock();
+        try {
+            long expired = System.currentTimeMillis() - RELEASE_GRACE_MILLIS;
+            BitSet seen = new BitSet();
+            BitSet trees = new BitSet();
+            for (int i = released.size(); i > 0; i--) {
+                int id = released.poll();
+                // Taken back, removed already, or released more than once
+                if (releasedAt[id] == 0 || parents[id] == REMOVED || seen.get(id))
+                    continue;
+                seen.set(id);
+                if (releasedAt[id] <= expired) {
+                    remove(id, expired);
+                    if (parents[id] == REMOVED)
+                        continue;
+                    if (numChildren[id] > 0 && !releasedTrees.get(id))
+                        trees.set(id);
+                }
+                released.add(id);
+            }
+            if (!trees.isEmpty())
+                releaseUnder(trees);
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Remove id if it can be, then its parent if that can be now too, and so on
+    private void remove(int id, long expired) {
+
+        while (id != ROOT && releasedAt[id] != 0 && releasedAt[id] <= expired
+                && numChildren[id] == 0 && pins.get(id) == 0) {
+            int parent = parents[id];
+            int segment = segments[id];
+            removeChild(childKey(parent, segment));
+            if (--segmentUses[segment] == 0) {
+                segmentIds.remove(segmentNames.get(segment));
+                segmentNames.set(segment, null);
+                freeSegments.add(segment);
+            }
+            numChildren[parent]--;
+            parents[id] = REMOVED;
+            releasedAt[id] = 0;
+            releasedTrees.clear(id);
+            generations[id]++;
+            if (numFree == freeIds.length)
+                freeIds = Arrays.copyOf(freeIds, numFree * 2);
+            freeIds[numFree++] = id;
+            id = parent;
+        }
+    }
+
+    // Release every node with one of trees as an ancestor, e.g. what was in a dir moved away
+    private void releaseUnder(BitSet trees) {
+
+        long now = System.currentTimeMillis();
+        // 1 under one of the trees, 2 not, 0 not known yet
+        byte[] under = new byte[numNodes];
+        under[ROOT] = 2;
+        for (int i = trees.nextSetBit(0); i >= 0; i = trees.nextSetBit(i + 1)) {
+            under[i] = 1;
+            releasedTrees.set(i);
+        }
+        Deque<Integer> path = new ArrayDeque<>();
+        for (int id = 1; id < numNodes; id++) {
+            int n = id;
+            while (n != REMOVED && under[n] == 0) {
+                path.push(n);
+                n = parents[n];
+            }
+            byte state = n == REMOVED ? 2 : under[n];
+            while (!path.isEmpty()) {
+                int p = path.pop();
+                under[p] = state;
+                if (state == 1 && releasedAt[p] == 0) {
+                    releasedAt[p] = now;
+                    released.add(p);
+                }
+            }
+        }
+    }
+    // Never 0, which marks an empty slot
+    private static long childKey(int parent, int segment) {
+        return ((long) (parent + 1) << 32) | (segment & 0xffffffffL);
+    }
+
+    private static int slot(long key, int mask) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    private int findChild(long key) {
+
+        int mask = childKeys.length - 1;
+        for (int i = slot(key, mask); childKeys[i] != 0; i = (i + 1) & mask)
+            if (childKeys[i] == key)
+                return childIds[i];
+        return ROOT;
+    }
+
+    private void putChild(long key, int id) {
+
+        // Keep the load factor under 1/2 (counting removed nodes, whose ids are used again)
+        if (numNodes * 2 > childKeys.length) {
+            long[] oldKeys = childKeys;
+            int[] oldIds = childIds;
+            childKeys = new long[oldKeys.length * 2];
+            childIds = new int[oldIds.length * 2];
+            for (int i = 0; i < oldKeys.length; i++)
+                if (oldKeys[i] != 0)
+                    insert(oldKeys[i], oldIds[i]);
+        }
+        insert(key, id);
+    }
+
+    private void insert(long key, int id) {
+
+        int mask = childKeys.length - 1;
+        int i = slot(key, mask);
+        while (childKeys[i] != 0)
+            i = (i + 1) & mask;
+        childKeys[i] = key;
+        childIds[i] = id;
+    }
+
+    // Backward shift deletion, moving up any later key that probed past the emptied slot
+    private void removeChild(long key) {
+
+        int mask = childKeys.length - 1;
+        int i = slot(key, mask);
+        while (childKeys[i] != key)
+            i = (i + 1) & mask;
+        for (int j = (i + 1) & mask; childKeys[j] != 0; j = (j + 1) & mask) {
+            int home = slot(childKeys[j], mask);
+            if (i <= j ? (home <= i || home > j) : (home <= i && home > j)) {
+                childKeys[i] = childKeys[j];
+                childIds[i] = childIds[j];
+                i = j;
+            }
+        }
+        childKeys[i] = 0;
+        childIds[i] = 0;
+    }
+
+    /**
+     * Parent's id, or -1 for the roots.
+     */
+    int parent(int id) {
+
+        lock.readLock().lock();
+        try {
+            return parents[id];
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * The path relative to the roots, "" for the roots themselves.
+     */
+    String relative(int id) {
+
+        lock.readLock().lock();
+        try {
+            if (id == ROOT)
+                return "";
+            Deque<String> names = new ArrayDeque<>();
+            for (int n = id; n != ROOT; n = parents[n])
+                names.push(segmentNames.get(segments[n]));
+            return String.join(File.separator, names);
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * The absolute path under one of the roots.
+     */
+    Path resolve(int id, int root) {
+        return id == ROOT ? roots[root] : roots[root].resolve(relative(id));
+    }
+
+    /**
+     * Whether one path is the other, or one of its ancestors.
+     */
+    boolean related(int a, int b) {
+
+        lock.readLock().lock();
+        try {
+            int depthA = depth(a);
+            int depthB = depth(b);
+            while (depthA > depthB) {
+                a = parents[a];
+                depthA--;
+            }
+            while (depthB > depthA) {
+                b = parents[b];
+                depthB--;
+            }
+            return a == b;
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Whether id is ancestor or one of its descendants.
+     */
+    boolean isUnder(int id, int ancestor) {
+
+        lock.readLock().lock();
+        try {
+            for (int n = id; n != -1; n = parents[n])
+                if (n == ancestor)
+                    return true;
+            return false;
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private int depth(int id) {
+
+        int depth = 0;
+        for (int n = id; n != ROOT; n = parents[n])
+            depth++;
+        return depth;
+    }
+
+    /**
+     * Rough heap footprint of the nodes kept only for whoever holds (and pinned) id, e.g. a
+     * queued task: id itself, if nothing else pins it and it has no children, then the same
+     * for each dir above it that has no other children, with any segment names only they use.
+     */
+    long bytesHeldBy(int id) {
+
+        lock.readLock().lock();
+        try {
+            long bytes = 0;
+            int ownPins = 1;
+            int ownChildren = 0;
+            for (int n = id; n > ROOT && pins.get(n) <= ownPins && numChildren[n] <= ownChildren; n = parents[n]) {
+                bytes += NODE_BYTES;
+                if (segmentUses[segments[n]] == 1)
+                    bytes += SEGMENT_BYTES + segmentNames.get(segments[n]).length();
+                ownPins = 0;
+                ownChildren = 1;
+            }
+            return bytes;
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Nodes in the table, not counting removed ones.
+     */
+    int size() {
+
+        lock.readLock().lock();
+        try {
+            return numNodes - numFree;
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+}
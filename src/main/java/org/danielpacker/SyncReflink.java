@@ -0,0 +1,173 @@
+package org.danielpacker;
+
+/**
+ * Copies a file as a clone (reflink) on file systems that can share blocks between files,
+ * e.g. XFS and btrfs: one FICLONE ioctl (through JNA) makes dst share all of src's blocks,
+ * copy-on-write, so nothing is read or written however big the file is. Like the channel
+ * engine it clones into a temp file and renames it over dst. Where cloning isn't supported
+ * (another file system, or src and dst on different ones) clone() returns false for the
+ * caller to copy the bytes instead, and the device isn't tried again.
+ */
+
+import com.sun.jna.LastErrorException;
+import com.sun.jna.Library;
+import com.sun.jna.Native;
+import com.sun.jna.NativeLong;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+
+class SyncReflink {
+
+    private static final Logger log = LogManager.getLogger(SyncReflink.class);
+
+    private interface LibC extends Library {
+        int open(String path, int flags, int mode) throws LastErrorException;
+        int ioctl(int fd, NativeLong request, int srcFd) throws LastErrorException;
+        int close(int fd) throws LastErrorException;
+    }
+
+    // From <linux/fs.h> and <fcntl.h>
+    private static final long FICLONE = 0x40049409L;
+    private static final int O_RDONLY = 0;
+    private static final int O_WRONLY = 01;
+    private static final int O_CREAT = 0100;
+    private static final int O_TRUNC = 01000;
+    private static final int O_CLOEXEC = 02000000;
+
+    // What a file system without clones (or a clone across file systems) fails with
+    private static final int EXDEV = 18;
+    private static final int EINVAL = 22;
+    private static final int ENOTTY = 25;
+    private static final int ENOSYS = 38;
+    private static final int EOPNOTSUPP = 95;
+
+    private static LibC libc;
+
+    // Devices (unix:dev) of dst dirs that can't be cloned into
+    private static final Set<Object> unsupported = ConcurrentHashMap.newKeySet();
+
+    private final SyncStats stats;
+
+    private SyncReflink(SyncStats stats) {
+        this.stats = stats;
+    }
+
+    /**
+     * A cloner, or null where there can't be one (not Linux, or no libc through JNA).
+     */
+    static SyncReflink create(SyncConfig config, SyncStats stats) {
+
+        if (!config.isReflink() || SyncUtil.getOS() != SyncUtil.OS.LINUX)
+            return null;
+        synchronized (SyncReflink.class) {
+            try {
+                if (libc == null)
+                    libc = Native.load("c", LibC.class);
+            }
+            catch (UnsatisfiedLinkError e) {
+                log.info("Can't clone files without libc through JNA, copying instead: " + e.getMessage());
+                return null;
+            }
+        }
+        return new SyncReflink(stats);
+    }
+
+    /**
+     * Make dst a clone of src, with src's mtime and permissions, returning whether it was.
+     */
+    boolean clone(Path src, Path dst) throws IOException {
+
+        Object device;
+        try {
+            device = Files.getAttribute(dst.getParent(), "unix:dev");
+        }
+        catch (UnsupportedOperationException | IllegalArgumentException e) {
+            return false;
+        }
+        if (unsupported.contains(device))
+            return false;
+
+        BasicFileAttributes attrs = readAttributes(src);
+        Path temp = SyncUtil.tempPath(dst);
+        int errno = ficlone(src, temp);
+        if (errno != 0) {
+            Files.deleteIfExists(temp);
+            if (errno == EXDEV || errno == EINVAL || errno == ENOTTY || errno == ENOSYS || errno == EOPNOTSUPP) {
+                if (unsupported.add(device))
+                    log.info("Can't clone files into " + dst.getParent() + " (errno " + errno + "), copying instead");
+                return false;
+            }
+            throw new IOException("Problem cloning " + src + " to " + dst + " (errno " + errno + ")");
+        }
+
+        try {
+            Files.setLastModifiedTime(temp, attrs.lastModifiedTime());
+            if (attrs instanceof PosixFileAttributes)
+                Files.setPosixFilePermissions(temp, ((PosixFileAttributes) attrs).permissions());
+            Files.move(temp, dst, REPLACE_EXISTING, ATOMIC_MOVE);
+        }
+        catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+
+        stats.addCloned(attrs.size());
+        log.debug("Cloned " + src + " -> " + dst);
+        return true;
+    }
+
+    private static BasicFileAttributes readAttributes(Path src) throws IOException {
+        try {
+            return Files.readAttributes(src, PosixFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (UnsupportedOperationException e) {
+            return Files.readAttributes(src, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        }
+    }
+
+    // 0 once cloned, otherwise the errno of the open or ioctl that failed
+    private static int ficlone(Path src, Path dst) throws IOException {
+
+        int srcFd;
+        try {
+            srcFd = libc.open(src.toString(), O_RDONLY | O_CLOEXEC, 0);
+        }
+        catch (LastErrorException e) {
+            throw new IOException("Problem opening " + src + " to clone: " + e.getMessage());
+        }
+        try {
+            int dstFd;
+            try {
+                dstFd = libc.open(dst.toString(), O_WRONLY | O_CREAT | O_TRUNC | O_CLOEXEC, 0600);
+            }
+            catch (LastErrorException e) {
+                throw new IOException("Problem opening " + dst + " to clone into: " + e.getMessage());
+            }
+            try {
+                libc.ioctl(dstFd, new NativeLong(FICLONE), srcFd);
+                return 0;
+            }
+            catch (LastErrorException e) {
+                return e.getErrorCode();
+            }
+            finally {
+                libc.close(dstFd);
+            }
+        }
+        finally {
+            libc.close(srcFd);
+        }
+    }
+}
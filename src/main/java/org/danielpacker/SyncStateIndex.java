@@ -0,0 +1,299 @@
+package org.danielpacker;
+
+/**
+ * On-disk index of the last synced state (size, mtime, type) of every path under one root.
+ * Kept in memory as a sorted map and persisted as an append-only log of put/remove records,
+ * which is compacted on load once it grows well past the number of live entries.
+ * Lets the startup scan skip paths that haven't changed since they were last synced,
+ * and spot paths that were deleted while the daemon was down.
+ */
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.*;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+
+class SyncStateIndex implements Closeable {
+
+    private static final Logger log = LogManager.getLogger(SyncStateIndex.class);
+    private static final int MAGIC = 0x4c53_4958; // "LSIX"
+    private static final int VERSION = 1;
+    private static final byte OP_PUT = 'P';
+    private static final byte OP_REMOVE = 'R';
+    private static final long FLUSH_INTERVAL_MS = 1000;
+
+    static class Entry {
+        final boolean dir;
+        final long size;
+        final long mtime;
+
+        // Set while scanning: was the path found, and did it match this entry?
+        boolean seen = false;
+        boolean unchanged = false;
+
+        Entry(boolean dir, long size, long mtime) {
+            this.dir = dir;
+            this.size = size;
+            this.mtime = mtime;
+        }
+
+        boolean matches(BasicFileAttributes attrs) {
+            return dir == attrs.isDirectory()
+                    && mtime == attrs.lastModifiedTime().toMillis()
+                    && (dir || size == attrs.size());
+        }
+    }
+
+    private final Path root;
+    private final Path file;
+    private final TreeMap<String, Entry> entries = new TreeMap<>();
+    private DataOutputStream out;
+    private long numRecords = 0;
+    private long lastFlush = 0;
+
+    private SyncStateIndex(Path root, Path file) {
+        this.root = root;
+        this.file = file;
+    }
+
+    /**
+     * Load (or create) the index for the given root, stored under stateDir.
+     */
+    static SyncStateIndex open(Path stateDir, Path root) throws IOException {
+
+        Files.createDirectories(stateDir);
+        SyncStateIndex index = new SyncStateIndex(root, stateDir.resolve("index-" + rootId(root) + ".log"));
+        index.load();
+        log.info("State index for " + root + " loaded with " + index.entries.size() + " entries");
+        return index;
+    }
+
+    // Stable file name for a root, so each root gets its own index
+    private static String rootId(Path root) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5")
+                    .digest(root.toAbsolutePath().normalize().toString().getBytes(StandardCharsets.UTF_8));
+            return String.format("%032x", new BigInteger(1, digest));
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    Path getRoot() {
+        return root;
+    }
+
+    private void load() throws IOException {
+
+        if (Files.exists(file)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                    throw new IOException("Unrecognized state index file: " + file);
+
+                while (true) {
+                    byte op = in.readByte();
+                    String rel = in.readUTF();
+                    if (op == OP_PUT)
+                        entries.put(rel, new Entry(in.readBoolean(), in.readLong(), in.readLong()));
+                    else
+                        removeEntries(rel);
+                    numRecords++;
+                }
+            }
+            catch (EOFException e) {
+                // End of log, possibly with a partial record from a crash which is dropped
+            }
+        }
+
+        // Rewrite the log when it's mostly dead records (or doesn't exist yet)
+        if (!Files.exists(file) || numRecords > 2 * entries.size() + 1000)
+            compact();
+        else
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file.toFile(), true)));
+    }
+
+    private void compact() throws IOException {
+
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream snapshot = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            snapshot.writeInt(MAGIC);
+            snapshot.writeInt(VERSION);
+            for (Map.Entry<String, Entry> e : entries.entrySet())
+                writePut(snapshot, e.getKey(), e.getValue());
+        }
+        Files.move(tmp, file, REPLACE_EXISTING, ATOMIC_MOVE);
+
+        numRecords = entries.size();
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file.toFile(), true)));
+        log.debug("Compacted state index " + file + " to " + numRecords + " entries");
+    }
+
+    private static void writePut(DataOutputStream o, String rel, Entry entry) throws IOException {
+        o.writeByte(OP_PUT);
+        o.writeUTF(rel);
+        o.writeBoolean(entry.dir);
+        o.writeLong(entry.size);
+        o.writeLong(entry.mtime);
+    }
+
+    synchronized Entry get(String rel) {
+        return entries.get(rel);
+    }
+
+    synchronized void put(String rel, BasicFileAttributes attrs) throws IOException {
+
+        Entry entry = new Entry(attrs.isDirectory(), attrs.size(), attrs.lastModifiedTime().toMillis());
+        entry.seen = true;
+        entry.unchanged = true;
+        entries.put(rel, entry);
+        writePut(out, rel, entry);
+        written();
+    }
+
+    /**
+     * Remove a path and, if it's a directory, everything under it.
+     */
+    synchronized void remove(String rel) throws IOException {
+
+        if (removeEntries(rel)) {
+            out.writeByte(OP_REMOVE);
+            out.writeUTF(rel);
+            written();
+        }
+    }
+
+    private boolean removeEntries(String rel) {
+
+        boolean removed = entries.remove(rel) != null;
+        SortedMap<String, Entry> below = subtree(rel);
+        removed |= !below.isEmpty();
+        below.clear();
+        return removed;
+    }
+
+    // All entries strictly under rel
+    private SortedMap<String, Entry> subtree(String rel) {
+        return entries.subMap(rel + File.separatorChar, rel + (char) (File.separatorChar + 1));
+    }
+
+    // rel and everything under it, where "" is the root
+    private Map<String, Entry> within(String rel) {
+
+        if (rel.isEmpty())
+            return entries;
+
+        Map<String, Entry> within = new TreeMap<>(subtree(rel));
+        Entry entry = entries.get(rel);
+        if (entry != null)
+            within.put(rel, entry);
+        return within;
+    }
+
+    private void written() throws IOException {
+
+        numRecords++;
+        long now = System.currentTimeMillis();
+        if (now - lastFlush > FLUSH_INTERVAL_MS) {
+            out.flush();
+            lastFlush = now;
+        }
+    }
+
+    /**
+     * Record that a path was found during a scan, returning whether it's unchanged since last sync.
+     */
+    synchronized boolean markSeen(String rel, BasicFileAttributes attrs) {
+
+        Entry entry = entries.get(rel);
+        if (entry == null)
+            return false;
+        entry.seen = true;
+        entry.unchanged = entry.matches(attrs);
+        return entry.unchanged;
+    }
+
+    /**
+     * Paths at or under rel that were in the index but weren't seen by the last scan
+     * (i.e. deleted while the daemon was down). Paths under a missing directory are left out.
+     */
+    synchronized List<String> unseen(String rel) {
+
+        List<String> missing = new ArrayList<>();
+        Set<String> missingDirs = new HashSet<>();
+        for (Map.Entry<String, Entry> e : within(rel).entrySet()) {
+            String path = e.getKey();
+            if (e.getValue().seen || underAny(path, missingDirs))
+                continue;
+            missing.add(path);
+            if (e.getValue().dir)
+                missingDirs.add(path);
+        }
+        return missing;
+    }
+
+    private static boolean underAny(String rel, Set<String> dirs) {
+
+        for (int i = rel.lastIndexOf(File.separatorChar); i > 0; i = rel.lastIndexOf(File.separatorChar, i - 1))
+            if (dirs.contains(rel.substring(0, i)))
+                return true;
+        return false;
+    }
+
+    /**
+     * Whether a path and everything under it were seen unchanged by the last scan.
+     */
+    synchronized boolean subtreeUnchanged(String rel) {
+
+        Entry entry = entries.get(rel);
+        if (entry == null || !entry.unchanged)
+            return false;
+        for (Entry below : subtree(rel).values())
+            if (!below.unchanged)
+                return false;
+        return true;
+    }
+
+    /**
+     * Clear scan flags at or under rel before scanning it.
+     */
+    synchronized void resetSeen(String rel) {
+        for (Entry entry : within(rel).values()) {
+            entry.seen = false;
+            entry.unchanged = false;
+        }
+    }
+
+    /**
+     * Drop entries at or under rel not seen by a scan of rel, they no longer exist under this root.
+     * Entries in keep are left for the doer to remove once their deletion has been synced.
+     */
+    synchronized void pruneUnseen(String rel, Collection<String> keep) throws IOException {
+
+        for (String gone : unseen(rel))
+            if (!keep.contains(gone))
+                remove(gone);
+        out.flush();
+    }
+
+    synchronized void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        out.close();
+    }
+}
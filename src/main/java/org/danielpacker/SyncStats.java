@@ -1,53 +1,339 @@
 package org.danielpacker;
 
+/**
+ * Counters and latency histograms shared by all the workers.
+ * Everything is a LongAdder (or lock-free histogram), so updates from many threads don't
+ * contend, and reading the stats never blocks the workers.
+ */
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+
 class SyncStats {
 
-    volatile private long numTasksQueued = 0;
-    volatile private long numTasksCompleted = 0;
-    volatile private long startTime = 0;
+    private static final int NUM_TYPES = SyncTask.TYPE.values().length;
+
+    private final long startTime;
+    private final LongAdder[] numTasksQueued = adders(NUM_TYPES);
+    private final LongAdder[] numTasksCompleted = adders(NUM_TYPES);
+    private final LongAdder numTasksFailed = new LongAdder();
+    private final LongAdder numTasksCoalesced = new LongAdder();
+    private final LongAdder numOverflowsRecovered = new LongAdder();
+    private final LongAdder totalRescanMillis = new LongAdder();
+    private final LongAccumulator maxRescanMillis = new LongAccumulator(Math::max, 0);
+    private final LongAdder bytesCopied = new LongAdder();
+    private final LongAdder numDeltaCopies = new LongAdder();
+    private final LongAdder deltaBytesTransferred = new LongAdder();
+    private final LongAdder deltaBytesSkipped = new LongAdder();
+    private final LongAdder numSkippedIdentical = new LongAdder();
+    private final LongAdder bytesSkippedIdentical = new LongAdder();
+    private final LongAdder numHardLinked = new LongAdder();
+    private final LongAdder bytesHardLinked = new LongAdder();
+    private final LongAdder numCloned = new LongAdder();
+    private final LongAdder numEntriesDeleted = new LongAdder();
+    private final LongAdder bytesCloned = new LongAdder();
+    private final LongAdder numTasksSpilled = new LongAdder();
+    private final LongAdder numTasksStale = new LongAdder();
+    private final LongAdder numTasksThrottled = new LongAdder();
+    private final LongAdder throttledNanos = new LongAdder();
+    private final LongAccumulator queueHighWater = new LongAccumulator(Math::max, 0);
+    volatile private long queueDepth = 0;
+    volatile private long queueBytes = 0;
+
+    // Nanoseconds from being queued to being taken by a doer, and from then until done
+    private final SyncHistogram queueWait = new SyncHistogram();
+    private final SyncHistogram execTime = new SyncHistogram();
+    private final SyncHistogram[] laneQueueWait = histograms(SyncTask.LANE.values().length);
+    private final SyncHistogram[] typeExecTime = histograms(NUM_TYPES);
 
     public SyncStats() {
         startTime = System.currentTimeMillis();
     }
 
+    private static LongAdder[] adders(int n) {
+        LongAdder[] adders = new LongAdder[n];
+        for (int i = 0; i < n; i++)
+            adders[i] = new LongAdder();
+        return adders;
+    }
+
+    private static SyncHistogram[] histograms(int n) {
+        SyncHistogram[] histograms = new SyncHistogram[n];
+        for (int i = 0; i < n; i++)
+            histograms[i] = new SyncHistogram();
+        return histograms;
+    }
+
+    private static long sum(LongAdder[] adders) {
+        long total = 0;
+        for (LongAdder adder : adders)
+            total += adder.sum();
+        return total;
+    }
+
     public long getNumTasksQueued() {
-        return numTasksQueued;
+        return sum(numTasksQueued);
+    }
+
+    public long getNumTasksQueued(SyncTask.TYPE type) {
+        return numTasksQueued[type.ordinal()].sum();
     }
 
     public long getNumTasksCompleted() {
-        return numTasksCompleted;
+        return sum(numTasksCompleted);
+    }
+
+    public long getNumTasksCompleted(SyncTask.TYPE type) {
+        return numTasksCompleted[type.ordinal()].sum();
+    }
+
+    public long getNumTasksFailed() {
+        return numTasksFailed.sum();
+    }
+
+    public long getNumTasksCoalesced() {
+        return numTasksCoalesced.sum();
+    }
+
+    public long getNumOverflowsRecovered() {
+        return numOverflowsRecovered.sum();
+    }
+
+    public long getTotalRescanMillis() {
+        return totalRescanMillis.sum();
+    }
+
+    public long getMaxRescanMillis() {
+        return maxRescanMillis.get();
+    }
+
+    public long getBytesCopied() {
+        return bytesCopied.sum();
+    }
+
+    public long getNumDeltaCopies() {
+        return numDeltaCopies.sum();
+    }
+
+    public long getDeltaBytesTransferred() {
+        return deltaBytesTransferred.sum();
+    }
+
+    public long getDeltaBytesSkipped() {
+        return deltaBytesSkipped.sum();
+    }
+
+    public long getNumSkippedIdentical() {
+        return numSkippedIdentical.sum();
+    }
+
+    public long getBytesSkippedIdentical() {
+        return bytesSkippedIdentical.sum();
+    }
+
+    public long getNumHardLinked() {
+        return numHardLinked.sum();
+    }
+
+    public long getBytesHardLinked() {
+        return bytesHardLinked.sum();
+    }
+
+    public long getNumCloned() {
+        return numCloned.sum();
+    }
+
+    public long getBytesCloned() {
+        return bytesCloned.sum();
+    }
+
+    public long getNumEntriesDeleted() {
+        return numEntriesDeleted.sum();
+    }
+
+    public long getNumTasksSpilled() {
+        return numTasksSpilled.sum();
+    }
+
+    public long getNumTasksStale() {
+        return numTasksStale.sum();
+    }
+
+    public long getNumTasksThrottled() {
+        return numTasksThrottled.sum();
+    }
+
+    public long getThrottledMillis() {
+        return throttledNanos.sum() / 1000000;
+    }
+
+    public long getQueueDepth() {
+        return queueDepth;
+    }
+
+    public long getQueueBytes() {
+        return queueBytes;
+    }
+
+    public long getQueueHighWater() {
+        return queueHighWater.get();
+    }
+
+    SyncHistogram.Snapshot getQueueWait() {
+        return queueWait.snapshot();
+    }
+
+    SyncHistogram.Snapshot getQueueWait(SyncTask.LANE lane) {
+        return laneQueueWait[lane.ordinal()].snapshot();
+    }
+
+    SyncHistogram.Snapshot getExecTime() {
+        return execTime.snapshot();
+    }
+
+    SyncHistogram.Snapshot getExecTime(SyncTask.TYPE type) {
+        return typeExecTime[type.ordinal()].snapshot();
     }
 
     public double getRunTime() {
         return (System.currentTimeMillis() - startTime)/1000.0;
     }
 
-    synchronized void setNumTasksQueued(long numTasksQueued) {
-        this.numTasksQueued = numTasksQueued;
+    /**
+     * Count a task going onto the queue, and stamp it so its wait can be measured.
+     */
+    void taskQueued(SyncTask task) {
+        task.setQueuedNanos(System.nanoTime());
+        numTasksQueued[task.getType().ordinal()].increment();
+    }
+
+    /**
+     * Record a task that was taken off the queue at startNanos and has just finished.
+     */
+    void taskCompleted(SyncTask task, long startNanos) {
+        long took = System.nanoTime() - startNanos;
+        execTime.record(took);
+        typeExecTime[task.getType().ordinal()].record(took);
+        queueWait.record(startNanos - task.getQueuedNanos());
+        laneQueueWait[task.getLane().ordinal()].record(startNanos - task.getQueuedNanos());
+        numTasksCompleted[task.getType().ordinal()].increment();
+    }
+
+    void incNumTasksFailed() {
+        numTasksFailed.increment();
+    }
+
+    void incNumTasksSpilled() {
+        numTasksSpilled.increment();
+    }
+
+    void incNumTasksStale() {
+        numTasksStale.increment();
+    }
+
+    void addThrottledNanos(long nanos) {
+        numTasksThrottled.increment();
+        throttledNanos.add(nanos);
+    }
+
+    // Tasks queued (in memory and spilled) and the estimated memory of the ones in memory
+    void setQueueDepth(long depth, long bytes) {
+        queueDepth = depth;
+        queueBytes = bytes;
+        queueHighWater.accumulate(depth);
+    }
+
+    void incNumTasksCoalesced() {
+        numTasksCoalesced.increment();
+    }
+
+    void addOverflowRecovered(long rescanMillis) {
+        numOverflowsRecovered.increment();
+        totalRescanMillis.add(rescanMillis);
+        maxRescanMillis.accumulate(rescanMillis);
+    }
+
+    void addBytesCopied(long bytes) {
+        bytesCopied.add(bytes);
+    }
+
+    void addDeltaCopy(long bytesTransferred, long bytesSkipped) {
+        numDeltaCopies.increment();
+        deltaBytesTransferred.add(bytesTransferred);
+        deltaBytesSkipped.add(bytesSkipped);
     }
 
-    synchronized public void setNumTasksCompleted(long numTasksCompleted) {
-        this.numTasksCompleted = numTasksCompleted;
+    void addSkippedIdentical(long bytes) {
+        numSkippedIdentical.increment();
+        bytesSkippedIdentical.add(bytes);
+    }
+
+    void addHardLinked(long bytes) {
+        numHardLinked.increment();
+        bytesHardLinked.add(bytes);
+    }
+
+    void addEntriesDeleted(long entries) {
+        numEntriesDeleted.add(entries);
+    }
+
+    void addCloned(long bytes) {
+        numCloned.increment();
+        bytesCloned.add(bytes);
     }
 
     public double tasksCompletedPerSec() {
-        if (getRunTime() > 0)
-            return numTasksCompleted/getRunTime();
+        double runTime = getRunTime();
+        if (runTime > 0)
+            return getNumTasksCompleted()/runTime;
         else
             return 0.0;
     }
 
+    private String perType(LongAdder[] adders) {
+        StringBuilder sb = new StringBuilder();
+        for (SyncTask.TYPE type : SyncTask.TYPE.values())
+            sb.append(sb.length() > 0 ? ", " : "").append(type).append("=").append(adders[type.ordinal()].sum());
+        return sb.toString();
+    }
+
+    private String perLane() {
+        StringBuilder sb = new StringBuilder();
+        for (SyncTask.LANE lane : SyncTask.LANE.values())
+            sb.append("Queue wait, ").append(lane).append(" lane (ms): ")
+                    .append(getQueueWait(lane).toMillisString()).append("\n");
+        return sb.toString();
+    }
+
     public String toString() {
 
         return "Statistics:\n" +
                 "\n===================================================================\n" +
-                "Total # of sync tasks queued: " + getNumTasksQueued() + "\n" +
-                "Total # of sync tasks completed: " + getNumTasksCompleted() + "\n" +
+                "Total # of sync tasks queued: " + getNumTasksQueued() + " (" + perType(numTasksQueued) + ")\n" +
+                "Total # of sync tasks completed: " + getNumTasksCompleted() + " (" + perType(numTasksCompleted) + ")\n" +
+                "Total # of sync tasks failed: " + getNumTasksFailed() + "\n" +
                 "Total runtime (s): " + getRunTime() + "\n" +
                 "Tasks completed/s: " + String.format( "%.2f", tasksCompletedPerSec()) + "\n" +
+                "Queue depth/high-water mark: " + getQueueDepth() + "/" + getQueueHighWater() + "\n" +
+                "Queue memory (est. bytes): " + getQueueBytes() + "\n" +
+                "Tasks spilled to disk: " + getNumTasksSpilled() + "\n" +
+                "Queue wait (ms): " + getQueueWait().toMillisString() + "\n" +
+                perLane() +
+                "Execution time (ms): " + getExecTime().toMillisString() + "\n" +
+                "Tasks throttled (total wait ms): " + getNumTasksThrottled() + " (" + getThrottledMillis() + ")\n" +
+                "Scan tasks skipped as stale: " + getNumTasksStale() + "\n" +
+                "Watcher tasks coalesced/cancelled: " + getNumTasksCoalesced() + "\n" +
+                "Watcher overflows recovered: " + getNumOverflowsRecovered() + "\n" +
+                "Overflow rescan time total/max (ms): " + getTotalRescanMillis() + "/" + getMaxRescanMillis() + "\n" +
+                "Bytes copied: " + getBytesCopied() + "\n" +
+                "Delta copies: " + getNumDeltaCopies() + "\n" +
+                "Delta bytes transferred/skipped: " + getDeltaBytesTransferred() + "/" + getDeltaBytesSkipped() + "\n" +
+                "Copies skipped-identical (bytes): " + getNumSkippedIdentical() + " (" + getBytesSkippedIdentical() + ")\n" +
+                "Copies hard-linked (bytes): " + getNumHardLinked() + " (" + getBytesHardLinked() + ")\n" +
+                "Copies cloned (bytes): " + getNumCloned() + " (" + getBytesCloned() + ")\n" +
+                "Entries deleted by RMDIR: " + getNumEntriesDeleted() + "\n" +
                 "===================================================================\n";
     }
 
 }
-
-
@@ -4,38 +4,126 @@ import java.nio.file.Path;
 
 public class SyncTask {
 
-    public enum TYPE { MKDIR, RMDIR, CP, RM };
+    public enum TYPE { MKDIR, RMDIR, CP, RM, MOVE };
 
-    private Path dst;
-    private Path src;
+    // Which lane of the queue a task waits in: changes as they happen, overflow rescans,
+    //  deletions found by a scan, and everything else a scan finds
+    public enum LANE { LIVE, RESCAN, DELETE, SCAN };
+
+    // The src and dst are the same relative path, under two roots of the same group
+    private final SyncPathTable paths;
+    private final int pathId;
+    private final int from;
+    private final int to;
     private TYPE type;
 
-    SyncTask(TYPE type, Path src, Path dst) {
+    // For a MOVE, the path id it's moved from (in the dst root), -1 for any other task
+    private int movedFromId = -1;
+    private long queuedNanos;
+
+    private LANE lane = LANE.SCAN;
+
+    // Bytes to copy as of queueing, 0 if unknown or not a CP
+    private long size;
+
+    // Set by the queue, to keep queue order among tasks it sorts
+    private long order;
+
+    // Set by the queue, its estimate of the memory the task takes while it's in there
+    private long queuedBytes;
+
+    // Where the task is in the journal, -1 if it isn't
+    private long journalSeq = -1;
+
+    // Left unfinished by an earlier run, and queued again from the journal
+    private boolean resumed = false;
+
+    // Its path ids are pinned in the path table until release()
+    private boolean released = false;
+
+    SyncTask(TYPE type, SyncPathTable paths, int pathId, int from, int to) {
 
-        this.src = src;
-        this.dst = dst;
         this.type = type;
+        this.paths = paths;
+        this.pathId = pathId;
+        this.from = from;
+        this.to = to;
+        paths.pin(pathId);
+    }
+
+    // Task from src (under any root) to its counterpart under root to
+    SyncTask(TYPE type, SyncPathTable paths, Path src, int to) {
+
+        this(type, paths, paths.intern(src), paths.rootOf(src), to);
     }
 
     public String toString() {
 
-        return "Type: " + type + ", Src: " + src + ", Dst: " + dst;
+        if (type == TYPE.MOVE)
+            return "Type: " + type + ", From: " + getMovedFrom() + ", Dst: " + getDst() + ", Src: " + getSrc();
+        return "Type: " + type + ", Src: " + getSrc() + ", Dst: " + getDst();
     }
 
     public Path getDst() {
-        return dst;
+        return paths.resolve(pathId, to);
     }
 
-    public void setDst(Path dst) {
-        this.dst = dst;
+    public Path getSrc() {
+        return paths.resolve(pathId, from);
     }
 
-    public Path getSrc() {
-        return src;
+    // Where a MOVE takes the dst from, in the same root
+    public Path getMovedFrom() {
+        return paths.resolve(movedFromId, to);
+    }
+
+    int getMovedFromId() {
+        return movedFromId;
+    }
+
+    void setMovedFromId(int movedFromId) {
+
+        if (movedFromId >= 0)
+            paths.pin(movedFromId);
+        if (this.movedFromId >= 0)
+            paths.unpin(this.movedFromId);
+        this.movedFromId = movedFromId;
+    }
+
+    /**
+     * Done with the task (or dropped), so its path ids needn't be kept for it any more.
+     */
+    synchronized void release() {
+
+        if (released)
+            return;
+        released = true;
+        paths.unpin(pathId);
+        if (movedFromId >= 0)
+            paths.unpin(movedFromId);
+    }
+
+    SyncPathTable getPaths() {
+        return paths;
+    }
+
+    int getPathId() {
+        return pathId;
+    }
+
+    // Index of the src root in the path table
+    int getFrom() {
+        return from;
+    }
+
+    // Index of the dst root in the path table
+    int getTo() {
+        return to;
     }
 
-    public void setSrc(Path src) {
-        this.src = src;
+    // Same for every task writing to the same dst
+    long getDstKey() {
+        return paths.key(pathId, to);
     }
 
     public TYPE getType() {
@@ -45,4 +133,65 @@ public class SyncTask {
     public void setType(TYPE type) {
         this.type = type;
     }
+
+    public LANE getLane() {
+        return lane;
+    }
+
+    public void setLane(LANE lane) {
+        this.lane = lane;
+    }
+
+    // Made by the watcher for a change as it happens, rather than by a scan
+    public boolean isLive() {
+        return lane == LANE.LIVE;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public void setSize(long size) {
+        this.size = size;
+    }
+
+    long getOrder() {
+        return order;
+    }
+
+    void setOrder(long order) {
+        this.order = order;
+    }
+
+    long getQueuedBytes() {
+        return queuedBytes;
+    }
+
+    void setQueuedBytes(long queuedBytes) {
+        this.queuedBytes = queuedBytes;
+    }
+
+    long getJournalSeq() {
+        return journalSeq;
+    }
+
+    void setJournalSeq(long journalSeq) {
+        this.journalSeq = journalSeq;
+    }
+
+    boolean isResumed() {
+        return resumed;
+    }
+
+    void setResumed(boolean resumed) {
+        this.resumed = resumed;
+    }
+
+    public long getQueuedNanos() {
+        return queuedNanos;
+    }
+
+    public void setQueuedNanos(long queuedNanos) {
+        this.queuedNanos = queuedNanos;
+    }
 }
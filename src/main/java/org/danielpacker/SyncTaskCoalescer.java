@@ -0,0 +1,219 @@
+package org.danielpacker;
+
+/**
+ * Sits between the watcher and the task queue, holding each task until its destination
+ * path has been quiet for a configurable window. Repeated tasks for the same destination
+ * collapse into one (e.g. one CP per settled file instead of one per write burst), and
+ * pending tasks are cancelled when the path is deleted before they run
+ * (e.g. CP followed by RM, or MKDIR followed by RMDIR). A pending delete can also be claimed
+ * by the watcher, when the same file turns up under a new name, to be made into a MOVE.
+ */
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.function.Predicate;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+
+class SyncTaskCoalescer {
+
+    private static final Logger log = LogManager.getLogger(SyncTaskCoalescer.class);
+
+    private static class Pending {
+        final SyncTask task;
+        final long lastUpdate;
+
+        Pending(SyncTask task, long lastUpdate) {
+            this.task = task;
+            this.lastUpdate = lastUpdate;
+        }
+    }
+
+    private final Queue<SyncTask> q;
+    private final SyncStats stats;
+    private final long windowMillis;
+
+    // Keyed by destination (SyncTask.getDstKey()), in order of last update (oldest first)
+    private final LinkedHashMap<Long, Pending> pending = new LinkedHashMap<>();
+    private int numDeletes = 0;
+    private ScheduledExecutorService flusher;
+
+    SyncTaskCoalescer(Queue<SyncTask> q, SyncStats stats, long windowMillis) {
+
+        this.q = q;
+        this.stats = stats;
+        this.windowMillis = windowMillis;
+
+        if (windowMillis > 0) {
+            flusher = Executors.newSingleThreadScheduledExecutor();
+            long period = Math.max(windowMillis / 4, 10);
+            flusher.scheduleWithFixedDelay(this::flushSettled, period, period, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Add a task, returning false if it was merged into a task already pending for its destination.
+     */
+    synchronized boolean add(SyncTask task) {
+
+        if (windowMillis <= 0) {
+            enqueue(task);
+            return true;
+        }
+
+        Long key = task.getDstKey();
+        Pending earlier = take(key);
+        boolean merged = false;
+
+        if (earlier != null) {
+            if ((isDelete(earlier.task) || earlier.task.getType() == SyncTask.TYPE.MOVE) && !isDelete(task)) {
+                // Deleted (or moved away) then re-created, that still has to happen first
+                enqueue(earlier.task);
+            } else {
+                log.debug("COALESCED " + earlier.task + " INTO " + task);
+                stats.incNumTasksCoalesced();
+                earlier.task.release();
+                merged = true;
+            }
+        }
+
+        // Re-inserting moves the key to the end, so the map stays in last update order
+        hold(key, new Pending(task, System.currentTimeMillis()));
+        return !merged;
+    }
+
+    private Pending take(Long key) {
+
+        Pending p = pending.remove(key);
+        if (p != null && isDelete(p.task))
+            numDeletes--;
+        return p;
+    }
+
+    private void hold(Long key, Pending p) {
+
+        pending.put(key, p);
+        if (isDelete(p.task))
+            numDeletes++;
+    }
+
+    synchronized boolean hasPendingDeletes() {
+        return numDeletes > 0;
+    }
+
+    /**
+     * Take back the oldest pending RM or RMDIR from root from to root to that matches,
+     * null if there isn't one. The caller takes over from it, e.g. with a MOVE.
+     */
+    synchronized SyncTask claimDelete(SyncPathTable paths, int from, int to, Predicate<SyncTask> matches) {
+
+        if (numDeletes == 0)
+            return null;
+        Iterator<Map.Entry<Long, Pending>> it = pending.entrySet().iterator();
+        while (it.hasNext()) {
+            SyncTask task = it.next().getValue().task;
+            if (isDelete(task) && task.getPaths() == paths && task.getFrom() == from && task.getTo() == to
+                    && matches.test(task)) {
+                it.remove();
+                numDeletes--;
+                return task;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Cancel any pending tasks syncing from a path (by path id and root) or anything
+     * under it, to any other root, returning whether there were any.
+     */
+    synchronized boolean cancel(SyncPathTable paths, int srcId, int srcRoot) {
+
+        boolean cancelled = false;
+        List<SyncTask> unmoved = new ArrayList<>();
+        Iterator<Map.Entry<Long, Pending>> it = pending.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, Pending> e = it.next();
+            SyncTask task = e.getValue().task;
+            if (task.getPaths() == paths && task.getFrom() == srcRoot && paths.isUnder(task.getPathId(), srcId)) {
+                log.debug("CANCELLED " + e.getValue().task);
+                stats.incNumTasksCoalesced();
+                it.remove();
+                if (isDelete(task))
+                    numDeletes--;
+                cancelled = true;
+                // The delete it was made from still has to happen, of a file or a dir as it was
+                if (task.getType() == SyncTask.TYPE.MOVE) {
+                    SyncTask.TYPE type = Files.isDirectory(task.getMovedFrom(), LinkOption.NOFOLLOW_LINKS)
+                            ? SyncTask.TYPE.RMDIR : SyncTask.TYPE.RM;
+                    SyncTask delete = new SyncTask(type, paths, task.getMovedFromId(), srcRoot, task.getTo());
+                    delete.setLane(task.getLane());
+                    unmoved.add(delete);
+                }
+                task.release();
+            }
+        }
+        for (SyncTask delete : unmoved)
+            add(delete);
+        return cancelled;
+    }
+
+    private static boolean isDelete(SyncTask task) {
+        return task.getType() == SyncTask.TYPE.RM || task.getType() == SyncTask.TYPE.RMDIR;
+    }
+
+    private synchronized void flushSettled() {
+
+        long settled = System.currentTimeMillis() - windowMillis;
+        while (!pending.isEmpty()) {
+            Map.Entry<Long, Pending> oldest = pending.entrySet().iterator().next();
+            if (oldest.getValue().lastUpdate > settled)
+                break;
+            flush(oldest.getKey());
+        }
+    }
+
+    // Queue the task pending for a path, after any still pending for its parent dirs (e.g. MKDIR)
+    private void flush(Long key) {
+
+        Pending p = take(key);
+        if (p == null)
+            return;
+
+        SyncPathTable paths = p.task.getPaths();
+        for (int parent = paths.parent(p.task.getPathId()); parent > SyncPathTable.ROOT; parent = paths.parent(parent)) {
+            Long parentKey = paths.key(parent, p.task.getTo());
+            if (pending.containsKey(parentKey))
+                flush(parentKey);
+        }
+
+        enqueue(p.task);
+    }
+
+    private void enqueue(SyncTask task) {
+        stats.taskQueued(task);
+        q.add(task);
+    }
+
+    /**
+     * Queue everything still pending and stop the flusher.
+     */
+    synchronized void stop() {
+
+        while (!pending.isEmpty())
+            flush(pending.keySet().iterator().next());
+
+        if (flusher != null)
+            flusher.shutdownNow();
+    }
+}
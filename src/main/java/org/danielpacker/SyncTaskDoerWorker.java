@@ -9,114 +9,480 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import java.io.*;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.Comparator;
-import java.util.concurrent.BlockingQueue;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.BooleanSupplier;
 import static java.nio.file.StandardCopyOption.*;
 
 
 public class SyncTaskDoerWorker implements Callable<Void> {
 
     private static final Logger log = LogManager.getLogger(SyncTaskDoerWorker.class);
+    private static final long POLL_MILLIS = 100;
     private final SyncStats stats;
-    private final BlockingQueue<SyncTask> q;
+    private final SyncTaskSequencer sequencer;
     private final SyncConfig config;
-    private final Path dir1;
-    private final Path dir2;
+    private final List<Path> roots = new ArrayList<>();
+    private final Map<Path, SyncStateIndex> indexes;
+    private final SyncDeltaCopier deltaCopier;
+    private final SyncCopyEngine copyEngine;
+    private final SyncEchoCache echoes;
+    private final SyncContentHashes hashes;
+    private final SyncHardLinks hardLinks;
+    private final SyncReflink reflink;
+    private final SyncBatchCopier batchCopier;
+    private final SyncTreeDeleter treeDeleter;
+    private final SyncThrottle throttle;
+    private final SyncTaskJournal journal;
+    private final int batchMaxFiles;
 
-    SyncTaskDoerWorker(SyncConfig config, BlockingQueue<SyncTask> q, SyncStats stats) {
+    SyncTaskDoerWorker(SyncConfig config, SyncTaskSequencer sequencer, SyncStats stats,
+                       Map<Path, SyncStateIndex> indexes, SyncEchoCache echoes, SyncContentHashes hashes,
+                       SyncHardLinks hardLinks, SyncBatchCopier batchCopier, SyncTreeDeleter treeDeleter,
+                       SyncThrottle throttle, SyncTaskJournal journal) {
 
-        dir1 = Paths.get(config.getDir1());
-        dir2 = Paths.get(config.getDir2());
-        this.q = q;
+        for (List<String> dirs : config.getGroups().values())
+            for (String dir : dirs)
+                roots.add(Paths.get(dir));
+        this.sequencer = sequencer;
         this.config = config;
         this.stats = stats;
+        this.indexes = indexes;
+        this.echoes = echoes;
+        this.hashes = hashes;
+        this.hardLinks = hardLinks;
+        this.reflink = SyncReflink.create(config, stats);
+        this.batchCopier = batchCopier;
+        this.treeDeleter = treeDeleter;
+        this.throttle = throttle;
+        this.journal = journal;
+        this.batchMaxFiles = config.getBatchMaxFiles();
+        this.deltaCopier = new SyncDeltaCopier(config.getDeltaBlockBytes(), stats);
+        this.copyEngine = SyncCopyEngine.create(config, stats);
     }
 
-    private void doCP(SyncTask cpTask) throws IOException {
-        Files.copy(cpTask.getSrc(), cpTask.getDst(), REPLACE_EXISTING, COPY_ATTRIBUTES);
+    private void doCP(SyncTask task, Path src, Path dst) throws IOException {
+
+        if (config.isSkipIdentical() && identical(task, src, dst))
+            return;
+
+        // Another link to the same file is already over there, or the file system can share the blocks
+        if (hardLinks.link(task, src, dst) || reflink != null && reflink.clone(src, dst))
+            return;
+
+        // Only rewrite what changed in large files that are already there.
+        // This is in place, so unlike the channel engine it isn't atomic,
+        // and not for a dst linked to from other paths, which would change too.
+        if (config.getDeltaThresholdBytes() > 0
+                && Files.isRegularFile(dst)
+                && Files.size(src) >= config.getDeltaThresholdBytes()
+                && !hardLinks.isShared(dst))
+            deltaCopier.copy(src, dst);
+        else
+            copyEngine.copy(src, dst);
+    }
+
+    // Whether dst already has src's contents, in which case only its mtime is brought in line
+    private boolean identical(SyncTask task, Path src, Path dst) throws IOException {
+
+        if (!Files.isRegularFile(dst))
+            return false;
+        BasicFileAttributes srcAttrs = Files.readAttributes(src, BasicFileAttributes.class);
+        BasicFileAttributes dstAttrs = Files.readAttributes(dst, BasicFileAttributes.class);
+        if (srcAttrs.size() != dstAttrs.size())
+            return false;
+
+        SyncPathTable paths = task.getPaths();
+        long srcHash = hashes.hash(paths.key(task.getPathId(), task.getFrom()), src, srcAttrs);
+        if (srcHash != hashes.hash(task.getDstKey(), dst, dstAttrs))
+            return false;
+
+        // Otherwise the next scan would see src as newer again
+        Files.setLastModifiedTime(dst, srcAttrs.lastModifiedTime());
+        hashes.remember(task.getDstKey(), Files.readAttributes(dst, BasicFileAttributes.class), srcHash);
+
+        stats.addSkippedIdentical(srcAttrs.size());
+        log.info("Skipped identical copy: " + src + " -> " + dst);
+        return true;
     }
 
-    private void doRM(SyncTask rmTask) throws IOException {
-        Files.deleteIfExists(rmTask.getDst());
+    private void doRM(Path dst) throws IOException {
+        Files.deleteIfExists(dst);
     }
 
-    private void doMKDIR(SyncTask mkdirTask) throws IOException {
-        if (!Files.exists(mkdirTask.getDst()))
-            Files.createDirectory(mkdirTask.getDst());
+    private void doMKDIR(Path dst) throws IOException {
+        if (!Files.exists(dst))
+            Files.createDirectory(dst);
     }
 
-    private void doRMDIR(SyncTask rmdirTask) throws IOException {
+    /**
+     * A rename within dst, which is all a rename in src takes to bring it in line. The watcher
+     * pairs a file with the delete by size and mtime only, so it's only moved if it really has
+     * the same contents, otherwise the old one is deleted and the new one copied as usual.
+     * A dir that's gone from dst in the meantime is made afresh and its contents rescanned.
+     */
+    private void doMOVE(SyncTask task, Path src, Path from, Path dst) throws IOException {
 
-        Files.walk(rmdirTask.getDst())
-                .sorted(Comparator.reverseOrder())
-                .map(Path::toFile)
-                .peek(path -> log.info("RMDIR recursively deleting: " + path))
-                .forEach(File::delete);
+        BasicFileAttributes srcAttrs;
+        try {
+            srcAttrs = Files.readAttributes(src, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            // Renamed and then deleted, so the delete it was made from is all that's left
+            doRMDIR(from);
+            return;
+        }
+
+        if (!srcAttrs.isDirectory()) {
+            if (!sameContents(task, src, srcAttrs, from)) {
+                doRM(from);
+                doCP(task, src, dst);
+                return;
+            }
+        }
+        else if (!Files.isDirectory(from, LinkOption.NOFOLLOW_LINKS)) {
+            doMKDIR(dst);
+            rescan(task, src);
+            return;
+        }
+        Files.move(from, dst, ATOMIC_MOVE);
+    }
+
+    // Whether from, in dst, is a file with the same contents as src
+    private boolean sameContents(SyncTask task, Path src, BasicFileAttributes srcAttrs, Path from) throws IOException {
+
+        if (!Files.isRegularFile(from, LinkOption.NOFOLLOW_LINKS))
+            return false;
+        BasicFileAttributes fromAttrs = Files.readAttributes(from, BasicFileAttributes.class);
+        if (srcAttrs.size() != fromAttrs.size())
+            return false;
+
+        SyncPathTable paths = task.getPaths();
+        return hashes.hash(paths.key(task.getPathId(), task.getFrom()), src, srcAttrs)
+                == hashes.hash(paths.key(task.getMovedFromId(), task.getTo()), from, fromAttrs);
+    }
+
+    // Queue whatever it takes to bring everything under dir in line, as the watcher does on catching up
+    private void rescan(SyncTask task, Path dir) {
+
+        Queue<SyncTask> rescanTasks = new ConcurrentLinkedQueue<>();
+        new RecursiveScanner(config, task.getPaths(), rescanTasks, stats, indexes).rescan(dir);
+        for (SyncTask t : rescanTasks)
+            sequencer.getQueue().add(t);
+        log.info("Rescanned " + dir + " for a MOVE with nothing to move: " + rescanTasks.size() + " tasks");
+    }
+
+    private void doRMDIR(Path dst) throws IOException {
+        treeDeleter.delete(dst);
     }
 
     // Sanity check any path we're about to operate on and
     //  make sure the root of the path is from the config.
-    private boolean taskPathsInConfig(SyncTask task) {
+    private boolean taskPathsInConfig(Path src, Path dst) {
 
-        boolean inConfig = true;
+        return roots.stream().anyMatch(src::startsWith) && roots.stream().anyMatch(dst::startsWith);
+    }
 
-        if (
-                task.getSrc().toString().indexOf(config.getDir1()) != 0 &&
-                        task.getSrc().toString().indexOf(config.getDir2()) != 0
-                ) return false;
+    /**
+     * Whether a scan task no longer holds, because of changes since it was queued (e.g. handled
+     * by a live task that went ahead of it). Scans only copy from the newest copy, and only
+     * delete what's gone from src, so a CP onto something newer or an RM of something back in
+     * src would undo a newer change. Except for a resumed CP, whose dst may be newer for having
+     * been half written when the last run stopped.
+     */
+    private boolean isStale(SyncTask task, Path src, Path dst) throws IOException {
 
-        if (
-                task.getDst().toString().indexOf(config.getDir1()) != 0 &&
-                        task.getDst().toString().indexOf(config.getDir2()) != 0
-                ) return false;
+        if (task.isLive())
+            return false;
 
-        return true;
+        switch (task.getType()) {
+            case CP:
+                if (!Files.exists(src))
+                    return true;
+                return !task.isResumed() && Files.exists(dst)
+                        && Files.getLastModifiedTime(dst).compareTo(Files.getLastModifiedTime(src)) > 0;
+            case MKDIR:
+                return !Files.isDirectory(src);
+            default:
+                return Files.exists(src);
+        }
     }
 
-     void doTasks(boolean stopWhenEmpty) {
+    private void doTask(SyncTask task) throws IOException, InterruptedException {
+
+        log.info("Doing task: " + task);
+
+        // Paths are only resolved from the task's path id here, once
+        Path src = task.getSrc();
+        Path dst = task.getDst();
+
+        if (!taskPathsInConfig(src, dst)) {
+            log.error("Attempted to modify file dor dir outside config params!");
+            log.error("Offending task: " + task);
+            System.exit(1);
+        }
+
+        if (isStale(task, src, dst)) {
+            log.info("Skipped task overtaken by newer changes: " + task);
+            stats.incNumTasksStale();
+            return;
+        }
+
+        if (throttle.isLimited())
+            throttle.acquire(task.getType() == SyncTask.TYPE.CP ? sizeOf(src) : 0, task.isLive());
+
+        // Attributes of what's about to be synced, taken before in case the src changes meanwhile
+        BasicFileAttributes srcAttrs = null;
+        if (!indexes.isEmpty() && (task.getType() == SyncTask.TYPE.CP || task.getType() == SyncTask.TYPE.MKDIR
+                || task.getType() == SyncTask.TYPE.MOVE))
+            srcAttrs = Files.readAttributes(src, BasicFileAttributes.class);
+
+        // So the watcher knows the events on dst from here on are ours (and on where a MOVE is from)
+        Path movedFrom = task.getType() == SyncTask.TYPE.MOVE ? task.getMovedFrom() : null;
+        long movedFromKey = movedFrom == null ? 0 : task.getPaths().key(task.getMovedFromId(), task.getTo());
+        if (movedFrom != null)
+            echoes.writing(movedFromKey);
+        echoes.writing(task.getDstKey());
+        try {
+            switch (task.getType()) {
+                case CP:
+                    doCP(task, src, dst);
+                    break;
+                case RM:
+                    doRM(dst);
+                    break;
+                case MKDIR:
+                    doMKDIR(dst);
+                    break;
+                case RMDIR:
+                    doRMDIR(dst);
+                    break;
+                case MOVE:
+                    doMOVE(task, src, movedFrom, dst);
+                    break;
+            }
+        } finally {
+            echoes.written(task.getDstKey(), dst);
+            if (movedFrom != null)
+                echoes.written(movedFromKey, movedFrom);
+        }
+
+        recordState(task, dst, srcAttrs);
+    }
+
+    /**
+     * A batch of CPs into one directory. The small files are copied on the batch copier's I/O
+     * threads, all at once, anything else goes through doTask() here. Every task is marked done
+     * and counted on its own, as if it had been taken by itself.
+     */
+    private void doBatch(List<SyncTask> batch) throws InterruptedException {
+
+        long start = System.nanoTime();
+        SyncTask first = batch.get(0);
+        log.info("Doing batch of " + batch.size() + " copies into: " + first.getDst().getParent());
+
+        // Siblings share src and dst dirs, so checking one checks them all
+        if (!taskPathsInConfig(first.getSrc(), first.getDst())) {
+            log.error("Attempted to modify file dor dir outside config params!");
+            log.error("Offending task: " + first);
+            System.exit(1);
+        }
+
+        List<CompletableFuture<Long>> copies = new ArrayList<>(batch.size());
+        List<BasicFileAttributes> srcAttrs = new ArrayList<>(batch.size());
+        List<SyncJfr.TaskEvent> events = new ArrayList<>(batch.size());
+        for (SyncTask task : batch) {
+            events.add(SyncJfr.AVAILABLE ? SyncJfr.beginTask() : null);
+            CompletableFuture<Long> copy = null;
+            BasicFileAttributes attrs = null;
+            try {
+                attrs = readCopyAttributes(task.getSrc());
+                // Identical files are checked (and skipped) the usual way, and so are
+                //  copies overtaken by newer changes, through doTask() like any other
+                if (batchCopier.isSmall(attrs) && !hardLinks.isLinked(task.getSrc())
+                        && !(config.isSkipIdentical() && Files.exists(task.getDst()))
+                        && !isStale(task, task.getSrc(), task.getDst())) {
+                    throttle.acquire(attrs.size(), task.isLive());
+                    echoes.writing(task.getDstKey());
+                    copy = batchCopier.copy(task.getSrc(), task.getDst(), attrs);
+                }
+            } catch (IOException e) {
+                copy = new CompletableFuture<>();
+                copy.completeExceptionally(e);
+            } catch (InterruptedException e) {
+                // Shutting down, let go of the whole batch
+                for (SyncTask t : batch)
+                    sequencer.done(t);
+                throw e;
+            }
+            copies.add(copy);
+            srcAttrs.add(attrs);
+        }
+
+        // The rest of the batch still has to be marked done if we're interrupted
+        boolean interrupted = false;
+        for (int i = 0; i < batch.size(); i++) {
+            SyncTask task = batch.get(i);
+            try {
+                if (copies.get(i) == null) {
+                    doTask(task);
+                }
+                else {
+                    try {
+                        copies.get(i).join();
+                    } finally {
+                        echoes.written(task.getDstKey(), task.getDst());
+                    }
+                    log.debug("Copied {} -> {}", task.getSrc(), task.getDst());
+                    recordState(task, task.getDst(), srcAttrs.get(i));
+                }
+                stats.taskCompleted(task, start);
+                finished(task);
+            } catch (IOException | CompletionException e) {
+                stats.incNumTasksFailed();
+                log.error("File handling exception while doing task!: "
+                        + (e.getCause() != null ? e.getCause().getMessage() : e.getMessage()));
+                log.error("Failed task: " + task);
+                finished(task);
+            } catch (InterruptedException e) {
+                interrupted = true;
+            } finally {
+                if (events.get(i) != null)
+                    SyncJfr.endTask(events.get(i), task);
+                sequencer.done(task);
+            }
+        }
+        if (interrupted)
+            throw new InterruptedException();
+    }
+
+    // Done with, successfully or not, as opposed to interrupted, which is resumed after a restart
+    private void finished(SyncTask task) {
+        if (journal != null)
+            journal.done(task);
+    }
+
+    // Size to charge the throttle for, a missing src fails the task later anyway
+    private static long sizeOf(Path src) {
+        try {
+            return Files.size(src);
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    // Everything a copy needs from src in one read, permissions too where there are any
+    private static BasicFileAttributes readCopyAttributes(Path src) throws IOException {
+        try {
+            return Files.readAttributes(src, PosixFileAttributes.class);
+        } catch (UnsupportedOperationException e) {
+            return Files.readAttributes(src, BasicFileAttributes.class);
+        }
+    }
+
+    // Remember what's now in sync, so the next startup scan can skip it
+    private void recordState(SyncTask task, Path dst, BasicFileAttributes srcAttrs) throws IOException {
+
+        if (indexes.isEmpty())
+            return;
+
+        SyncPathTable paths = task.getPaths();
+        SyncStateIndex srcIndex = indexes.get(paths.getRoot(task.getFrom()));
+        SyncStateIndex dstIndex = indexes.get(paths.getRoot(task.getTo()));
+        String rel = paths.relative(task.getPathId());
+
+        switch (task.getType()) {
+            case CP:
+            case MKDIR:
+                srcIndex.put(rel, srcAttrs);
+                dstIndex.put(rel, Files.readAttributes(dst, BasicFileAttributes.class));
+                break;
+            case RM:
+            case RMDIR:
+                srcIndex.remove(rel);
+                dstIndex.remove(rel);
+                break;
+            case MOVE:
+                String movedFromRel = paths.relative(task.getMovedFromId());
+                srcIndex.remove(movedFromRel);
+                dstIndex.remove(movedFromRel);
+                srcIndex.put(rel, srcAttrs);
+                dstIndex.put(rel, Files.readAttributes(dst, BasicFileAttributes.class));
+                break;
+        }
+
+        // Writing to dst changed its parent's mtime, keep that current too
+        int parent = paths.parent(task.getPathId());
+        if (parent != SyncPathTable.ROOT)
+            dstIndex.put(paths.relative(parent), Files.readAttributes(dst.getParent(), BasicFileAttributes.class));
+    }
+
+    void doTasks(boolean stopWhenEmpty) {
+
+        doTasks(stopWhenEmpty ? () -> false : null);
+    }
+
+    /**
+     * Work on tasks until the queue is empty and producing says no more tasks are coming,
+     * or forever if producing is null. Used to start on a scan's tasks while it's still running.
+     */
+    void doTasks(BooleanSupplier producing) {
 
         // Wrap all the code in try/catch for Interruption/cancellation.
         try {
             while (true) {
 
-                if (stopWhenEmpty && q.isEmpty()) {
+                // Checked before taking, so a task queued just before production ends isn't missed
+                boolean more = producing != null && producing.getAsBoolean();
+
+                // When stopping, don't block, other workers may have taken the last task
+                SyncTask task = sequencer.take(producing == null ? -1 : more ? POLL_MILLIS : 0);
+                if (task == null) {
+                    if (more)
+                        continue;
                     log.debug("returning from stopWhenEmpty mode");
                     return;
                 }
 
-                SyncTask task = q.take();
-                log.info("Doing task: " + task);
-
-                if (!taskPathsInConfig(task)) {
-                    log.error("Attempted to modify file dor dir outside config params!");
-                    log.error("Offending task: " + task);
-                    System.exit(1);
+                // Copies into the same dir that are queued right behind it go in one batch
+                if (batchCopier != null && task.getType() == SyncTask.TYPE.CP) {
+                    List<SyncTask> siblings = sequencer.takeSiblings(task, batchMaxFiles - 1);
+                    if (!siblings.isEmpty()) {
+                        siblings.add(0, task);
+                        doBatch(siblings);
+                        continue;
+                    }
                 }
 
-                switch (task.getType()) {
-                    case CP:
-                        doCP(task);
-                        break;
-                    case RM:
-                        doRM(task);
-                        break;
-                    case MKDIR:
-                        doMKDIR(task);
-                        break;
-                    case RMDIR:
-                        doRMDIR(task);
-                        break;
+                // A failed task shouldn't take the worker down with it
+                long start = System.nanoTime();
+                SyncJfr.TaskEvent event = SyncJfr.AVAILABLE ? SyncJfr.beginTask() : null;
+                try {
+                    doTask(task);
+                    stats.taskCompleted(task, start);
+                    finished(task);
+                } catch (IOException e) {
+                    stats.incNumTasksFailed();
+                    log.error("File handling exception while doing task!: " + e.getMessage());
+                    log.error("Failed task: " + task);
+                    finished(task);
+                } finally {
+                    if (event != null)
+                        SyncJfr.endTask(event, task);
+                    sequencer.done(task);
                 }
-
-                stats.setNumTasksCompleted(stats.getNumTasksCompleted()+1);
             }
-        } catch (IOException e) {
-            log.error("File handling exception while doing task!: " + e.getMessage());
-            log.error(e);
-            return;
         } catch (InterruptedException e) {
             log.debug("SyncTaskDoer thread interrupted. Stopping.");
             Thread.currentThread().interrupt();
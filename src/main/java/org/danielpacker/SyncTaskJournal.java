@@ -0,0 +1,447 @@
+package org.danielpacker;
+
+/**
+ * Write-ahead log of the task queue, so a catch-up interrupted by a crash (or a shutdown)
+ * picks up where it left off instead of starting over. Every task is appended as it's queued
+ * and marked done once a doer has finished with it (done or failed, not interrupted).
+ * Appends only go into a buffer: a writer thread commits whatever has piled up in one write
+ * and one fsync every journal.commit.ms, so the producers and doers never wait for the disk.
+ * Once journal.checkpoint.tasks have been done since the last checkpoint, the log is rewritten
+ * with only the unfinished tasks. Which tasks are done is one bit per task, from the oldest
+ * unfinished one on. The log also records when a startup scan has finished, so a restart in the
+ * middle of its catch-up can resume its tasks rather than scan again.
+ */
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.*;
+
+
+class SyncTaskJournal implements Closeable {
+
+    private static final Logger log = LogManager.getLogger(SyncTaskJournal.class);
+    private static final int MAGIC = 0x4c53_4a4c; // "LSJL"
+    private static final int VERSION = 2;
+    private static final byte OP_ADD = 'A';
+    private static final byte OP_DONE = 'D';
+    private static final byte OP_SCAN_STARTED = 'B';
+    private static final byte OP_SCAN_COMPLETE = 'S';
+
+    // A task as logged, by root paths rather than path ids, which only last as long as the process
+    private static class Record {
+        final SyncTask.TYPE type;
+        final SyncTask.LANE lane;
+        final long size;
+        final String from;
+        final String to;
+        final String rel;
+        final String movedFrom; // "" unless a MOVE
+
+        Record(SyncTask.TYPE type, SyncTask.LANE lane, long size, String from, String to, String rel,
+               String movedFrom) {
+            this.type = type;
+            this.lane = lane;
+            this.size = size;
+            this.from = from;
+            this.to = to;
+            this.rel = rel;
+            this.movedFrom = movedFrom;
+        }
+
+        static Record read(DataInput in) throws IOException {
+            return new Record(SyncTask.TYPE.values()[in.readByte()], SyncTask.LANE.values()[in.readByte()],
+                    in.readLong(), in.readUTF(), in.readUTF(), in.readUTF(), in.readUTF());
+        }
+
+        void write(DataOutput out, long seq) throws IOException {
+            out.writeByte(OP_ADD);
+            out.writeLong(seq);
+            out.writeByte(type.ordinal());
+            out.writeByte(lane.ordinal());
+            out.writeLong(size);
+            out.writeUTF(from);
+            out.writeUTF(to);
+            out.writeUTF(rel);
+            out.writeUTF(movedFrom);
+        }
+    }
+
+    private final Path file;
+    private final long commitMillis;
+    private final long checkpointTasks;
+    private FileChannel channel;
+
+    // Appended since the last commit, guarded by this
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private DataOutputStream pendingOut = new DataOutputStream(pending);
+
+    // Bit i is set once task baseSeq + i is done, guarded by this
+    private BitSet done = new BitSet();
+    private long baseSeq = 0;
+    private long nextSeq = 0;
+    private long doneSinceCheckpoint = 0;
+    private boolean scanComplete = false;
+    private boolean closed = false;
+
+    // Unfinished tasks found on open, in the order they were queued, until resumed
+    private List<Record> unfinished = new ArrayList<>();
+
+    private final Thread writer;
+
+    private SyncTaskJournal(Path file, SyncConfig config) {
+
+        this.file = file;
+        this.commitMillis = config.getJournalCommitMillis();
+        this.checkpointTasks = config.getJournalCheckpointTasks();
+        this.writer = new Thread(this::commitLoop, "SyncTaskJournal");
+        this.writer.setDaemon(true);
+    }
+
+    /**
+     * Load (or create) the journal in dir, and start committing to it.
+     */
+    static SyncTaskJournal open(Path dir, SyncConfig config) throws IOException {
+
+        Files.createDirectories(dir);
+        SyncTaskJournal journal = new SyncTaskJournal(dir.resolve("tasks.journal"), config);
+        journal.load();
+        journal.writer.start();
+        log.info("Task journal " + journal.file + " opened with " + journal.unfinished.size() + " unfinished tasks"
+                + (journal.scanComplete ? ", after a completed scan" : ""));
+        return journal;
+    }
+
+    private void load() throws IOException {
+
+        Map<Long, Record> added = new LinkedHashMap<>();
+        if (Files.exists(file)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                    throw new IOException("Unrecognized task journal: " + file);
+
+                while (true) {
+                    byte op = in.readByte();
+                    if (op == OP_ADD) {
+                        long seq = in.readLong();
+                        added.put(seq, Record.read(in));
+                    }
+                    else if (op == OP_DONE)
+                        added.remove(in.readLong());
+                    else if (op == OP_SCAN_STARTED || op == OP_SCAN_COMPLETE)
+                        scanComplete = op == OP_SCAN_COMPLETE;
+                    else {
+                        // Not something we wrote, nothing after it can be trusted either
+                        log.warn("Task journal " + file + " has an unknown record, ignoring the rest of it");
+                        break;
+                    }
+                }
+            }
+            catch (EOFException e) {
+                // End of log, possibly with a partial record from a crash which is dropped
+            }
+        }
+        unfinished = new ArrayList<>(added.values());
+
+        // Start over with just the unfinished tasks, numbered from 0
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp, WRITE, CREATE, TRUNCATE_EXISTING)) {
+            DataOutputStream data = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(out)));
+            data.writeInt(MAGIC);
+            data.writeInt(VERSION);
+            for (Record record : unfinished)
+                record.write(data, nextSeq++);
+            if (scanComplete)
+                data.writeByte(OP_SCAN_COMPLETE);
+            data.flush();
+            out.force(true);
+        }
+        Files.move(tmp, file, REPLACE_EXISTING, ATOMIC_MOVE);
+        channel = FileChannel.open(file, WRITE, APPEND);
+    }
+
+    /**
+     * Whether the last run was stopped part way through a catch-up whose startup scan had
+     * finished, so everything it had left to do is in here, ready to be resumed.
+     */
+    synchronized boolean isScanResumable() {
+        return scanComplete && !unfinished.isEmpty();
+    }
+
+    /**
+     * Deal with the tasks left unfinished by the last run: temp files their copies left behind
+     * are removed, then they're queued again if requeue, or else dropped (e.g. because a new
+     * scan will find them anyway). Tasks for roots no longer in any group are dropped too.
+     * Returns how many were queued.
+     */
+    int resume(List<SyncPathTable> groups, BlockingQueue<SyncTask> q, boolean requeue) {
+
+        List<Record> records;
+        synchronized (this) {
+            records = unfinished;
+            unfinished = new ArrayList<>();
+        }
+
+        Map<String, SyncPathTable> tables = new HashMap<>();
+        Map<String, Integer> roots = new HashMap<>();
+        for (SyncPathTable paths : groups) {
+            for (int i = 0; i < paths.numRoots(); i++) {
+                tables.put(paths.getRoot(i).toString(), paths);
+                roots.put(paths.getRoot(i).toString(), i);
+            }
+        }
+
+        int queued = 0;
+        for (long seq = 0; seq < records.size(); seq++) {
+            Record record = records.get((int) seq);
+            SyncPathTable paths = tables.get(record.from);
+            if (paths == null || tables.get(record.to) != paths) {
+                done(seq);
+                continue;
+            }
+
+            SyncTask task = new SyncTask(record.type, paths, paths.intern(record.rel),
+                    roots.get(record.from), roots.get(record.to));
+            if (!record.movedFrom.isEmpty())
+                task.setMovedFromId(paths.intern(record.movedFrom));
+            if (task.getType() == SyncTask.TYPE.CP) {
+                try {
+                    Files.deleteIfExists(SyncUtil.tempPath(task.getDst()));
+                } catch (IOException e) {
+                    log.error("Problem removing an unfinished copy: " + e.getMessage());
+                }
+            }
+
+            if (!requeue) {
+                done(seq);
+                task.release();
+                continue;
+            }
+            task.setLane(record.lane);
+            task.setSize(record.size);
+            task.setJournalSeq(seq);
+            task.setResumed(true);
+            q.add(task);
+            queued++;
+        }
+        return queued;
+    }
+
+    /**
+     * Log a task being queued. Tasks already in the journal (resumed ones) are left alone.
+     */
+    synchronized void added(SyncTask task) {
+
+        if (closed || task.getJournalSeq() >= 0)
+            return;
+
+        SyncPathTable paths = task.getPaths();
+        Record record = new Record(task.getType(), task.getLane(), task.getSize(),
+                paths.getRoot(task.getFrom()).toString(), paths.getRoot(task.getTo()).toString(),
+                paths.relative(task.getPathId()),
+                task.getMovedFromId() >= 0 ? paths.relative(task.getMovedFromId()) : "");
+        long seq = nextSeq++;
+        try {
+            record.write(pendingOut, seq);
+        } catch (IOException e) {
+            // Only ever writes to memory
+            throw new UncheckedIOException(e);
+        }
+        task.setJournalSeq(seq);
+        notifyAll();
+    }
+
+    /**
+     * Log a task as finished with, it won't be resumed.
+     */
+    void done(SyncTask task) {
+
+        if (task.getJournalSeq() >= 0)
+            done(task.getJournalSeq());
+    }
+
+    private synchronized void done(long seq) {
+
+        if (closed || seq < baseSeq)
+            return;
+        done.set((int) (seq - baseSeq));
+        writeOp(OP_DONE, seq);
+        doneSinceCheckpoint++;
+    }
+
+    /**
+     * A startup scan is starting (or a resumed one has been taken up again), what an earlier
+     * one found no longer counts as complete.
+     */
+    synchronized void scanStarted() {
+        scanComplete = false;
+        writeOp(OP_SCAN_STARTED, -1);
+    }
+
+    /**
+     * A startup scan has queued everything it found.
+     */
+    synchronized void scanCompleted() {
+        scanComplete = true;
+        writeOp(OP_SCAN_COMPLETE, -1);
+    }
+
+    private void writeOp(byte op, long seq) {
+
+        if (closed)
+            return;
+        try {
+            pendingOut.writeByte(op);
+            if (seq >= 0)
+                pendingOut.writeLong(seq);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        notifyAll();
+    }
+
+    // Group commit: whatever was appended while the last write and fsync went on goes in the next
+    private void commitLoop() {
+
+        try {
+            while (true) {
+                synchronized (this) {
+                    while (pending.size() == 0 && !closed)
+                        wait();
+                    if (closed)
+                        return;
+                }
+                if (commitMillis > 0)
+                    Thread.sleep(commitMillis);
+                commit();
+                if (doneSinceCheckpoint() >= checkpointTasks)
+                    checkpoint();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        catch (IOException e) {
+            log.error("Problem writing the task journal, no longer journaling: " + e.getMessage());
+            synchronized (this) {
+                closed = true;
+            }
+        }
+    }
+
+    private synchronized long doneSinceCheckpoint() {
+        return doneSinceCheckpoint;
+    }
+
+    // Only ever called by one thread at a time: the writer, or close() once the writer has stopped
+    private void commit() throws IOException {
+
+        byte[] bytes;
+        synchronized (this) {
+            bytes = pending.toByteArray();
+            pending = new ByteArrayOutputStream(Math.max(32, bytes.length));
+            pendingOut = new DataOutputStream(pending);
+        }
+        if (bytes.length == 0)
+            return;
+
+        ByteBuffer buf = ByteBuffer.wrap(bytes);
+        while (buf.hasRemaining())
+            channel.write(buf);
+        channel.force(false);
+    }
+
+    /**
+     * Rewrite the log with only the tasks not done, streaming through the old one. Anything
+     * logged meanwhile waits in the buffer, and is committed to the new log after.
+     */
+    private void checkpoint() throws IOException {
+
+        BitSet doneNow;
+        long base;
+        boolean scanned;
+        synchronized (this) {
+            doneNow = (BitSet) done.clone();
+            base = baseSeq;
+            scanned = scanComplete;
+            doneSinceCheckpoint = 0;
+        }
+
+        long kept = 0;
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)));
+             FileChannel out = FileChannel.open(tmp, WRITE, CREATE, TRUNCATE_EXISTING)) {
+            DataOutputStream data = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(out)));
+            data.writeInt(in.readInt());
+            data.writeInt(in.readInt());
+            try {
+                while (true) {
+                    byte op = in.readByte();
+                    if (op == OP_ADD) {
+                        long seq = in.readLong();
+                        Record record = Record.read(in);
+                        if (seq >= base && !doneNow.get((int) (seq - base))) {
+                            record.write(data, seq);
+                            kept++;
+                        }
+                    }
+                    else if (op == OP_DONE)
+                        in.readLong();
+                    else if (op != OP_SCAN_STARTED && op != OP_SCAN_COMPLETE)
+                        break;
+                }
+            }
+            catch (EOFException e) {
+                // Everything committed so far
+            }
+            if (scanned)
+                data.writeByte(OP_SCAN_COMPLETE);
+            data.flush();
+            out.force(true);
+        }
+
+        channel.close();
+        Files.move(tmp, file, REPLACE_EXISTING, ATOMIC_MOVE);
+        channel = FileChannel.open(file, WRITE, APPEND);
+
+        // Done bits below the oldest unfinished task aren't needed anymore
+        synchronized (this) {
+            int first = done.nextClearBit(0);
+            done = done.get(first, Math.max(first, done.length()));
+            baseSeq += first;
+        }
+        log.debug("Checkpointed task journal " + file + " to " + kept + " unfinished tasks");
+    }
+
+    /**
+     * Stop journaling, committing what's left. Unfinished tasks stay in the log to be resumed.
+     */
+    @Override
+    public void close() throws IOException {
+
+        synchronized (this) {
+            if (closed)
+                return;
+            closed = true;
+            notifyAll();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        commit();
+        channel.close();
+    }
+}
@@ -8,88 +8,282 @@ package org.danielpacker;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 
 public class SyncTaskManager {
 
     private static final Logger log = LogManager.getLogger(SyncTaskManager.class);
     private static final SyncStats stats = new SyncStats();
-    private static BlockingQueue<SyncTask> q = new LinkedBlockingQueue<>();
-    private final ScheduledExecutorService checkOverflowPool = Executors.newScheduledThreadPool(1);
+    private final SyncTaskQueue q;
     private final ExecutorService watcherPool = Executors.newSingleThreadExecutor();
-    private final ExecutorService doerPool = Executors.newSingleThreadExecutor();
-    private Future<?> doerFuture;
-    private Future<?> watcherFuture;
+    private final ExecutorService doerPool;
+    private final List<Future<?>> doerFutures = new ArrayList<>();
+    private volatile Future<?> watcherFuture;
+    private volatile SyncWatcherWorker watcher;
+
+    // When the watcher was last seen running, for one replacing it to catch up from
+    private long watcherSeenMillis;
+    private boolean watcherReplaced = false;
+    private Future<?> watcherGivenUp;
+
+    // Periodic checks and chores: the watcher, throttle changes, metrics, the path tables
+    private final ScheduledExecutorService housekeeping = Executors.newScheduledThreadPool(1);
+    private boolean checksStarted = false;
+
     private final SyncConfig config;
-    private static boolean overflowed = false;
+    private final SyncTaskSequencer sequencer;
+    private final Map<Path, SyncStateIndex> indexes = new HashMap<>();
+    private final SyncEchoCache echoes;
+    private final SyncContentHashes hashes;
+    private final SyncHardLinks hardLinks;
+    private final SyncBatchCopier batchCopier;
+    private final SyncTreeDeleter treeDeleter;
+    private final SyncThrottle throttle;
+    private final SyncMetrics metrics;
+    private final SyncTaskJournal journal;
+    private final List<SyncPathTable> groups;
 
     public SyncTaskManager(SyncConfig config) {
 
         this.config = config;
+        this.journal = openJournal(config);
+        this.q = new SyncTaskQueue(config, stats, journal);
+        this.sequencer = new SyncTaskSequencer(q);
+        this.echoes = new SyncEchoCache(config);
+        this.hashes = new SyncContentHashes(config);
+        this.hardLinks = new SyncHardLinks(config, stats);
+        this.batchCopier = config.getBatchSmallBytes() > 0 ? new SyncBatchCopier(config, stats) : null;
+        this.treeDeleter = new SyncTreeDeleter(config, stats);
+        this.throttle = new SyncThrottle(config, stats);
+        this.groups = SyncPathTable.forConfig(config);
+        this.metrics = new SyncMetrics(config, stats, echoes, throttle, () -> {
+            SyncWatcherWorker w = watcher;
+            return w == null ? 0 : w.numWatched();
+        }, () -> groups.stream().mapToInt(SyncPathTable::size).sum());
+        this.doerPool = Executors.newFixedThreadPool(config.getDoerThreads());
+
+        if (config.getStateDir() != null) {
+            try {
+                for (SyncPathTable group : groups)
+                    for (int i = 0; i < group.numRoots(); i++)
+                        indexes.put(group.getRoot(i), SyncStateIndex.open(Paths.get(config.getStateDir()), group.getRoot(i)));
+            } catch (IOException e) {
+                log.error("Problem loading state index, continuing without it: " + e.getMessage());
+                indexes.clear();
+            }
+        }
+    }
+
+    private static SyncTaskJournal openJournal(SyncConfig config) {
+
+        if (config.getJournalDir() == null)
+            return null;
+        try {
+            return SyncTaskJournal.open(Paths.get(config.getJournalDir()), config);
+        } catch (IOException e) {
+            log.error("Problem opening the task journal, continuing without it: " + e.getMessage());
+            return null;
+        }
     }
 
     public void shutDown() {
 
         log.info("Task manager is shutting down watch and doer workers...");
+        housekeeping.shutdownNow();
         if (watcherFuture != null)
             watcherFuture.cancel(true);
 
         watcherPool.shutdownNow();
 
-        if (doerFuture != null)
+        for (Future<?> doerFuture : doerFutures)
             doerFuture.cancel(true);
 
         doerPool.shutdownNow();
+        if (batchCopier != null)
+            batchCopier.shutDown();
+        treeDeleter.shutDown();
+        metrics.stop();
+
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                log.error("Problem closing the task journal: " + e.getMessage());
+            }
+        }
+
+        for (SyncStateIndex index : indexes.values()) {
+            try {
+                index.close();
+            } catch (IOException e) {
+                log.error("Problem saving state index: " + e.getMessage());
+            }
+        }
         log.info("Shutdown complete.");
     }
 
     // Run in main thread for initial scan/catchup mode.
     public void recursiveScan() {
 
-        // Scan for file changes
-        new RecursiveScanner(config, q, stats).doScan();
+        // Perform catch-up file operations on all doer threads, starting on
+        //  tasks as soon as the scan finds them rather than after it's done.
+        AtomicBoolean scanning = new AtomicBoolean(true);
+        List<Future<?>> catchUp = new ArrayList<>();
+        for (int i = 0; i < config.getDoerThreads(); i++) {
+            SyncTaskDoerWorker doer = new SyncTaskDoerWorker(config, sequencer, stats, indexes, echoes, hashes, hardLinks, batchCopier, treeDeleter, throttle, journal);
+            catchUp.add(doerPool.submit(() -> doer.doTasks(scanning::get)));
+        }
+
+        // Tasks the last run didn't get to. If its scan had finished (and skipping the scan is
+        //  on), they're all that's left to catch up on, otherwise they're dropped and the scan
+        //  finds them again. Only one start skips the scan: once resumed, the next one scans.
+        boolean resuming = journal != null && config.isJournalSkipScan() && journal.isScanResumable();
+        int resumed = journal == null ? 0 : journal.resume(groups, q, resuming);
+        if (resuming)
+            journal.scanStarted();
+
+        // Scan for file changes, one group after another, all feeding the same doers.
+        //  A watcher already running gets each dir registered as it's scanned.
+        boolean watching = watcherFuture != null && !watcherFuture.isDone();
+        try {
+            if (resuming) {
+                log.info("Resumed " + resumed + " unfinished tasks from the journal, skipping the startup scan");
+            }
+            else {
+                if (journal != null)
+                    journal.scanStarted();
+                for (SyncPathTable group : groups) {
+                    RecursiveScanner scanner = new RecursiveScanner(config, group, q, stats, indexes);
+                    if (watching)
+                        scanner.setWatcher(watcher);
+                    scanner.doScan();
+                }
+                if (journal != null)
+                    journal.scanCompleted();
+            }
+        } finally {
+            scanning.set(false);
+        }
 
-        // Perform catch-up file operations
-        new SyncTaskDoerWorker(config, q, stats).doTasks(true);
+        try {
+            for (Future<?> f : catchUp)
+                f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            log.error("Catch-up worker stopped unexpectedly: " + e.getCause());
+        }
     }
 
-    public void startWatcherWorker() {
+    public synchronized void startWatcherWorker() {
 
-        if (watcherFuture == null || watcherFuture.isDone() || watcherFuture.isCancelled())
-            watcherFuture = watcherPool.submit(new SyncWatcherWorker(config, q, true, stats));
+        if (watcherFuture == null || watcherFuture.isDone())
+            startWatcher(System.currentTimeMillis());
 
-        // Periodically check for an OVERFLOW exception in the watcher
-        checkForOverflow();
+        // Started along with the first watcher, and kept going for any that replace it
+        if (!checksStarted) {
+            checksStarted = true;
+            checkForOverflow();
+            checkForThrottleChange();
+            sweepPaths();
+        }
+    }
+
+    private void startWatcher(long startMillis) {
+
+        watcher = new SyncWatcherWorker(config, q, true, stats, indexes, echoes, startMillis);
+        watcherFuture = watcherPool.submit(watcher);
+        watcherSeenMillis = startMillis;
     }
 
     public void startDoerWorker() {
 
-        if (doerFuture == null || doerFuture.isDone() || doerFuture.isCancelled())
-            doerFuture = doerPool.submit(new SyncTaskDoerWorker(config, q, stats));
+        // Replace any workers that have stopped, up to the configured pool size
+        doerFutures.removeIf(Future::isDone);
+        while (doerFutures.size() < config.getDoerThreads())
+            doerFutures.add(doerPool.submit(new SyncTaskDoerWorker(config, sequencer, stats, indexes, echoes, hashes, hardLinks, batchCopier, treeDeleter, throttle, journal)));
+    }
+
+    /**
+     * Publish live metrics over JMX and/or HTTP (see metrics.* in the config).
+     */
+    public void startMetrics() {
+
+        metrics.start();
+        housekeeping.scheduleAtFixedRate(metrics::sample, 5000, 5000, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Change the doers' rate limits while running, 0 for no limit.
+     */
+    public void setThrottle(long bytesPerSec, long opsPerSec) {
+
+        config.setThrottleBytesPerSec(bytesPerSec);
+        config.setThrottleOpsPerSec(opsPerSec);
+        throttle.setRates(bytesPerSec, opsPerSec);
+    }
+
+    // Pick up throttle settings edited in the config file
+    private void checkForThrottleChange() {
+
+        housekeeping.scheduleWithFixedDelay(() -> {
+            if (config.reloadThrottle())
+                throttle.setRates(config.getThrottleBytesPerSec(), config.getThrottleOpsPerSec());
+        }, 5000, 5000, TimeUnit.MILLISECONDS);
+    }
+
+    // Drop the paths deleted (released by the watcher) from the path tables
+    private void sweepPaths() {
+
+        housekeeping.scheduleWithFixedDelay(() -> {
+            for (SyncPathTable group : groups)
+                group.sweep();
+        }, SyncPathTable.RELEASE_GRACE_MILLIS, SyncPathTable.RELEASE_GRACE_MILLIS, TimeUnit.MILLISECONDS);
     }
 
     public void checkForOverflow() {
 
-        // periodically check whether the watcher thread experienced an OVERFLOW
-        // (also display stats)
-        checkOverflowPool.scheduleAtFixedRate(()->{
-            log.debug("checking if watcher future done");
-            if (watcherFuture.isDone())
-                log.debug("watcher future is done");
-                try {
-                    watcherFuture.get();
-                } catch (ExecutionException e) {
-                    Throwable ex = e.getCause();
-                    if (ex instanceof SyncOverflowException) {
-                        log.info("Sync OVERFLOW captured in task mgr. Not yet implemented.");
-                        this.overflowed = true;
-                        System.exit(1);
-                    }
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                }
-        }, 0, 5000, TimeUnit.MILLISECONDS);
+        // Overflows are recovered inside the watcher by rescanning the overflowed
+        // directory, so just periodically check that the watcher thread is still alive.
+        housekeeping.scheduleWithFixedDelay(this::checkWatcher, 0, 5000, TimeUnit.MILLISECONDS);
+    }
+
+    // A watcher that failed is reported once and replaced by one that catches up on the dirs
+    //  changed since it was last seen running, unless that one fails too before it's seen
+    //  running. One that stopped by itself has said why already.
+    private synchronized void checkWatcher() {
+
+        if (!watcherFuture.isDone()) {
+            watcherSeenMillis = System.currentTimeMillis();
+            watcherReplaced = false;
+            return;
+        }
+        if (watcherFuture.isCancelled() || watcherFuture == watcherGivenUp)
+            return;
+        try {
+            watcherFuture.get();
+        } catch (ExecutionException e) {
+            if (watcherReplaced) {
+                log.error("Watcher stopped unexpectedly again right after starting, no longer watching: " + e.getCause());
+                watcherGivenUp = watcherFuture;
+            }
+            else {
+                log.error("Watcher stopped unexpectedly, starting a new one: " + e.getCause());
+                startWatcher(watcherSeenMillis);
+                watcherReplaced = true;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 
     void displayStats() {
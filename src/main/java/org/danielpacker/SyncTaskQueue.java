@@ -0,0 +1,600 @@
+package org.danielpacker;
+
+/**
+ * The shared task queue, bounded both by number of tasks and by an estimate of the memory
+ * they take. When it's full, producers (the scanner and the watcher) block until the doers
+ * make room. If a spill directory is configured, a producer that's been blocked for a while
+ * appends to an on-disk overflow segment instead, which is read back in order as the doers
+ * catch up. Once anything has spilled, new tasks go after it on disk to keep queue order.
+ * Tasks wait in one lane per SyncTask.LANE, and the doers take from the lanes in weighted
+ * round robin (queue.weight.*), so with the default weights a live task (from the watcher)
+ * at the head of its lane is taken within the next two, however big the scan backlog is.
+ * Live tasks never spill, and the other lanes being full doesn't block them. In the scan
+ * lane, MKDIRs go first and then copies in order of size (by powers of 2, in queue order
+ * within each), so lots of small files get synced before a few big ones hold up the doers.
+ * A task taken ahead of its turn this way can't go before the MKDIR (or MOVE) of a dir it's
+ * in that was queued earlier in another lane: that one is taken first, e.g. a live copy
+ * into a dir a rescan has yet to make.
+ */
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+
+class SyncTaskQueue extends AbstractQueue<SyncTask> implements BlockingQueue<SyncTask> {
+
+    private static final Logger log = LogManager.getLogger(SyncTaskQueue.class);
+
+    private final int capacity;
+    private final long maxBytes;
+    private final long blockMillis;
+    private final Path spillDir;
+    private final SyncStats stats;
+    private final SyncTaskJournal journal;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+
+    private static class Lane {
+
+        final Queue<SyncTask> tasks;
+        final int weight;
+
+        // Smooth weighted round robin: the non-empty lane with the most credit goes next
+        int credit = 0;
+
+        Lane(Queue<SyncTask> tasks, int weight) {
+            this.tasks = tasks;
+            this.weight = weight;
+        }
+    }
+
+    // MKDIRs first (parents before children), then CPs by size class, queue order within each
+    private static final Comparator<SyncTask> SMALL_FIRST = Comparator
+            .comparingInt((SyncTask t) -> t.getType() == SyncTask.TYPE.CP ? 64 - Long.numberOfLeadingZeros(t.getSize()) : -1)
+            .thenComparingLong(SyncTask::getOrder);
+
+    private final Lane[] lanes = new Lane[SyncTask.LANE.values().length];
+
+    // The MKDIRs and MOVEs in memory by destination (SyncTask.getDstKey()), the earliest of each
+    private final Map<Long, SyncTask> makers = new HashMap<>();
+    private final Lane live;
+    private int numBulk = 0;
+    private long memoryBytes = 0;
+    private long nextOrder = 0;
+
+    // Picked by peek(), so the following poll() takes from the same lane
+    private Lane next;
+
+    // Overflow segment, tasks are appended to out and read back in order from in
+    private Path spillFile;
+    private DataOutputStream spillOut;
+    private DataInputStream spillIn;
+    private long numSpilled = 0;
+
+    SyncTaskQueue(SyncConfig config, SyncStats stats) {
+        this(config, stats, null);
+    }
+
+    /**
+     * With a journal, every task is logged to it as it's queued (in memory or spilled).
+     */
+    SyncTaskQueue(SyncConfig config, SyncStats stats, SyncTaskJournal journal) {
+
+        this.journal = journal;
+        this.capacity = config.getQueueCapacity();
+        this.maxBytes = config.getQueueMaxBytes();
+        this.blockMillis = config.getQueueBlockMillis();
+        this.spillDir = config.getQueueSpillDir() == null ? null : Paths.get(config.getQueueSpillDir());
+        this.stats = stats;
+
+        for (SyncTask.LANE lane : SyncTask.LANE.values()) {
+            Queue<SyncTask> tasks = lane == SyncTask.LANE.SCAN
+                    ? new PriorityQueue<>(SMALL_FIRST) : new ArrayDeque<>();
+            lanes[lane.ordinal()] = new Lane(tasks, config.getLaneWeight(lane));
+        }
+        live = lanes[SyncTask.LANE.LIVE.ordinal()];
+    }
+
+    // Rough heap footprint of a task and its slot in a lane
+    private static final int TASK_BYTES = 88;
+
+    // Rough heap footprint of a queued task, including the path table nodes that are only
+    //  kept for it (e.g. the name of a file that's yet to be copied). Dirs shared with
+    //  other tasks or watched anyway aren't counted.
+    static long estimateBytes(SyncTask task) {
+
+        SyncPathTable paths = task.getPaths();
+        long bytes = TASK_BYTES + paths.bytesHeldBy(task.getPathId());
+        if (task.getMovedFromId() >= 0)
+            bytes += paths.bytesHeldBy(task.getMovedFromId());
+        return bytes;
+    }
+
+    // The live lane is bounded on its own, the rest together. The memory estimate is for all.
+    private boolean memoryFull(boolean isLive, long bytes) {
+        int size = isLive ? live.tasks.size() : numBulk;
+        return size >= capacity || (memoryBytes + bytes > maxBytes && size > 0);
+    }
+
+    // Nothing in any lane or on disk, with the lock held
+    private boolean nothingQueued() {
+        return live.tasks.isEmpty() && numBulk == 0 && numSpilled == 0;
+    }
+
+    /**
+     * Queue a task, blocking while the queue is full. With a spill directory the task
+     * spills to disk after blocking for the configured time instead.
+     */
+    @Override
+    public void put(SyncTask task) throws InterruptedException {
+
+        long bytes = estimateBytes(task);
+        lock.lockInterruptibly();
+        try {
+            if (spillDir == null || task.isLive()) {
+                while (memoryFull(task.isLive(), bytes))
+                    notFull.await();
+            }
+            else if (!awaitRoom(task, bytes, TimeUnit.MILLISECONDS.toNanos(blockMillis))) {
+                spill(task);
+                return;
+            }
+            enqueue(task, bytes);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Same as put(), so producers get backpressure through the plain Queue interface.
+     * A producer interrupted while blocked still gets its task queued, over capacity,
+     * rather than losing it.
+     */
+    @Override
+    public boolean add(SyncTask task) {
+
+        try {
+            put(task);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            lock.lock();
+            try {
+                if (numSpilled > 0 && !task.isLive())
+                    spill(task);
+                else
+                    enqueue(task, estimateBytes(task));
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean offer(SyncTask task) {
+
+        long bytes = estimateBytes(task);
+        lock.lock();
+        try {
+            if ((numSpilled == 0 || task.isLive()) && !memoryFull(task.isLive(), bytes)) {
+                enqueue(task, bytes);
+                return true;
+            }
+            if (spillDir != null) {
+                overflow(task, bytes);
+                return true;
+            }
+            return false;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean offer(SyncTask task, long timeout, TimeUnit unit) throws InterruptedException {
+
+        long bytes = estimateBytes(task);
+        lock.lockInterruptibly();
+        try {
+            if (awaitRoom(task, bytes, unit.toNanos(timeout))) {
+                enqueue(task, bytes);
+                return true;
+            }
+            if (spillDir != null) {
+                overflow(task, bytes);
+                return true;
+            }
+            return false;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    // Wait up to nanos for room in memory, with nothing spilled ahead of us (in the bulk lane)
+    private boolean awaitRoom(SyncTask task, long bytes, long nanos) throws InterruptedException {
+
+        while ((numSpilled > 0 && !task.isLive()) || memoryFull(task.isLive(), bytes)) {
+            if (nanos <= 0)
+                return false;
+            nanos = notFull.awaitNanos(nanos);
+        }
+        return true;
+    }
+
+    private void enqueue(SyncTask task, long bytes) {
+
+        if (journal != null)
+            journal.added(task);
+        addToLane(task, bytes);
+        notEmpty.signal();
+        depthChanged();
+    }
+
+    private void addToLane(SyncTask task, long bytes) {
+
+        task.setOrder(nextOrder++);
+        task.setQueuedBytes(bytes);
+        lanes[task.getLane().ordinal()].tasks.add(task);
+        if (isMaker(task))
+            makers.putIfAbsent(task.getDstKey(), task);
+        if (!task.isLive())
+            numBulk++;
+        memoryBytes += bytes;
+    }
+
+    // No room in memory: live tasks go over capacity rather than behind the bulk ones on disk
+    private void overflow(SyncTask task, long bytes) {
+
+        if (task.isLive())
+            enqueue(task, bytes);
+        else
+            spill(task);
+    }
+
+    private void spill(SyncTask task) {
+
+        if (journal != null)
+            journal.added(task);
+        try {
+            if (spillOut == null) {
+                Files.createDirectories(spillDir);
+                spillFile = Files.createTempFile(spillDir, "tasks-", ".spill");
+                spillOut = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(spillFile)));
+                spillIn = new DataInputStream(new BufferedInputStream(Files.newInputStream(spillFile)));
+                log.debug("Task queue full, spilling to " + spillFile);
+            }
+            // The task's path ids stay pinned while it's spilled, so they're still valid when it's read back
+            spillOut.writeByte(task.getType().ordinal());
+            spillOut.writeInt(task.getPaths().getIndex());
+            spillOut.writeInt(task.getPathId());
+            spillOut.writeByte(task.getFrom());
+            spillOut.writeByte(task.getTo());
+            spillOut.writeByte(task.getLane().ordinal());
+            spillOut.writeLong(task.getSize());
+            spillOut.writeLong(task.getQueuedNanos());
+            spillOut.writeLong(task.getJournalSeq());
+            spillOut.writeBoolean(task.isResumed());
+            spillOut.writeInt(task.getMovedFromId());
+            numSpilled++;
+            stats.incNumTasksSpilled();
+            notEmpty.signal();
+            depthChanged();
+        }
+        catch (IOException e) {
+            // Better over capacity than losing the task
+            log.error("Problem spilling task queue to disk, keeping task in memory: " + e.getMessage());
+            enqueue(task, estimateBytes(task));
+        }
+    }
+
+    // Move spilled tasks back into memory, in order, while there's room
+    private void unspill() {
+
+        if (numSpilled == 0)
+            return;
+
+        try {
+            spillOut.flush();
+            while (numSpilled > 0 && !memoryFull(false, 0)) {
+                SyncTask task = new SyncTask(SyncTask.TYPE.values()[spillIn.readByte()],
+                        SyncPathTable.byIndex(spillIn.readInt()), spillIn.readInt(),
+                        spillIn.readUnsignedByte(), spillIn.readUnsignedByte());
+                task.setLane(SyncTask.LANE.values()[spillIn.readByte()]);
+                task.setSize(spillIn.readLong());
+                task.setQueuedNanos(spillIn.readLong());
+                task.setJournalSeq(spillIn.readLong());
+                task.setResumed(spillIn.readBoolean());
+                task.setMovedFromId(spillIn.readInt());
+                // Pinned again by the task read back, so no longer for the one spilled
+                task.getPaths().unpin(task.getPathId());
+                if (task.getMovedFromId() >= 0)
+                    task.getPaths().unpin(task.getMovedFromId());
+                addToLane(task, estimateBytes(task));
+                numSpilled--;
+            }
+            if (numSpilled == 0)
+                closeSpill();
+        }
+        catch (IOException e) {
+            log.error("Problem reading spilled tasks, " + numSpilled + " tasks lost: " + e.getMessage());
+            numSpilled = 0;
+            closeSpill();
+        }
+    }
+
+    private void closeSpill() {
+
+        try {
+            spillOut.close();
+            spillIn.close();
+            Files.deleteIfExists(spillFile);
+        }
+        catch (IOException e) {
+            log.error("Problem removing spill file " + spillFile + ": " + e.getMessage());
+        }
+        spillOut = null;
+        spillIn = null;
+        spillFile = null;
+    }
+
+    // The lane to take from next, null if there's nothing in memory
+    private Lane nextLane() {
+
+        if (numBulk == 0)
+            unspill();
+        if (next != null && !next.tasks.isEmpty())
+            return next;
+
+        Lane best = null;
+        int total = 0;
+        for (Lane lane : lanes) {
+            if (lane.tasks.isEmpty())
+                continue;
+            lane.credit += lane.weight;
+            total += lane.weight;
+            if (best == null || lane.credit > best.credit)
+                best = lane;
+        }
+        if (best != null)
+            best.credit -= total;
+        next = best;
+        return best;
+    }
+
+    private static boolean isMaker(SyncTask task) {
+        return task.getType() == SyncTask.TYPE.MKDIR || task.getType() == SyncTask.TYPE.MOVE;
+    }
+
+    /**
+     * The task to take next from lane: its head, unless a dir the head is in has a MKDIR or
+     * MOVE queued before it in another lane, in which case the outermost of those.
+     */
+    private SyncTask headOf(Lane lane) {
+
+        SyncTask head = lane.tasks.peek();
+        if (makers.isEmpty())
+            return head;
+        SyncPathTable paths = head.getPaths();
+        SyncTask first = head;
+        for (int parent = paths.parent(head.getPathId()); parent > SyncPathTable.ROOT; parent = paths.parent(parent)) {
+            SyncTask maker = makers.get(paths.key(parent, head.getTo()));
+            if (maker != null && maker.getOrder() < head.getOrder())
+                first = maker;
+        }
+        return first;
+    }
+
+    private SyncTask dequeue() {
+
+        Lane lane = nextLane();
+        if (lane == null)
+            return null;
+        SyncTask task = headOf(lane);
+        if (task == lane.tasks.peek()) {
+            lane.tasks.poll();
+        }
+        else {
+            lane = lanes[task.getLane().ordinal()];
+            lane.tasks.remove(task);
+        }
+        if (isMaker(task))
+            makers.remove(task.getDstKey(), task);
+        next = null;
+        // An idle lane doesn't save up credit
+        if (lane.tasks.isEmpty())
+            lane.credit = 0;
+        if (!task.isLive())
+            numBulk--;
+        memoryBytes -= task.getQueuedBytes();
+        unspill();
+        notFull.signalAll();
+        depthChanged();
+        return task;
+    }
+
+    private void depthChanged() {
+        stats.setQueueDepth(live.tasks.size() + numBulk + numSpilled, memoryBytes);
+    }
+
+    @Override
+    public SyncTask take() throws InterruptedException {
+
+        lock.lockInterruptibly();
+        try {
+            while (nothingQueued())
+                notEmpty.await();
+            return dequeue();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public SyncTask poll(long timeout, TimeUnit unit) throws InterruptedException {
+
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (nothingQueued()) {
+                if (nanos <= 0)
+                    return null;
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return dequeue();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait up to timeout for something to be queued (forever if negative), without taking it.
+     * Returns whether there is, though another consumer may have taken it by the time it's polled.
+     */
+    boolean awaitTask(long timeout, TimeUnit unit) throws InterruptedException {
+
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (nothingQueued()) {
+                if (timeout < 0)
+                    notEmpty.await();
+                else if (nanos <= 0)
+                    return false;
+                else
+                    nanos = notEmpty.awaitNanos(nanos);
+            }
+            return true;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public SyncTask poll() {
+
+        lock.lock();
+        try {
+            return dequeue();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public SyncTask peek() {
+
+        lock.lock();
+        try {
+            Lane lane = nextLane();
+            return lane == null ? null : headOf(lane);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Take the next task only if it's accepted, atomically, so it can't change in between
+     * (e.g. a smaller file arriving in the scan lane).
+     */
+    SyncTask pollIf(Predicate<SyncTask> accept) {
+
+        lock.lock();
+        try {
+            Lane lane = nextLane();
+            if (lane == null || !accept.test(headOf(lane)))
+                return null;
+            return dequeue();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+
+        lock.lock();
+        try {
+            return (int) Math.min(Integer.MAX_VALUE, live.tasks.size() + numBulk + numSpilled);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+
+        lock.lock();
+        try {
+            return spillDir != null ? Integer.MAX_VALUE : Math.max(0, capacity - numBulk);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Iterates over a copy of the tasks in memory, not the spilled ones. Only for debugging.
+     */
+    @Override
+    public Iterator<SyncTask> iterator() {
+
+        lock.lock();
+        try {
+            List<SyncTask> tasks = new ArrayList<>();
+            for (Lane lane : lanes)
+                tasks.addAll(lane.tasks);
+            return tasks.iterator();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int drainTo(Collection<? super SyncTask> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super SyncTask> c, int maxElements) {
+
+        lock.lock();
+        try {
+            int n = 0;
+            SyncTask task;
+            while (n < maxElements && (task = dequeue()) != null) {
+                c.add(task);
+                n++;
+            }
+            return n;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package org.danielpacker;
+
+/**
+ * Hands out tasks from the shared queue to a pool of doer workers.
+ * Tasks on unrelated paths run in parallel, but a task touching the same path
+ * (or a parent/child of a path) as an earlier task waits for it to finish,
+ * so queue order is kept for e.g. MKDIR-before-CP and CP-before-RM.
+ */
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+class SyncTaskSequencer {
+
+    private final SyncTaskQueue q;
+
+    // Taking from the queue and registering as pending must be atomic, otherwise
+    //  two workers could register their tasks out of queue order. Never held while
+    //  waiting for a task, so a worker taking siblings isn't held up by an idle one.
+    private final ReentrantLock takeLock = new ReentrantLock();
+
+    // Tasks handed out but not yet done, in queue order. One per worker, or a batch of up
+    //  to batch.max.files for a worker copying siblings.
+    private final List<SyncTask> pending = new ArrayList<>();
+
+    SyncTaskSequencer(SyncTaskQueue q) {
+
+        this.q = q;
+    }
+
+    BlockingQueue<SyncTask> getQueue() {
+        return q;
+    }
+
+    /**
+     * Take the next task, blocking until one is available (or returning null
+     * if the queue is empty and wait is false), then block until no earlier
+     * conflicting task is still running.
+     */
+    SyncTask take(boolean wait) throws InterruptedException {
+
+        return wait ? take(-1) : take(0);
+    }
+
+    /**
+     * Same as take(), but waits at most timeoutMillis for a task to arrive (forever if negative).
+     */
+    SyncTask take(long timeoutMillis) throws InterruptedException {
+
+        SyncTask task = null;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(timeoutMillis, 0));
+
+        // Wait for a task without the lock, then take it with the lock (if no one beat us to it)
+        while (task == null) {
+            long nanos = timeoutMillis < 0 ? -1 : Math.max(deadline - System.nanoTime(), 0);
+            if (!q.awaitTask(nanos, TimeUnit.NANOSECONDS))
+                return null;
+
+            takeLock.lockInterruptibly();
+            try {
+                task = q.poll();
+                if (task != null) {
+                    synchronized (this) {
+                        pending.add(task);
+                    }
+                }
+            }
+            finally {
+                takeLock.unlock();
+            }
+        }
+
+        synchronized (this) {
+            try {
+                while (hasEarlierConflict(task))
+                    wait();
+            }
+            catch (InterruptedException e) {
+                done(task);
+                throw e;
+            }
+        }
+
+        return task;
+    }
+
+    /**
+     * After take() returned first (a CP), take up to max more CPs into the same directory that
+     * are next in the queue and free to run now, e.g. to copy a dir full of small files at once.
+     * Stops at the first task that isn't one, so queue order is kept. Each returned task has to
+     * be done() like any other.
+     */
+    List<SyncTask> takeSiblings(SyncTask first, int max) throws InterruptedException {
+
+        List<SyncTask> siblings = new ArrayList<>();
+        SyncPathTable paths = first.getPaths();
+        int parent = paths.parent(first.getPathId());
+
+        takeLock.lockInterruptibly();
+        try {
+            while (siblings.size() < max) {
+                SyncTask next = q.pollIf(t -> t.getType() == SyncTask.TYPE.CP && t.getPaths() == paths
+                        && t.getFrom() == first.getFrom() && t.getTo() == first.getTo()
+                        && paths.parent(t.getPathId()) == parent && isFree(t));
+                if (next == null)
+                    break;
+                synchronized (this) {
+                    pending.add(next);
+                }
+                siblings.add(next);
+            }
+        }
+        finally {
+            takeLock.unlock();
+        }
+        return siblings;
+    }
+
+    /**
+     * Mark a task returned by take() as finished, releasing any tasks waiting on it.
+     */
+    synchronized void done(SyncTask task) {
+
+        for (int i = 0; i < pending.size(); i++) {
+            if (pending.get(i) == task) {
+                pending.remove(i);
+                break;
+            }
+        }
+        task.release();
+        notifyAll();
+    }
+
+    synchronized boolean isIdle() {
+        return pending.isEmpty() && q.isEmpty();
+    }
+
+    // Whether a task not yet pending could run now
+    private synchronized boolean isFree(SyncTask task) {
+        return !hasEarlierConflict(task);
+    }
+
+    private boolean hasEarlierConflict(SyncTask task) {
+
+        for (SyncTask earlier : pending) {
+            if (earlier == task)
+                return false;
+            if (conflicts(earlier, task))
+                return true;
+        }
+        return false;
+    }
+
+    static boolean conflicts(SyncTask a, SyncTask b) {
+
+        // A task's src and dst are the same relative path, so comparing the path ids will do,
+        //  as long as one of them writes to a root the other touches. Copies of one file
+        //  to several replicas can run at once. A MOVE also touches the path it moves from.
+        if (a.getPaths() == b.getPaths())
+            return (a.getTo() == b.getFrom() || a.getTo() == b.getTo() || b.getTo() == a.getFrom())
+                    && (related(a, a.getPathId(), b) || a.getMovedFromId() >= 0 && related(a, a.getMovedFromId(), b));
+
+        return related(a.getSrc(), b.getSrc()) || related(a.getSrc(), b.getDst())
+                || related(a.getDst(), b.getSrc()) || related(a.getDst(), b.getDst());
+    }
+
+    // Whether path id (of task a) is related to either path of b, a MOVE touching two
+    private static boolean related(SyncTask a, int id, SyncTask b) {
+
+        SyncPathTable paths = a.getPaths();
+        return paths.related(id, b.getPathId()) || b.getMovedFromId() >= 0 && paths.related(id, b.getMovedFromId());
+    }
+
+    // Same path, or one is an ancestor of the other
+    private static boolean related(Path p1, Path p2) {
+        return p1.startsWith(p2) || p2.startsWith(p1);
+    }
+}
@@ -0,0 +1,124 @@
+package org.danielpacker;
+
+/**
+ * Rate limit shared by all the doers, as two token buckets: bytes copied per second and
+ * tasks done per second (throttle.bytes.per.sec and throttle.ops.per.sec, 0 for no limit).
+ * Each bucket holds up to one second's worth, so short bursts go through at full speed.
+ * Live (watcher) tasks go first: while one of them is waiting for tokens, scan tasks wait
+ * behind it. The rates can be changed at any time, taking effect for the next acquire().
+ */
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.concurrent.TimeUnit;
+
+
+class SyncThrottle {
+
+    private static final Logger log = LogManager.getLogger(SyncThrottle.class);
+
+    private static class Bucket {
+
+        long perSec;
+        double tokens;
+        long lastNanos = System.nanoTime();
+
+        void refill(long now) {
+            tokens = Math.min(perSec, tokens + (now - lastNanos) * perSec / 1e9);
+            lastNanos = now;
+        }
+
+        // Nanos until the bucket is out of debt, 0 if it can be taken from now
+        long waitNanos() {
+            return perSec <= 0 || tokens >= 0 ? 0 : (long) Math.ceil(-tokens * 1e9 / perSec);
+        }
+    }
+
+    private final Bucket bytes = new Bucket();
+    private final Bucket ops = new Bucket();
+    private final SyncStats stats;
+    private int liveWaiting = 0;
+
+    // Whether either rate is set, checked without the lock so unthrottled doers never contend
+    private volatile boolean limited = false;
+
+    SyncThrottle(SyncConfig config, SyncStats stats) {
+
+        this.stats = stats;
+        setRates(config.getThrottleBytesPerSec(), config.getThrottleOpsPerSec());
+    }
+
+    synchronized void setRates(long bytesPerSec, long opsPerSec) {
+
+        if (bytesPerSec == bytes.perSec && opsPerSec == ops.perSec)
+            return;
+
+        long now = System.nanoTime();
+        bytes.refill(now);
+        ops.refill(now);
+        bytes.perSec = Math.max(0, bytesPerSec);
+        ops.perSec = Math.max(0, opsPerSec);
+        // Start full, and don't keep a debt run up at a lower rate
+        bytes.tokens = bytes.perSec;
+        ops.tokens = ops.perSec;
+        limited = bytes.perSec > 0 || ops.perSec > 0;
+        notifyAll();
+
+        log.info("Throttle set to " + (bytesPerSec > 0 ? bytesPerSec + " bytes/s" : "unlimited bytes/s")
+                + ", " + (opsPerSec > 0 ? opsPerSec + " ops/s" : "unlimited ops/s"));
+    }
+
+    boolean isLimited() {
+        return limited;
+    }
+
+    synchronized long getBytesPerSec() {
+        return bytes.perSec;
+    }
+
+    synchronized long getOpsPerSec() {
+        return ops.perSec;
+    }
+
+    /**
+     * Wait until one task of numBytes may go ahead, then take its tokens.
+     * A task bigger than a whole second's worth goes once the buckets are full, leaving them in
+     * debt for the ones after it, so the average rate holds for any size of file.
+     */
+    void acquire(long numBytes, boolean live) throws InterruptedException {
+
+        if (!limited)
+            return;
+
+        long start = System.nanoTime();
+        synchronized (this) {
+            if (live)
+                liveWaiting++;
+            try {
+                while (true) {
+                    long now = System.nanoTime();
+                    bytes.refill(now);
+                    ops.refill(now);
+                    long wait = Math.max(bytes.waitNanos(), ops.waitNanos());
+                    if (wait == 0 && (live || liveWaiting == 0))
+                        break;
+                    // Scan tasks behind a live one get woken when it's through
+                    TimeUnit.NANOSECONDS.timedWait(this, wait > 0 ? wait : TimeUnit.MILLISECONDS.toNanos(10));
+                }
+                if (bytes.perSec > 0)
+                    bytes.tokens -= numBytes;
+                if (ops.perSec > 0)
+                    ops.tokens -= 1;
+            }
+            finally {
+                if (live && --liveWaiting == 0)
+                    notifyAll();
+            }
+        }
+
+        long waited = System.nanoTime() - start;
+        if (waited > TimeUnit.MILLISECONDS.toNanos(1))
+            stats.addThrottledNanos(waited);
+    }
+}
@@ -0,0 +1,206 @@
+package org.danielpacker;
+
+/**
+ * Deletes a whole directory tree for RMDIR tasks, bottom-up, on a fork/join pool of
+ * rmdir.threads threads shared by the doers. Each dir's listing is streamed rather than
+ * collected, and its files are unlinked as it goes, in batches that are forked off to run in
+ * parallel, a few at a time, so memory stays bounded however many entries a dir has.
+ * Sub-directories are deleted in parallel too, each one once it's been emptied.
+ * Entries are deleted with a single remove() each (java.io.File.delete), and only one that
+ * won't go is looked at further: a dir to recurse into, or a failure. Failures don't stop
+ * the rest from being deleted, they're counted and the first few reported once it's done.
+ */
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+class SyncTreeDeleter {
+
+    private static final Logger log = LogManager.getLogger(SyncTreeDeleter.class);
+
+    // Entries unlinked per forked batch, and failures kept to report
+    private static final int BATCH_ENTRIES = 1024;
+    private static final int MAX_REPORTED = 10;
+
+    private final ForkJoinPool pool;
+    private final SyncStats stats;
+
+    // What couldn't be deleted in one delete()
+    private static class Failures {
+        final AtomicLong count = new AtomicLong();
+        final Queue<String> reported = new ConcurrentLinkedQueue<>();
+
+        void add(Path path, IOException e) {
+            if (count.incrementAndGet() <= MAX_REPORTED)
+                reported.add(path + " (" + e + ")");
+        }
+    }
+
+    SyncTreeDeleter(SyncConfig config, SyncStats stats) {
+
+        this.pool = new ForkJoinPool(config.getRmdirThreads());
+        this.stats = stats;
+    }
+
+    /**
+     * Delete dir and everything under it (or just the file, if it isn't a dir), returning the
+     * number of entries deleted. Already gone is nothing to do. If anything couldn't be
+     * deleted, the rest still is and an IOException says what wasn't.
+     */
+    long delete(Path dir) throws IOException {
+
+        Failures failures = new Failures();
+        long deleted;
+        if (Files.isDirectory(dir, LinkOption.NOFOLLOW_LINKS))
+            deleted = pool.invoke(new DeleteDir(dir, failures));
+        else
+            deleted = Files.deleteIfExists(dir) ? 1 : 0;
+
+        stats.addEntriesDeleted(deleted);
+        log.info("RMDIR deleted " + deleted + " entries under " + dir);
+
+        if (failures.count.get() > 0) {
+            for (String failure : failures.reported)
+                log.error("RMDIR couldn't delete " + failure);
+            throw new IOException("Couldn't delete " + failures.count.get() + " entries under " + dir);
+        }
+        return deleted;
+    }
+
+    void shutDown() {
+        pool.shutdownNow();
+    }
+
+    // Empties a dir, then deletes it
+    private static class DeleteDir extends RecursiveTask<Long> {
+
+        private final Path dir;
+        private final Failures failures;
+
+        DeleteDir(Path dir, Failures failures) {
+            this.dir = dir;
+            this.failures = failures;
+        }
+
+        @Override
+        protected Long compute() {
+
+            long failedBefore = failures.count.get();
+            long deleted = 0;
+            // Listing outruns unlinking, so only so many batches are left waiting at once
+            int maxForked = 2 * getPool().getParallelism();
+            Deque<ForkJoinTask<Long>> forked = new ArrayDeque<>();
+            List<Path> batch = new ArrayList<>();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+                for (Path entry : entries) {
+                    batch.add(entry);
+                    if (batch.size() == BATCH_ENTRIES) {
+                        if (forked.size() >= maxForked)
+                            deleted += forked.poll().join();
+                        forked.add(new Unlink(batch, failures).fork());
+                        batch = new ArrayList<>();
+                    }
+                }
+            }
+            catch (NoSuchFileException e) {
+                return 0L;
+            }
+            catch (IOException e) {
+                failures.add(dir, e);
+            }
+
+            // The last (or only) batch is done here rather than forked
+            deleted += unlink(batch, failures);
+            for (ForkJoinTask<Long> task : forked)
+                deleted += task.join();
+
+            try {
+                Files.delete(dir);
+                deleted++;
+            }
+            catch (NoSuchFileException e) {
+                // Someone else got to it
+            }
+            catch (DirectoryNotEmptyException e) {
+                // Already reported as whatever under it couldn't be deleted
+                if (failures.count.get() == failedBefore)
+                    failures.add(dir, e);
+            }
+            catch (IOException e) {
+                failures.add(dir, e);
+            }
+            return deleted;
+        }
+    }
+
+    // Unlinks a batch of entries from one dir
+    private static class Unlink extends RecursiveTask<Long> {
+
+        private final List<Path> batch;
+        private final Failures failures;
+
+        Unlink(List<Path> batch, Failures failures) {
+            this.batch = batch;
+            this.failures = failures;
+        }
+
+        @Override
+        protected Long compute() {
+            return unlink(batch, failures);
+        }
+    }
+
+    // Delete each entry, recursing (in parallel) into the dirs that aren't empty
+    private static long unlink(List<Path> batch, Failures failures) {
+
+        long deleted = 0;
+        List<DeleteDir> subdirs = null;
+        for (Path entry : batch) {
+            // remove(), an unlink or an rmdir of an empty dir, without a stat first
+            if (entry.toFile().delete()) {
+                deleted++;
+            }
+            else if (Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+                if (subdirs == null)
+                    subdirs = new ArrayList<>();
+                subdirs.add(new DeleteDir(entry, failures));
+            }
+            else {
+                // Failed, or just gone, this says which
+                try {
+                    if (Files.deleteIfExists(entry))
+                        deleted++;
+                }
+                catch (IOException e) {
+                    failures.add(entry, e);
+                }
+            }
+        }
+
+        if (subdirs != null) {
+            ForkJoinTask.invokeAll(subdirs);
+            for (DeleteDir subdir : subdirs)
+                deleted += subdir.join();
+        }
+        return deleted;
+    }
+}
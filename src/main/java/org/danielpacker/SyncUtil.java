@@ -6,21 +6,26 @@ import java.nio.file.Paths;
 
 public class SyncUtil {
 
-    static Path srcTodestPath(Path p, Path src, Path dst) {
+    static Path normalizePath(Path p, Path base) {
 
-        String norm = p.toString().substring(src.toString().length());
+        String norm = p.toString().substring(base.toString().length());
         if (norm.indexOf(File.separator)==0)
             norm = norm.substring(1);
-        norm = dst + File.separator + norm;
         return Paths.get(norm);
     }
 
-    static Path normalizePath(Path p, Path base) {
+    private static final String TEMP_PREFIX = ".lightsync.";
+    private static final String TEMP_SUFFIX = ".tmp";
 
-        String norm = p.toString().substring(base.toString().length());
-        if (norm.indexOf(File.separator)==0)
-            norm = norm.substring(1);
-        return Paths.get(norm);
+    // Where a copy engine writes a file before renaming it into place
+    static Path tempPath(Path dst) {
+        return dst.resolveSibling(TEMP_PREFIX + dst.getFileName() + TEMP_SUFFIX);
+    }
+
+    // Temp files are ours, and never synced
+    static boolean isTempFile(Path p) {
+        String name = p.getFileName().toString();
+        return name.startsWith(TEMP_PREFIX) && name.endsWith(TEMP_SUFFIX);
     }
 
     enum OS { WINDOWS, MAC, LINUX, UNIX, SOLARIS, UNKNOWN };
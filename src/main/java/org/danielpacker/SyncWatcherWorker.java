@@ -5,7 +5,6 @@ package org.danielpacker;
  * along with a bunch of logic for queing tasks based on incoming events.
  */
 
-import com.sun.nio.file.SensitivityWatchEventModifier;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import java.nio.file.*;
@@ -16,6 +15,10 @@ import java.io.*;
 import java.util.*;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 
 public class SyncWatcherWorker implements Callable<Void> {
@@ -23,47 +26,48 @@ public class SyncWatcherWorker implements Callable<Void> {
     private static final Logger log = LogManager.getLogger(SyncWatcherWorker.class);
     private final SyncStats stats;
     private final SyncConfig config;
-    private WatchService watcher = null;
-    private final Map<WatchKey,Path> keys;
+    private SyncEventSource source = null;
     private final boolean recursive;
-    private boolean trace = false;
-    private final Path dir1;
-    private final Path dir2;
     private final BlockingQueue<SyncTask> q;
-    private final Map<Path, Integer> ignoreNextCreate = new HashMap<>();
-    private final Map<Path, Integer> ignoreNextModify = new HashMap<>();
-    private final Map<Path, Integer> ignoreNextDelete = new HashMap<>();
+    private final SyncEchoCache echoes;
+    private final Map<Path, SyncStateIndex> indexes;
+    private final SyncTaskCoalescer coalescer;
+    private final List<SyncPathTable> groups;
 
-    @SuppressWarnings("unchecked")
-    static <T> WatchEvent<T> cast(WatchEvent<?> event) {
-        return (WatchEvent<T>)event;
-    }
+    // Path ids of the dirs registered so far, per group and root
+    private final Map<SyncPathTable, BitSet[]> registered = new HashMap<>();
+    private final AtomicBoolean registerFailed = new AtomicBoolean(false);
+    private Thread registrar;
 
-    /**
-     * Register the given directory with the WatchService
-     */
-    private void register(Path dir) throws IOException {
-        WatchKey key = dir.register(watcher,
-                new WatchEvent.Kind[] {ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY},
-                SensitivityWatchEventModifier.HIGH);
-
-        log.debug("Registered to watch " + dir);
-        if (trace) {
-            Path prev = keys.get(key);
-            if (prev == null) {
-                log.debug("Registered to watch: " + dir);
-            } else {
-                if (!dir.equals(prev)) {
-                    log.debug("Updated registration: " + prev + " -> " + dir);
-                }
-            }
+    // Dirs for the registrar to go through again once it's done with the trees, e.g. after an overflow
+    private final BlockingQueue<Path> toRegister = new LinkedBlockingQueue<>();
+
+    // File keys (inodes) of the registered dirs by path key, to tell a dir that was moved
+    // once its old path is gone and can't be read any more
+    private final Map<Long, Object> dirKeys = new ConcurrentHashMap<>();
+
+    // Those of dirs just deleted, oldest first, kept for as long as their RMDIR may be pending
+    private final LinkedHashMap<Long, DeletedDir> deletedDirs = new LinkedHashMap<>();
+    private final long keepDeletedMillis;
+
+    private static class DeletedDir {
+
+        final Object fileKey;
+        final long millis;
+
+        DeletedDir(Object fileKey, long millis) {
+            this.fileKey = fileKey;
+            this.millis = millis;
         }
-        keys.put(key, dir);
     }
 
+    // When watching started (or the watcher this one replaces was last seen running),
+    //  anything under a dir registered later may have changed since
+    private final long startMillis;
+
     /**
      * Register the given directory, and all its sub-directories, with the
-     * WatchService.
+     * event source.
      */
     private void registerAll(final Path start) throws IOException {
         // register directory and sub-directories
@@ -78,27 +82,288 @@ public class SyncWatcherWorker implements Callable<Void> {
         });
     }
 
+    // Set (or with isSet false, clear) whether dir is registered, returning whether it was before.
+    //  A registered dir's path id is pinned, as the event source finds the dir by it.
+    private boolean markRegistered(Path dir, boolean isSet) {
+
+        SyncPathTable paths = groupOf(dir);
+        if (paths == null)
+            return false;
+        int root = paths.rootOf(dir);
+        BitSet[] roots = registered.computeIfAbsent(paths, p -> new BitSet[p.numRoots()]);
+        if (roots[root] == null)
+            roots[root] = new BitSet();
+        int id = paths.intern(dir);
+        boolean was = roots[root].get(id);
+        roots[root].set(id, isSet);
+        if (isSet && !was)
+            paths.pin(id);
+        else if (was && !isSet)
+            paths.unpin(id);
+        return was;
+    }
+
+    private synchronized boolean isRegistered(SyncPathTable paths, int id, int root) {
+
+        BitSet[] roots = registered.get(paths);
+        return roots != null && roots[root] != null && roots[root].get(id);
+    }
+
+    // Always registers, e.g. a dir that was just created (maybe again, after being deleted)
+    private synchronized void register(Path dir) throws IOException {
+
+        markRegistered(dir, true);
+        source.register(dir);
+        rememberKey(dir);
+    }
+
     /**
-     * Creates a WatchService and registers the given directory
+     * A deleted dir isn't watched any more, nor is anything under it, so they're no longer
+     * registered and their file keys are dropped. The dir's own is kept a little longer
+     * (a couple of coalesce windows) in case it turns up again under a new name.
      */
-    SyncWatcherWorker(SyncConfig config, BlockingQueue<SyncTask> q, boolean recursive, SyncStats stats) {
+    private synchronized void unregister(SyncPathTable paths, int id, int root) {
+
+        BitSet[] roots = registered.get(paths);
+        if (roots == null || roots[root] == null || !roots[root].get(id))
+            return;
+
+        BitSet bits = roots[root];
+        for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1)) {
+            if (i != id && paths.isUnder(i, id)) {
+                bits.clear(i);
+                dirKeys.remove(paths.key(i, root));
+                paths.unpin(i);
+            }
+        }
+        bits.clear(id);
+
+        long now = System.currentTimeMillis();
+        Iterator<DeletedDir> it = deletedDirs.values().iterator();
+        while (it.hasNext() && it.next().millis < now - keepDeletedMillis)
+            it.remove();
+        Object fileKey = dirKeys.remove(paths.key(id, root));
+        if (fileKey != null && keepDeletedMillis > 0)
+            deletedDirs.put(paths.key(id, root), new DeletedDir(fileKey, now));
+        paths.unpin(id);
+    }
+
+    private void rememberKey(Path dir) {
+
+        SyncPathTable paths = groupOf(dir);
+        if (paths == null)
+            return;
+        try {
+            Object fileKey = Files.readAttributes(dir, BasicFileAttributes.class, NOFOLLOW_LINKS).fileKey();
+            if (fileKey != null)
+                dirKeys.put(paths.key(paths.intern(dir), paths.rootOf(dir)), fileKey);
+        } catch (IOException e) {
+            log.debug("Problem reading the file key of " + dir + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Register dir unless it already is, returning whether it was newly registered. Whoever
+     * registers a dir this way goes on to list it, which sees everything in it up to then,
+     * while the watch catches what changes after. So the registrar and the startup scan can
+     * each skip what the other one got to first, and nothing is missed in between.
+     */
+    synchronized boolean registerOnce(Path dir) {
+
+        if (source == null || !recursive || markRegistered(dir, true))
+            return false;
+        try {
+            source.register(dir);
+            rememberKey(dir);
+            return true;
+        }
+        catch (NoSuchFileException e) {
+            markRegistered(dir, false);
+            return false;
+        }
+        catch (IOException e) {
+            markRegistered(dir, false);
+            // Likely the same for every dir after it (e.g. out of watches), so only say it once
+            if (registerFailed.compareAndSet(false, true))
+                log.error("Problem registering dirs to watch: " + e.getMessage());
+            else
+                log.debug("Problem registering " + dir + " to watch: " + e.getMessage());
+            return false;
+        }
+    }
+
+    int numWatched() {
+        SyncEventSource source = this.source;
+        return source == null ? 0 : source.numWatched();
+    }
+
+    // A sub-directory and when it was last modified, for ordering registration
+    private static class Subdir {
+
+        final Path path;
+        final long mtime;
+
+        Subdir(Path path, long mtime) {
+            this.path = path;
+            this.mtime = mtime;
+        }
+    }
+
+    private static void addSubdirs(Path dir, List<Subdir> subdirs) {
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path path : stream) {
+                try {
+                    BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class, NOFOLLOW_LINKS);
+                    if (attrs.isDirectory())
+                        subdirs.add(new Subdir(path, attrs.lastModifiedTime().toMillis()));
+                } catch (IOException e) {
+                    // Gone since listed
+                }
+            }
+        }
+        catch (IOException e) {
+            log.debug("Problem listing " + dir + " to register: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Register everything under the roots in the background, so events are captured from the
+     * start instead of after minutes of registering a huge tree. Goes breadth first, one level
+     * at a time with the most recently modified dirs first, as they're the likeliest to change.
+     * Dirs that a scan registers first are skipped along with their subtree, which the scan
+     * registers as it goes.
+     */
+    private void registerTrees() {
+
+        long start = System.currentTimeMillis();
+        long count = 0;
+
+        List<Subdir> level = new ArrayList<>();
+        for (SyncPathTable group : groups)
+            for (int i = 0; i < group.numRoots(); i++)
+                addSubdirs(group.getRoot(i), level);
+
+        while (!level.isEmpty()) {
+            level.sort((a, b) -> Long.compare(b.mtime, a.mtime));
+            List<Subdir> next = new ArrayList<>();
+            for (Subdir dir : level) {
+                if (Thread.currentThread().isInterrupted())
+                    return;
+                if (registerOnce(dir.path)) {
+                    count++;
+                    catchUp(dir.path);
+                    addSubdirs(dir.path, next);
+                }
+            }
+            level = next;
+        }
+
+        log.info("Registered " + count + " dirs to watch in the background in "
+                + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    // The registrar thread: the trees, then whatever's handed to it after
+    private void registerInBackground() {
+
+        registerTrees();
+        try {
+            while (!Thread.currentThread().isInterrupted())
+                registerMissing(toRegister.take());
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Register every dir under start that isn't yet (e.g. made during an overflow, whose
+     * events were lost), catching up on each one like the trees.
+     */
+    private void registerMissing(Path start) {
+
+        long count = 0;
+        Deque<Path> dirs = new ArrayDeque<>();
+        dirs.push(start);
+        while (!dirs.isEmpty()) {
+            if (Thread.currentThread().isInterrupted())
+                return;
+            Path dir = dirs.pop();
+            if (registerOnce(dir)) {
+                count++;
+                catchUp(dir);
+            }
+            List<Subdir> subdirs = new ArrayList<>();
+            addSubdirs(dir, subdirs);
+            for (Subdir subdir : subdirs)
+                dirs.push(subdir.path);
+        }
+        log.debug("Registered " + count + " more dirs under " + start);
+    }
+
+    /**
+     * Events in a dir before it's registered are never seen, which a startup scan makes up
+     * for, but the watcher may be running without one. So a dir whose entries changed since
+     * watching started (by its mtime, with a second of slack for coarse timestamps) has its
+     * entries compared with its counterparts, once all of them are registered. Only its own
+     * entries, its sub-directories are caught up on as they're registered in turn.
+     */
+    private void catchUp(Path dir) {
+
+        SyncPathTable paths = groupOf(dir);
+        int id = paths.intern(dir);
+        boolean changed = false;
+        for (int i = 0; i < paths.numRoots(); i++) {
+            BasicFileAttributes attrs;
+            try {
+                attrs = Files.readAttributes(paths.resolve(id, i), BasicFileAttributes.class, NOFOLLOW_LINKS);
+            } catch (IOException e) {
+                // Missing from this root
+                continue;
+            }
+            if (!attrs.isDirectory())
+                continue;
+            changed |= attrs.lastModifiedTime().toMillis() >= startMillis - 1000;
+            // Caught up on when the last of them is registered
+            if (!isRegistered(paths, id, i))
+                return;
+        }
+        if (!changed)
+            return;
+
+        Queue<SyncTask> rescanTasks = new ConcurrentLinkedQueue<>();
+        new RecursiveScanner(config, paths, rescanTasks, stats, indexes).rescanEntries(dir);
+        for (SyncTask task : rescanTasks)
+            q.add(task);
+        log.debug("Caught up on " + dir + " after registering it: " + rescanTasks.size() + " tasks");
+    }
+
+    /**
+     * Creates the event source and registers the roots of every sync group.
+     * Their sub-directories are registered in the background once it's running.
+     */
+    SyncWatcherWorker(SyncConfig config, BlockingQueue<SyncTask> q, boolean recursive, SyncStats stats,
+                      Map<Path, SyncStateIndex> indexes, SyncEchoCache echoes, long startMillis) {
         this.config = config;
+        this.startMillis = startMillis;
+        this.echoes = echoes;
+        this.indexes = indexes;
         this.q = q;
-        dir1 = Paths.get(config.getDir1());
-        dir2 = Paths.get(config.getDir2());
-        this.keys = new HashMap<>();
         this.recursive = recursive;
-        Path[] dirs = { dir1, dir2 };
         this.stats = stats;
+        this.groups = SyncPathTable.forConfig(config);
+        this.coalescer = new SyncTaskCoalescer(q, stats, config.getCoalesceWindowMillis());
+        this.keepDeletedMillis = 2 * config.getCoalesceWindowMillis();
 
         try {
-            this.watcher = FileSystems.getDefault().newWatchService();
-
-            for (Path dir : dirs) {
-                if (recursive) {
-                    log.info("Recursively Watching " + dir + " for changes...");
-                    registerAll(dir);
-                } else {
+            this.source = SyncEventSource.create(config, groups);
+
+            for (SyncPathTable group : groups) {
+                for (int i = 0; i < group.numRoots(); i++) {
+                    Path dir = group.getRoot(i);
+                    // With recursive, the rest is registered in the background once running
+                    if (recursive)
+                        log.info("Recursively Watching " + dir + " for changes...");
                     register(dir);
                 }
             }
@@ -107,143 +372,261 @@ public class SyncWatcherWorker implements Callable<Void> {
             log.error("IO exception while registering watchers: " + e.getMessage());
             log.error("Stacktrace:", e);
         }
+    }
 
-        // enable trace after initial registration
-        this.trace = true;
+    // The sync group path is in, null if none
+    private SyncPathTable groupOf(Path path) {
+
+        for (SyncPathTable group : groups)
+            if (group.rootOf(path) >= 0)
+                return group;
+        return null;
     }
 
-    private boolean taskIsNeeded(String eventType, Path path, Path equivPath) {
+    private boolean taskIsNeeded(WatchEvent.Kind<?> kind, Path path, long key) {
 
-        // Ignore this path until another task acts on it
-        if (eventType.equals("ENTRY_CREATE")) {
+        // Unless it might be the new name of a file just deleted (i.e. a rename), the modify follows
+        if (kind == ENTRY_CREATE && SyncUtil.getOS() == SyncUtil.OS.LINUX && !Files.isDirectory(path)
+                && !coalescer.hasPendingDeletes()) {
+            log.debug("IGNORED (ALWAYS) CREATE ON LINUX FILES for path: " + path);
+            return false;
+        }
 
-            if (SyncUtil.getOS() == SyncUtil.OS.LINUX
-                    && !Files.isDirectory(path)) {
-                log.debug("IGNORED (ALWAYS) CREATE ON LINUX FILES for path: " + path);
-                return false;
-            }
+        // Caused by one of our own tasks writing this path
+        if (echoes.isEcho(key, path, kind)) {
+            log.debug("IGNORED ECHO " + kind.name() + " FOR path: " + path);
+            return false;
+        }
+        return true;
+    }
 
-            if (ignoreNextCreate.getOrDefault(path, 0) > 0) {
-                ignoreNextCreate.put(path, ignoreNextCreate.get(path) - 1);
-                log.debug("IGNORED SUBSEQUENT CREATE FOR path: " + path);
-                return false;
-            } else {
-                log.debug("WILL IGNORE SUBSEQUENT CREATE FOR equivPath: " + equivPath);
-                ignoreNextCreate.put(equivPath, 1);
-            }
+    // Whether a file is already the same in another dir (size and mtime), e.g. a late echo
+    private static boolean inSync(BasicFileAttributes attrs, Path equivPath) throws IOException {
+
+        if (!Files.isRegularFile(equivPath))
+            return false;
+        BasicFileAttributes equivAttrs = Files.readAttributes(equivPath, BasicFileAttributes.class);
+        return attrs.size() == equivAttrs.size()
+                && attrs.lastModifiedTime().toMillis() == equivAttrs.lastModifiedTime().toMillis();
+    }
+
+    /**
+     * Recover from an OVERFLOW (lost events) by rescanning the directory whose key
+     * overflowed, queueing whatever tasks the lost events would have produced.
+     * Sub-directories made in the meantime are left to the registrar.
+     */
+    private void recoverOverflow(Path dir) {
+
+        long start = System.currentTimeMillis();
+
+        Queue<SyncTask> rescanTasks = new ConcurrentLinkedQueue<>();
+        new RecursiveScanner(config, groupOf(dir), rescanTasks, stats, indexes).rescan(dir);
+
+        for (SyncTask task : rescanTasks)
+            q.add(task);
 
-        } else if (eventType.equals("ENTRY_MODIFY")) {
+        // Sub-directories created during the burst were never registered
+        if (recursive)
+            toRegister.add(dir);
 
-            if (ignoreNextModify.getOrDefault(path, 0) > 0) {
-                ignoreNextModify.put(path, ignoreNextModify.get(path) - 1);
-                log.debug("IGNORED SUBSEQUENT MODIFY FOR path: " + path);
+        long rescanTime = System.currentTimeMillis() - start;
+        stats.addOverflowRecovered(rescanTime);
+        log.info("Recovered from OVERFLOW in " + dir + ": rescan queued "
+                + rescanTasks.size() + " tasks in " + rescanTime + "ms");
+    }
+
+    // Tasks for changes as they happen go in the queue's live lane, ahead of any scan backlog
+    private static SyncTask liveTask(SyncTask.TYPE type, SyncPathTable paths, int id, int from, int to) {
+
+        SyncTask task = new SyncTask(type, paths, id, from, to);
+        task.setLane(SyncTask.LANE.LIVE);
+        return task;
+    }
+
+    /**
+     * If path was just created by moving something whose delete is still pending, move its
+     * counterpart in root to along with it rather than deleting it and copying it all again.
+     * A dir is known by the file key it had when it was registered, a file by its counterpart
+     * having the same size and mtime (a rename keeps both), which the doer makes sure of by
+     * comparing contents before moving it.
+     */
+    private boolean addMove(BasicFileAttributes attrs, SyncPathTable paths, int id, int root, int to,
+                            Path equivPath) {
+
+        if (Files.exists(equivPath, NOFOLLOW_LINKS))
+            return false;
+        Object fileKey = attrs.fileKey();
+        SyncTask delete = coalescer.claimDelete(paths, root, to, t -> {
+            if (t.getPathId() == id || paths.isUnder(id, t.getPathId()))
                 return false;
-            } else {
-                log.debug("WILL IGNORE SUBSEQUENT MODIFY FOR equivPath: " + equivPath);
-                ignoreNextModify.put(equivPath, ignoreNextModify.getOrDefault(equivPath, 0) + 1);
-
-                //System.out.println("OS: " + SyncUtil.getOS().name());
-                if (SyncUtil.getOS() == SyncUtil.OS.LINUX) {
-                    if (Files.exists(equivPath)) {
-                        ignoreNextDelete.put(equivPath, ignoreNextDelete.getOrDefault(equivPath, 0) + 1);
-                        log.debug("WILL IGNORE SUBSEQUENT DELETE ON LINUX FILES for equivPath: " + equivPath);
-                    }
+            try {
+                if (attrs.isDirectory()) {
+                    DeletedDir deleted = deletedDirs.get(paths.key(t.getPathId(), root));
+                    return t.getType() == SyncTask.TYPE.RMDIR && deleted != null && deleted.fileKey.equals(fileKey);
                 }
-            }
-        }
-        else if (eventType.equals("ENTRY_DELETE")) {
-
-            if (ignoreNextDelete.getOrDefault(path, 0) > 0) {
-                ignoreNextDelete.put(path, ignoreNextDelete.get(path) - 1);
-                log.debug("IGNORED SUBSEQUENT DELETE FOR path: " + path);
+                return t.getType() == SyncTask.TYPE.RM && inSync(attrs, t.getDst());
+            } catch (IOException e) {
                 return false;
             }
-        }
+        });
+        if (delete == null)
+            return false;
+        deletedDirs.remove(paths.key(delete.getPathId(), root));
+
+        SyncTask move = liveTask(SyncTask.TYPE.MOVE, paths, id, root, to);
+        move.setMovedFromId(delete.getPathId());
+        delete.release();
+        coalescer.add(move);
         return true;
     }
 
+    // Queue whatever tasks bring every other dir of the group in line with path, reading it only once
+    private void addTasks(WatchEvent.Kind<?> kind, Path path, SyncPathTable paths, int id, int root) throws IOException {
 
-    private void addTask(String eventType, Path path, Path equivPath) throws IOException {
-
-        switch (eventType) {
-
-            case "ENTRY_CREATE":
-                if (Files.isDirectory(path))
-                    q.add(new SyncTask(SyncTask.TYPE.MKDIR, path, equivPath));
-                else
-                    q.add(new SyncTask(SyncTask.TYPE.CP, path, equivPath));
-                break;
-            case "ENTRY_MODIFY":
-                if (! Files.isDirectory(path))
-                    q.add(new SyncTask(SyncTask.TYPE.CP, path, equivPath));
-                break;
-            case "ENTRY_DELETE":
+        if (kind == ENTRY_CREATE || kind == ENTRY_MODIFY) {
+            BasicFileAttributes attrs;
+            try {
+                attrs = Files.readAttributes(path, BasicFileAttributes.class);
+            } catch (NoSuchFileException e) {
+                return;
+            }
+            for (int to = 0; to < paths.numRoots(); to++) {
+                if (to == root)
+                    continue;
+                Path equivPath = paths.resolve(id, to);
+                if (kind == ENTRY_CREATE && addMove(attrs, paths, id, root, to, equivPath))
+                    continue;
+                if (attrs.isDirectory()) {
+                    if (kind == ENTRY_CREATE && !Files.isDirectory(equivPath))
+                        coalescer.add(liveTask(SyncTask.TYPE.MKDIR, paths, id, root, to));
+                }
+                else if (!inSync(attrs, equivPath)) {
+                    SyncTask copy = liveTask(SyncTask.TYPE.CP, paths, id, root, to);
+                    copy.setSize(attrs.size());
+                    coalescer.add(copy);
+                }
+            }
+        }
+        else if (kind == ENTRY_DELETE) {
+            // Anything still pending from the deleted path is moot (e.g. CP then RM, MKDIR then RMDIR)
+            coalescer.cancel(paths, id, root);
+            for (int to = 0; to < paths.numRoots(); to++) {
+                if (to == root)
+                    continue;
+                Path equivPath = paths.resolve(id, to);
                 if (Files.exists(equivPath))
                     if (Files.isDirectory(equivPath))
-                        q.add(new SyncTask(SyncTask.TYPE.RMDIR, path, equivPath));
+                        coalescer.add(liveTask(SyncTask.TYPE.RMDIR, paths, id, root, to));
                     else
-                        q.add(new SyncTask(SyncTask.TYPE.RM, path, equivPath));
-                break;
+                        coalescer.add(liveTask(SyncTask.TYPE.RM, paths, id, root, to));
+            }
         }
+    }
+
+    // Overflowed dirs less any under another one, each rescan covering its whole group
+    private List<Path> outermost(List<Path> overflowed) {
 
+        List<Path> outermost = new ArrayList<>();
+        for (Path dir : overflowed) {
+            if (groupOf(dir) == null || outermost.stream().anyMatch(o -> covers(o, dir)))
+                continue;
+            outermost.removeIf(o -> covers(dir, o));
+            outermost.add(dir);
+        }
+        return outermost;
+    }
+
+    // Whether rescanning dir rescans other too, the same dir or under it in any root of the group
+    private boolean covers(Path dir, Path other) {
+
+        SyncPathTable paths = groupOf(dir);
+        return groupOf(other) == paths && paths.isUnder(paths.intern(other), paths.intern(dir));
     }
 
     /**
-     * Process all events for keys queued to the watcher
+     * Process all events for keys queued to the watcher. A problem reading events is thrown,
+     * so the task manager sees the watcher fail and replaces it.
      */
-    void processEvents() throws SyncOverflowException {
+    void processEvents() throws IOException {
 
         // Wrap all the code in try/catch for Interruption/cancellation.
         try {
+            // Couldn't create the event source, nothing to watch with
+            if (source == null)
+                return;
+
+            if (recursive) {
+                registrar = new Thread(this::registerInBackground, "SyncWatcherRegistrar");
+                registrar.setDaemon(true);
+                registrar.start();
+            }
+
             while (true) {
 
-                // wait for key to be signalled
-                WatchKey key = watcher.take();
+                // wait for the next batch of events
+                List<SyncEventSource.Event> events = source.take();
 
-                Path dir = keys.get(key);
-                if (dir == null) {
-                    log.error("WatchKey not recognized!!");
-                    continue;
-                }
+                // all directories are inaccessible
+                if (events == null)
+                    break;
 
-                for (WatchEvent<?> event: key.pollEvents()) {
-                    WatchEvent.Kind kind = event.kind();
+                List<Path> overflowed = new ArrayList<>();
+                for (SyncEventSource.Event event : events) {
+                    WatchEvent.Kind<?> kind = event.kind;
 
-                    // Due to a hard-coded limit of 512 queued events
-                    //  in AbstractKeyWatcher, overflows are fairly common.
-                    // If >512 files are modified simultaneously in one wached
-                    //  directory, it will overflow and lose events. The comments
-                    //  suggest that this maybe tunable in a future version of Watch Service.
-                    //  As of Java 9, the value is hard-coded.
+                    // The JDK watch service has a hard-coded limit of 512 queued
+                    //  events per directory in AbstractKeyWatcher, so overflows
+                    //  are fairly common with it: if >512 files are modified
+                    //  simultaneously in one watched directory, it loses events.
+                    // With inotify the limit is the kernel's queue for everything.
+                    // Rescan just the overflowed directories to catch up (once the rest
+                    //  of the batch is through, once each), then keep watching.
                     if (kind == OVERFLOW) {
-                        log.error("OVERFLOW!!!");
-                        throw new SyncOverflowException("OVERFLOWED!!!");
+                        overflowed.add(event.path);
+                        continue;
                     }
 
-                    // Context for directory entry event is the file name of entry
-                    WatchEvent<Path> ev = cast(event);
-                    Path name = ev.context();
-                    Path child = dir.resolve(name);
-
-                    // print out event
-                    log.debug(String.format("%s: %s", event.kind().name(), child));
+                    Path child = event.path;
 
-                    //System.out.println("Type: " + eventType + ", Path: " + path);
-                    Path equivPath;
-                    if (child.toString().indexOf(dir1.toString()) == 0)
-                        equivPath = SyncUtil.srcTodestPath(child, dir1, dir2);
-                    else
-                        equivPath = SyncUtil.srcTodestPath(child, dir2, dir1);
+                    // Copy engine temp files are never synced
+                    if (SyncUtil.isTempFile(child))
+                        continue;
 
+                    // print out event
+                    log.debug(event);
+
+                    SyncPathTable paths = groupOf(child);
+                    if (paths == null)
+                        continue;
+                    int root = paths.rootOf(child);
+                    int id = paths.intern(child);
+
+                    SyncJfr.WatchHandlingEvent handling = null;
+                    if (SyncJfr.AVAILABLE) {
+                        handling = new SyncJfr.WatchHandlingEvent();
+                        handling.begin();
+                    }
                     try {
-                        if (taskIsNeeded(event.kind().name(), child, equivPath)) {
-                            addTask(event.kind().name(), child, equivPath);
-                            stats.setNumTasksQueued(stats.getNumTasksQueued() + 1);
+                        if (taskIsNeeded(kind, child, paths.key(id, root)))
+                            addTasks(kind, child, paths, id, root);
+                        if (kind == ENTRY_DELETE) {
+                            unregister(paths, id, root);
+                            paths.release(id);
                         }
                     }
                     catch (IOException e) {
                         log.error("File exception during watching: " + e.getMessage());
                     }
+                    finally {
+                        if (handling != null) {
+                            handling.end();
+                            if (handling.shouldCommit()) {
+                                handling.kind = kind.name();
+                                handling.path = child.toString();
+                                handling.commit();
+                            }
+                        }
+                    }
 
                     // if directory is created, and watching recursively, then
                     // register it and its sub-directories
@@ -258,15 +641,9 @@ public class SyncWatcherWorker implements Callable<Void> {
                     }
                 }
 
-                // reset key and remove from set if directory no longer accessible
-                boolean valid = key.reset();
-                if (!valid) {
-                    keys.remove(key);
-
-                    // all directories are inaccessible
-                    if (keys.isEmpty()) {
-                        break;
-                    }
+                for (Path dir : outermost(overflowed)) {
+                    log.warn("OVERFLOW in " + dir + ", rescanning to recover lost events.");
+                    recoverOverflow(dir);
                 }
             }
         }
@@ -274,10 +651,21 @@ public class SyncWatcherWorker implements Callable<Void> {
             log.debug("SyncWatcherWorker thread interrupted. Stopping.");
             Thread.currentThread().interrupt();
         }
+        finally {
+            if (registrar != null)
+                registrar.interrupt();
+            coalescer.stop();
+            try {
+                if (source != null)
+                    source.close();
+            } catch (IOException e) {
+                log.error("Problem closing the event source: " + e.getMessage());
+            }
+        }
     }
 
     @Override
-    public Void call() throws SyncOverflowException {
+    public Void call() throws IOException {
         processEvents();
         return null;
     }
@@ -0,0 +1,138 @@
+package org.danielpacker;
+
+/**
+ * Streaming XXH64 (xxHash, 64 bit), a fast non-cryptographic hash for telling whether
+ * two files have the same contents. Feed it with update() in chunks of any size and
+ * read the result with digest(). Not thread safe.
+ */
+
+
+class SyncXxHash64 {
+
+    private static final long P1 = 0x9E3779B185EBCA87L;
+    private static final long P2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long P3 = 0x165667B19E3779F9L;
+    private static final long P4 = 0x85EBCA77C2B2AE63L;
+    private static final long P5 = 0x27D4EB2F165667C5L;
+
+    private final long seed;
+    private long v1;
+    private long v2;
+    private long v3;
+    private long v4;
+    private long total = 0;
+
+    // Input not yet making up a whole 32 byte stripe
+    private final byte[] pending = new byte[32];
+    private int numPending = 0;
+
+    SyncXxHash64() {
+        this(0);
+    }
+
+    SyncXxHash64(long seed) {
+
+        this.seed = seed;
+        v1 = seed + P1 + P2;
+        v2 = seed + P2;
+        v3 = seed;
+        v4 = seed - P1;
+    }
+
+    void update(byte[] b, int off, int len) {
+
+        total += len;
+
+        if (numPending + len < 32) {
+            System.arraycopy(b, off, pending, numPending, len);
+            numPending += len;
+            return;
+        }
+
+        int end = off + len;
+        if (numPending > 0) {
+            int fill = 32 - numPending;
+            System.arraycopy(b, off, pending, numPending, fill);
+            stripe(pending, 0);
+            off += fill;
+            numPending = 0;
+        }
+
+        for (; off + 32 <= end; off += 32)
+            stripe(b, off);
+
+        numPending = end - off;
+        System.arraycopy(b, off, pending, 0, numPending);
+    }
+
+    private void stripe(byte[] b, int off) {
+
+        v1 = round(v1, getLong(b, off));
+        v2 = round(v2, getLong(b, off + 8));
+        v3 = round(v3, getLong(b, off + 16));
+        v4 = round(v4, getLong(b, off + 24));
+    }
+
+    long digest() {
+
+        long h;
+        if (total >= 32) {
+            h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+            h = merge(h, v1);
+            h = merge(h, v2);
+            h = merge(h, v3);
+            h = merge(h, v4);
+        }
+        else {
+            h = seed + P5;
+        }
+        h += total;
+
+        int p = 0;
+        for (; p + 8 <= numPending; p += 8) {
+            h ^= round(0, getLong(pending, p));
+            h = Long.rotateLeft(h, 27) * P1 + P4;
+        }
+        if (p + 4 <= numPending) {
+            h ^= (getInt(pending, p) & 0xFFFFFFFFL) * P1;
+            h = Long.rotateLeft(h, 23) * P2 + P3;
+            p += 4;
+        }
+        for (; p < numPending; p++) {
+            h ^= (pending[p] & 0xFFL) * P5;
+            h = Long.rotateLeft(h, 11) * P1;
+        }
+
+        h ^= h >>> 33;
+        h *= P2;
+        h ^= h >>> 29;
+        h *= P3;
+        h ^= h >>> 32;
+        return h;
+    }
+
+    private static long round(long acc, long input) {
+
+        acc += input * P2;
+        acc = Long.rotateLeft(acc, 31);
+        return acc * P1;
+    }
+
+    private static long merge(long h, long v) {
+
+        h ^= round(0, v);
+        return h * P1 + P4;
+    }
+
+    // Little endian
+    private static long getLong(byte[] b, int i) {
+
+        return (b[i] & 0xFFL) | (b[i + 1] & 0xFFL) << 8 | (b[i + 2] & 0xFFL) << 16 | (b[i + 3] & 0xFFL) << 24
+                | (b[i + 4] & 0xFFL) << 32 | (b[i + 5] & 0xFFL) << 40 | (b[i + 6] & 0xFFL) << 48 | (b[i + 7] & 0xFFL) << 56;
+    }
+
+    private static int getInt(byte[] b, int i) {
+
+        return (b[i] & 0xFF) | (b[i + 1] & 0xFF) << 8 | (b[i + 2] & 0xFF) << 16 | (b[i + 3] & 0xFF) << 24;
+    }
+}
@@ -1,14 +1,24 @@
 import org.danielpacker.SyncConfig;
+import org.danielpacker.SyncTask;
 import org.danielpacker.SyncTaskManager;
 import org.junit.Before;
 import org.junit.FixMethodOrder;
 import org.junit.Test;
 import org.junit.runners.MethodSorters;
 import java.io.*;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.net.URLConnection;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
 import java.util.Comparator;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
@@ -95,6 +105,41 @@ public class SyncAppTest {
         taskMgr.shutDown();
     }
 
+    @Test
+    public void test3deltaModifyStartup() throws IOException, InterruptedException {
+
+        // Same 1MB of data in both dirs
+        byte[] data = new byte[1024 * 1024];
+        new java.util.Random(42).nextBytes(data);
+        Path big1 = Paths.get(dir1.toString(), "big.bin");
+        Path big2 = Paths.get(dir2.toString(), "big.bin");
+        Files.write(big1, data);
+        Files.write(big2, data);
+        Files.setLastModifiedTime(big2, java.nio.file.attribute.FileTime.fromMillis(0));
+
+        // Change some bytes in place, and insert some to shift everything after
+        java.io.ByteArrayOutputStream changed = new java.io.ByteArrayOutputStream();
+        changed.write(data, 0, 100000);
+        changed.write("inserted bytes".getBytes());
+        changed.write(data, 100000, 400000);
+        changed.write(new byte[5000]);
+        changed.write(data, 505000, data.length - 505000);
+        Files.write(big1, changed.toByteArray());
+
+        config.setDeltaThresholdBytes(1024);
+        config.setDeltaBlockBytes(4096);
+
+        // Task mgr is the high level interface for the app
+        SyncTaskManager taskMgr = new SyncTaskManager(config);
+
+        // Scan recursively for changes and produce tasks
+        taskMgr.recursiveScan();
+
+        taskMgr.shutDown();
+
+        assertTrue(java.util.Arrays.equals(Files.readAllBytes(big1), Files.readAllBytes(big2)));
+    }
+
     @Test
     public void test3modifyFileStartup() throws IOException, InterruptedException {
 
@@ -127,6 +172,87 @@ public class SyncAppTest {
         taskMgr.shutDown();
     }
 
+    @Test
+    public void test4batchStartup() throws IOException, InterruptedException {
+
+        // Lots of small files into one dir, some already there in an older version
+        Path batched = Paths.get(dir1.toString(), "batched");
+        Path batchedCopy = Paths.get(dir2.toString(), "batched");
+        Files.createDirectories(batched);
+        Files.createDirectories(batchedCopy);
+        for (int i = 0; i < 10; i++) {
+            Path old = Files.write(batchedCopy.resolve("file" + i + ".txt"), ("Old " + i).getBytes());
+            Files.setLastModifiedTime(old, FileTime.fromMillis(1500000000000L));
+        }
+        for (int i = 0; i < 50; i++)
+            Files.write(batched.resolve("file" + i + ".txt"), ("Batched " + i).getBytes());
+
+        // Another name for one of the old copies, which the batch mustn't write through
+        Path kept = Paths.get(dir2.toString(), "batchedKept.txt");
+        Files.createLink(kept, batchedCopy.resolve("file0.txt"));
+
+        config.setCopyEngine("channel");
+        SyncTaskManager taskMgr = new SyncTaskManager(config);
+        taskMgr.recursiveScan();
+
+        for (int i = 0; i < 50; i++) {
+            Path src = batched.resolve("file" + i + ".txt");
+            Path dst = batchedCopy.resolve("file" + i + ".txt");
+            assertTrue(Arrays.equals(Files.readAllBytes(src), Files.readAllBytes(dst)));
+            assertEquals(Files.getLastModifiedTime(src), Files.getLastModifiedTime(dst));
+        }
+        assertTrue(Arrays.equals("Old 0".getBytes(), Files.readAllBytes(kept)));
+
+        // Edited all at once while watching, the copies over the existing files are batched too
+        Files.delete(kept);
+        Files.createLink(kept, batchedCopy.resolve("file1.txt"));
+        taskMgr.startDoerWorker();
+        taskMgr.startWatcherWorker();
+        Thread.sleep(1000); // let the registrar get to it
+        for (int i = 0; i < 50; i++)
+            Files.write(batched.resolve("file" + i + ".txt"), ("Edited " + i).getBytes());
+
+        Thread.sleep(3 * 1000);
+        taskMgr.shutDown();
+
+        for (int i = 0; i < 50; i++)
+            assertTrue(Arrays.equals(("Edited " + i).getBytes(),
+                    Files.readAllBytes(batchedCopy.resolve("file" + i + ".txt"))));
+        assertTrue(Arrays.equals("Batched 1".getBytes(), Files.readAllBytes(kept)));
+
+        // Renamed into place, no temp files left behind
+        File[] leftovers = batchedCopy.toFile().listFiles((d, name) -> name.startsWith(".lightsync."));
+        assertTrue(leftovers.length == 0);
+    }
+
+    @Test
+    public void test4channelEngineStartup() throws IOException, InterruptedException {
+
+        byte[] data = new byte[100 * 1024];
+        new java.util.Random(7).nextBytes(data);
+        Path chunked = Paths.get(dir1.toString(), "chunked.bin");
+        Path chunkedCopy = Paths.get(dir2.toString(), "chunked.bin");
+        Files.write(chunked, data);
+
+        config.setCopyEngine("channel");
+        config.setCopyChunkBytes(4096);
+
+        // Task mgr is the high level interface for the app
+        SyncTaskManager taskMgr = new SyncTaskManager(config);
+
+        // Scan recursively for changes and produce tasks
+        taskMgr.recursiveScan();
+
+        taskMgr.shutDown();
+
+        assertTrue(java.util.Arrays.equals(data, Files.readAllBytes(chunkedCopy)));
+        assertTrue(Files.getLastModifiedTime(chunked).equals(Files.getLastModifiedTime(chunkedCopy)));
+
+        // No temp files left behind
+        File[] leftovers = dir2.toFile().listFiles((d, name) -> name.startsWith(".lightsync."));
+        assertTrue(leftovers.length == 0);
+    }
+
     @Test
     public void test4mkdirStartup() throws IOException, InterruptedException {
 
@@ -160,6 +286,448 @@ public class SyncAppTest {
     }
 
 
+    @Test
+    public void test4hardLinksStartup() throws IOException, InterruptedException {
+
+        Path linked = Paths.get(dir1.toString(), "linked");
+        Files.createDirectories(linked);
+        Path original = Paths.get(linked.toString(), "original.txt");
+        PrintWriter out = new PrintWriter(original.toString());
+        out.println("One file, two names");
+        out.close();
+        Files.createLink(Paths.get(linked.toString(), "link.txt"), original);
+
+        SyncTaskManager taskMgr = new SyncTaskManager(config);
+        taskMgr.recursiveScan();
+        taskMgr.shutDown();
+
+        // Still one file over there
+        Object originalKey = Files.readAttributes(Paths.get(dir2.toString(), "linked", "original.txt"),
+                BasicFileAttributes.class).fileKey();
+        Object linkKey = Files.readAttributes(Paths.get(dir2.toString(), "linked", "link.txt"),
+                BasicFileAttributes.class).fileKey();
+        assertEquals(originalKey, linkKey);
+    }
+
+    @Test
+    public void test4hardLinksReplaced() throws IOException, InterruptedException {
+
+        // Two links to one file, big enough to be updated in place with a delta copy
+        Path relinked = Paths.get(dir1.toString(), "relinked");
+        Files.createDirectories(relinked);
+        Path a = Paths.get(relinked.toString(), "a.bin");
+        Path b = Paths.get(relinked.toString(), "b.bin");
+        byte[] old = new byte[4096];
+        Arrays.fill(old, (byte) 'o');
+        Files.write(a, old);
+        Files.setLastModifiedTime(a, FileTime.fromMillis(1500000000000L));
+        Files.createLink(b, a);
+        config.setDeltaThresholdBytes(1024);
+
+        SyncTaskManager taskMgr = new SyncTaskManager(config);
+        taskMgr.recursiveScan();
+        taskMgr.shutDown();
+
+        // One of the names is replaced by a new file, the other keeps the old one
+        byte[] replaced = new byte[4096];
+        Arrays.fill(replaced, (byte) 'N');
+        Files.delete(a);
+        Files.write(a, replaced);
+
+        SyncTaskManager taskMgr2 = new SyncTaskManager(config);
+        taskMgr2.recursiveScan();
+        taskMgr2.shutDown();
+
+        assertTrue(Arrays.equals(replaced, Files.readAllBytes(Paths.get(dir2.toString(), "relinked", "a.bin"))));
+        assertTrue(Arrays.equals(old, Files.readAllBytes(Paths.get(dir2.toString(), "relinked", "b.bin"))));
+
+        // And nothing is copied back over the source next time
+        SyncTaskManager taskMgr3 = new SyncTaskManager(config);
+        taskMgr3.recursiveScan();
+        taskMgr3.shutDown();
+
+        assertTrue(Arrays.equals(old, Files.readAllBytes(b)));
+    }
+
+    @Test
+    public void test4journalResume() throws IOException, InterruptedException {
+
+        Path journaled = Paths.get(dir1.toString(), "journaled");
+        Files.createDirectories(journaled);
+        for (int i = 0; i < 20; i++) {
+            PrintWriter out = new PrintWriter(Paths.get(journaled.toString(), "file" + i + ".txt").toString());
+            out.println("Contents of file " + i);
+            out.close();
+        }
+
+        Path journal = Paths.get("src", "test", "temp", "journal");
+        if (Files.exists(journal))
+            Files.walk(journal)
+                    .sorted(Comparator.reverseOrder())
+                    .map(Path::toFile)
+                    .forEach(File::delete);
+
+        // Stopped a second into a throttled catch-up, after its scan but well before the end
+        config.setJournalDir(journal.toString());
+        config.setThrottleOpsPerSec(5);
+        SyncTaskManager first = new SyncTaskManager(config);
+        Thread catchUp = new Thread(first::recursiveScan);
+        catchUp.start();
+        Thread.sleep(1000);
+        first.shutDown();
+        catchUp.join();
+        try (Stream<Path> copied = Files.list(Paths.get(dir2.toString(), "journaled"))) {
+            assertTrue(copied.count() < 20);
+        }
+
+        // Only a scan would find this, and the restart resumes the journal instead
+        PrintWriter late = new PrintWriter(Paths.get(journaled.toString(), "late.txt").toString());
+        late.println("Written while stopped");
+        late.close();
+
+        config.setThrottleOpsPerSec(0);
+        config.setJournalSkipScan(true);
+        SyncTaskManager second = new SyncTaskManager(config);
+        second.recursiveScan();
+        second.shutDown();
+
+        for (int i = 0; i < 20; i++)
+            assertTrue(Files.exists(Paths.get(dir2.toString(), "journaled", "file" + i + ".txt")));
+
+        // Nothing left to resume, so the next start scans and picks up both
+        PrintWriter later = new PrintWriter(Paths.get(journaled.toString(), "later.txt").toString());
+        later.println("Written while stopped again");
+        later.close();
+
+        SyncTaskManager third = new SyncTaskManager(config);
+        third.recursiveScan();
+        third.shutDown();
+
+        assertTrue(Files.exists(Paths.get(dir2.toString(), "journaled", "late.txt")));
+        assertTrue(Files.exists(Paths.get(dir2.toString(), "journaled", "later.txt")));
+
+        // With skipping off, as by default, every start scans
+        Path last = Paths.get(journaled.toString(), "last.txt");
+        Files.write(last, "Written while stopped once more".getBytes());
+        config.setJournalSkipScan(false);
+        SyncTaskManager fourth = new SyncTaskManager(config);
+        fourth.recursiveScan();
+        fourth.shutDown();
+
+        assertTrue(Files.exists(Paths.get(dir2.toString(), "journaled", "last.txt")));
+    }
+
+    @Test
+    public void test4mergeJoinStartup() throws IOException, InterruptedException {
+
+        Path state = Paths.get("src", "test", "temp", "mergestate");
+        if (Files.exists(state))
+            Files.walk(state)
+                    .sorted(Comparator.reverseOrder())
+                    .map(Path::toFile)
+                    .forEach(File::delete);
+        config.setStateDir(state.toString());
+
+        // Names interleaved across the two dirs, so every kind of difference sits next to another
+        Path merge1 = Paths.get(dir1.toString(), "merge");
+        Path merge2 = Paths.get(dir2.toString(), "merge");
+        Files.createDirectories(merge1);
+        Files.createDirectories(merge2);
+        Files.write(merge1.resolve("a.txt"), "only in dir1".getBytes());
+        Files.write(merge2.resolve("b.txt"), "only in dir2".getBytes());
+        Files.write(merge1.resolve("c"), "a file in dir1".getBytes());
+        Files.createDirectory(merge2.resolve("c"));
+        Files.write(merge2.resolve("c").resolve("inner.txt"), "in a dir in dir2".getBytes());
+        Files.write(merge1.resolve("d.txt"), "to be removed".getBytes());
+        Files.write(merge2.resolve("e.txt"), "older".getBytes());
+        Files.setLastModifiedTime(merge2.resolve("e.txt"), FileTime.fromMillis(System.currentTimeMillis() - 60000));
+        Files.write(merge1.resolve("e.txt"), "newer".getBytes());
+        Files.createDirectory(merge2.resolve("f"));
+
+        int port = freePort();
+        config.setMetricsHttpPort(port);
+        SyncTaskManager taskMgr = new SyncTaskManager(config);
+        taskMgr.startMetrics();
+        double copies = metric(port, "lightsync_tasks_queued_total{type=\"CP\"}");
+        taskMgr.recursiveScan();
+        double scanCopies = metric(port, "lightsync_tasks_queued_total{type=\"CP\"}") - copies;
+        taskMgr.shutDown();
+
+        // Added on either side, newer wins, and the file/dir clash is left alone (nothing
+        //  is queued for it, not even for what's in the dir)
+        assertEquals(4, (long) scanCopies);
+        assertTrue(Files.exists(merge2.resolve("a.txt")));
+        assertTrue(Files.exists(merge1.resolve("b.txt")));
+        assertTrue(Files.exists(merge2.resolve("d.txt")));
+        assertEquals("newer", new String(Files.readAllBytes(merge2.resolve("e.txt"))));
+        assertTrue(Files.isDirectory(merge1.resolve("f")));
+        assertTrue(Files.isRegularFile(merge1.resolve("c")));
+        assertTrue(Files.isDirectory(merge2.resolve("c")));
+        assertFalse(Files.exists(merge1.resolve("c").resolve("inner.txt")));
+
+        // Removed while "down", between entries that are still there
+        Files.delete(merge1.resolve("d.txt"));
+
+        SyncTaskManager taskMgr2 = new SyncTaskManager(config);
+        taskMgr2.recursiveScan();
+        taskMgr2.shutDown();
+
+        assertFalse(Files.exists(merge2.resolve("d.txt")));
+        for (String name : new String[] { "a.txt", "b.txt", "e.txt" }) {
+            assertTrue(Files.exists(merge1.resolve(name)));
+            assertTrue(Files.exists(merge2.resolve(name)));
+        }
+        assertTrue(Files.isRegularFile(merge1.resolve("c")));
+        assertTrue(Files.isDirectory(merge2.resolve("c")));
+    }
+
+    @Test
+    public void test4metricsEndpoint() throws IOException, InterruptedException {
+
+        Path measured = Paths.get(dir1.toString(), "measured.txt");
+        PrintWriter out = new PrintWriter(measured.toString());
+        out.println("Counted in the metrics");
+        out.close();
+
+        int port;
+        try (ServerSocket free = new ServerSocket(0)) {
+            port = free.getLocalPort();
+        }
+        config.setMetricsHttpPort(port);
+
+        SyncTaskManager taskMgr = new SyncTaskManager(config);
+        taskMgr.startMetrics();
+        taskMgr.recursiveScan();
+
+        String body;
+        try {
+            URLConnection conn = new URL("http://127.0.0.1:" + port + "/metrics").openConnection();
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(conn.getInputStream(), "UTF-8"))) {
+                body = in.lines().collect(Collectors.joining("\n"));
+            }
+        } finally {
+            taskMgr.shutDown();
+        }
+
+        assertTrue(Files.exists(Paths.get(dir2.toString(), "measured.txt")));
+        assertTrue(body.contains("lightsync_tasks_completed_total{type=\"CP\"}"));
+        assertTrue(body.contains("lightsync_task_seconds{type=\"CP\",quantile=\"0.99\"}"));
+        assertTrue(body.contains("lightsync_queue_depth "));
+    }
+
+    @Test
+    public void test4nestedStartup() throws IOException, InterruptedException {
+
+        // Nested dirs and files force MKDIR-before-CP ordering across the doer pool
+        Path nested = Paths.get(dir1.toString(), "nested");
+        Path deep = Paths.get(nested.toString(), "a", "b", "c");
+        Files.createDirectories(deep);
+        for (int i = 0; i < 10; i++) {
+            PrintWriter out = new PrintWriter(Paths.get(deep.toString(), "file" + i + ".txt").toString());
+            out.println("Contents of file " + i);
+            out.close();
+        }
+
+        config.setDoerThreads(4);
+
+        // Task mgr is the high level interface for the app
+        SyncTaskManager taskMgr = new SyncTaskManager(config);
+
+        // Scan recursively for changes and produce tasks
+        taskMgr.recursiveScan();
+
+        Path deepCopy = Paths.get(dir2.toString(), "nested", "a", "b", "c");
+        for (int i = 0; i < 10; i++)
+            assertTrue(Files.exists(Paths.get(deepCopy.toString(), "file" + i + ".txt")));
+
+        taskMgr.shutDown();
+    }
+
+    @Test
+    public void test4skipIdenticalStartup() throws IOException, InterruptedException {
+
+        // Same contents on both sides, but the source looks newer (e.g. touched)
+        Path src = Paths.get(dir1.toString(), "identical.txt");
+        Path dst = Paths.get(dir2.toString(), "identical.txt");
+        for (Path path : new Path[] { dst, src }) {
+            PrintWriter out = new PrintWriter(path.toString());
+            out.println("Identical contents");
+            out.close();
+        }
+        Files.setLastModifiedTime(dst, FileTime.fromMillis(System.currentTimeMillis() - 60000));
+        Object dstKey = Files.readAttributes(dst, BasicFileAttributes.class).fileKey();
+
+        config.setSkipIdentical(true);
+        SyncTaskManager taskMgr = new SyncTaskManager(config);
+        taskMgr.recursiveScan();
+        taskMgr.shutDown();
+
+        // Not rewritten (same file), but the mtime caught up
+        assertTrue(Files.readAttributes(dst, BasicFileAttributes.class).fileKey().equals(dstKey));
+        assertTrue(Files.getLastModifiedTime(dst).equals(Files.getLastModifiedTime(src)));
+    }
+
+    @Test
+    public void test4spillQueueStartup() throws IOException, InterruptedException {
+
+        // Many more tasks than the queue holds, so the scan blocks and spills to disk
+        Path many = Paths.get(dir1.toString(), "many");
+        Files.createDirectories(many);
+        for (int i = 0; i < 200; i++) {
+            PrintWriter out = new PrintWriter(Paths.get(many.toString(), "file" + i + ".txt").toString());
+            out.println("Contents of file " + i);
+            out.close();
+        }
+
+        config.setQueueCapacity(8);
+        config.setQueueBlockMillis(1);
+        config.setQueueSpillDir(Paths.get("src", "test", "temp", "spill").toString());
+        config.setDoerThreads(2);
+
+        SyncTaskManager taskMgr = new SyncTaskManager(config);
+        taskMgr.recursiveScan();
+        taskMgr.shutDown();
+
+        for (int i = 0; i < 200; i++)
+            assertTrue(Files.exists(Paths.get(dir2.toString(), "many", "file" + i + ".txt")));
+    }
+
+    @Test
+    public void test4stateIndexStartup() throws IOException, InterruptedException {
+
+        Path state = Paths.get("src", "test", "temp", "state");
+        if (Files.exists(state))
+            Files.walk(state)
+                    .sorted(Comparator.reverseOrder())
+                    .map(Path::toFile)
+                    .forEach(File::delete);
+        config.setStateDir(state.toString());
+
+        Path file = Paths.get(dir1.toString(), "indexed.txt");
+        Path dir = Paths.get(dir1.toString(), "indexed");
+        PrintWriter out = new PrintWriter(file.toString());
+        out.println("Indexed file");
+        out.close();
+        Files.createDirectory(dir);
+        PrintWriter out2 = new PrintWriter(Paths.get(dir.toString(), "inner.txt").toString());
+        out2.println("Indexed inner file");
+        out2.close();
+
+        // First run syncs everything and records it in the index
+        SyncTaskManager taskMgr = new SyncTaskManager(config);
+        taskMgr.recursiveScan();
+        taskMgr.shutDown();
+
+        assertTrue(Files.exists(Paths.get(dir2.toString(), "indexed.txt")));
+        assertTrue(Files.exists(Paths.get(dir2.toString(), "indexed", "inner.txt")));
+
+        // Delete while "down", the next run should delete the copies too
+        Files.delete(file);
+        Files.delete(Paths.get(dir.toString(), "inner.txt"));
+        Files.delete(dir);
+
+        SyncTaskManager taskMgr2 = new SyncTaskManager(config);
+        taskMgr2.recursiveScan();
+        taskMgr2.shutDown();
+
+        assertFalse(Files.exists(Paths.get(dir2.toString(), "indexed.txt")));
+        assertFalse(Files.exists(Paths.get(dir2.toString(), "indexed")));
+    }
+
+    @Test
+    public void test4throttledStartup() throws IOException, InterruptedException {
+
+        Path throttled = Paths.get(dir1.toString(), "throttled");
+        Files.createDirectories(throttled);
+        for (int i = 0; i < 20; i++) {
+            PrintWriter out = new PrintWriter(Paths.get(throttled.toString(), "file" + i + ".txt").toString());
+            out.println("Contents of file " + i);
+            out.close();
+        }
+
+        // A second's worth goes right away, the other 10+ tasks take about a second more
+        config.setThrottleOpsPerSec(10);
+        config.setDoerThreads(4);
+
+        long start = System.currentTimeMillis();
+        SyncTaskManager taskMgr = new SyncTaskManager(config);
+        taskMgr.recursiveScan();
+        taskMgr.shutDown();
+
+        assertTrue(System.currentTimeMillis() - start >= 800);
+        for (int i = 0; i < 20; i++)
+            assertTrue(Files.exists(Paths.get(dir2.toString(), "throttled", "file" + i + ".txt")));
+    }
+
+    @Test
+    public void test4threeWayGroup() throws IOException, InterruptedException {
+
+        Path dir3 = Paths.get("src", "test", "temp", "test3");
+        if (Files.exists(dir3))
+            Files.walk(dir3)
+                    .sorted(Comparator.reverseOrder())
+                    .map(Path::toFile)
+                    .forEach(File::delete);
+        Files.createDirectory(dir3);
+        config.addGroup("three", Arrays.asList(dir1.toString(), dir2.toString(), dir3.toString()));
+
+        // A file only in dir3 before startup ends up in the other two
+        PrintWriter out = new PrintWriter(Paths.get(dir3.toString(), "group.txt").toString());
+        out.println("Group file");
+        out.close();
+
+        SyncTaskManager taskMgr = new SyncTaskManager(config);
+        taskMgr.recursiveScan();
+        assertTrue(Files.exists(Paths.get(dir1.toString(), "group.txt")));
+        assertTrue(Files.exists(Paths.get(dir2.toString(), "group.txt")));
+
+        // A file created in dir2 while watching is fanned out to dir1 and dir3
+        taskMgr.startDoerWorker();
+        taskMgr.startWatcherWorker();
+        PrintWriter out2 = new PrintWriter(Paths.get(dir2.toString(), "groupWatched.txt").toString());
+        out2.println("Group watched file");
+        out2.close();
+
+        Thread.sleep(3 * 1000);
+        assertTrue(Files.exists(Paths.get(dir1.toString(), "groupWatched.txt")));
+        assertTrue(Files.exists(Paths.get(dir3.toString(), "groupWatched.txt")));
+        assertTrue(Files.exists(Paths.get(dir3.toString(), "group.txt")));
+
+        taskMgr.shutDown();
+    }
+
+    @Test
+    public void test5catchUpOnceWatched() throws IOException, InterruptedException {
+
+        // Made just before the watcher starts, so the registrar has to catch up on each level
+        Path deep = Paths.get(dir1.toString(), "deep");
+        Path c = Paths.get(deep.toString(), "a", "b", "c");
+        Files.createDirectories(Paths.get(dir2.toString(), "deep"));
+        Files.createDirectories(c);
+        Files.write(c.resolve("file.txt"), "deep down".getBytes());
+
+        int port = freePort();
+        config.setMetricsHttpPort(port);
+        SyncTaskManager taskMgr = new SyncTaskManager(config);
+        taskMgr.startMetrics();
+        double copies = metric(port, "lightsync_tasks_queued_total{type=\"CP\"}");
+        double mkdirs = metric(port, "lightsync_tasks_queued_total{type=\"MKDIR\"}");
+
+        // Counted before the doers make the dirs in dir2, which get caught up on in turn
+        taskMgr.startWatcherWorker();
+        Thread.sleep(2000);
+
+        // Each dir and the file queued once, not again for every level above them
+        assertEquals(1, (long) (metric(port, "lightsync_tasks_queued_total{type=\"CP\"}") - copies));
+        assertEquals(3, (long) (metric(port, "lightsync_tasks_queued_total{type=\"MKDIR\"}") - mkdirs));
+
+        taskMgr.startDoerWorker();
+        Thread.sleep(1000);
+        taskMgr.shutDown();
+
+        assertTrue(Files.exists(Paths.get(dir2.toString(), "deep", "a", "b", "c", "file.txt")));
+    }
+
     @Test
     public void test5createFileWatch() throws IOException, InterruptedException {
 
@@ -195,6 +763,238 @@ public class SyncAppTest {
         taskMgr.shutDown();
     }
 
+    @Test
+    public void test5watchDuringScan() throws IOException, InterruptedException {
+
+        Path deep = Paths.get(dir1.toString(), "concurrent", "a", "b", "c");
+        Files.createDirectories(deep);
+        PrintWriter before = new PrintWriter(Paths.get(deep.toString(), "before.txt").toString());
+        before.println("Before the scan");
+        before.close();
+
+        // Watching from the start, with the sub-dirs registered by the scan and in the background
+        SyncTaskManager taskMgr = new SyncTaskManager(config);
+        taskMgr.startWatcherWorker();
+        taskMgr.recursiveScan();
+        taskMgr.startDoerWorker();
+
+        PrintWriter after = new PrintWriter(Paths.get(deep.toString(), "after.txt").toString());
+        after.println("After the scan");
+        after.close();
+
+        Thread.sleep(3 * 1000);
+
+        Path deep2 = Paths.get(dir2.toString(), "concurrent", "a", "b", "c");
+        assertTrue(Files.exists(Paths.get(deep2.toString(), "before.txt")));
+        assertTrue(Files.exists(Paths.get(deep2.toString(), "after.txt")));
+
+        taskMgr.shutDown();
+    }
+
+    @Test
+    public void test5liveIntoScannedDirWatched() throws IOException, InterruptedException {
+
+        // Dirs only in dir1, made by the scan a few a second
+        Path lanes = Paths.get(dir1.toString(), "lanes");
+        for (int i = 0; i < 40; i++)
+            Files.createDirectories(lanes.resolve("d" + i));
+        config.setThrottleOpsPerSec(10);
+        config.setDoerThreads(4);
+
+        SyncTaskManager taskMgr = new SyncTaskManager(config);
+        taskMgr.startWatcherWorker();
+        Thread scan = new Thread(taskMgr::recursiveScan);
+        scan.start();
+
+        Thread.sleep(500);
+
+        // A live copy into the last dir, which the scan hasn't made yet
+        Files.write(lanes.resolve("d39").resolve("live.txt"), "ahead of the scan".getBytes());
+        Path liveCopy = Paths.get(dir2.toString(), "lanes", "d39", "live.txt");
+        for (int i = 0; i < 30 && !Files.exists(liveCopy); i++)
+            Thread.sleep(100);
+
+        long made;
+        try (Stream<Path> dirs = Files.list(Paths.get(dir2.toString(), "lanes"))) {
+            made = dirs.count();
+        }
+        scan.join();
+        taskMgr.shutDown();
+
+        assertTrue(Files.exists(liveCopy));
+        assertEquals("ahead of the scan", new String(Files.readAllBytes(liveCopy)));
+        assertTrue(made < 40);
+        for (int i = 0; i < 40; i++)
+            assertTrue(Files.isDirectory(Paths.get(dir2.toString(), "lanes", "d" + i)));
+    }
+
+    @Test
+    public void test5laneWeightsWatched() throws IOException, InterruptedException {
+
+        // A backlog only in dir1 for the scan, worked through a few tasks a second
+        Path backlog = Paths.get(dir1.toString(), "backlog");
+        Path stream = Paths.get(dir1.toString(), "stream");
+        Files.createDirectories(backlog);
+        Files.createDirectories(stream);
+        for (int i = 0; i < 200; i++)
+            Files.write(backlog.resolve("old" + i + ".txt"), ("old " + i).getBytes());
+        // Unchanged as far as the registrar's catch-up goes, so left to the scan
+        Files.setLastModifiedTime(backlog, FileTime.fromMillis(1500000000000L));
+        Files.setLastModifiedTime(stream, FileTime.fromMillis(1500000000000L));
+        config.setThrottleOpsPerSec(20);
+        config.setDoerThreads(1);
+        config.setBatchSmallBytes(0);
+        config.setLaneWeight(SyncTask.LANE.LIVE, 4);
+        config.setLaneWeight(SyncTask.LANE.SCAN, 1);
+
+        SyncTaskManager taskMgr = new SyncTaskManager(config);
+        taskMgr.startWatcherWorker();
+        Thread.sleep(1000); // let the registrar get to the dirs
+        Thread scan = new Thread(taskMgr::recursiveScan);
+        scan.start();
+
+        // Far more live changes than the doer gets through, so the live lane is never empty.
+        //  Counted from once they're flowing, leaving out what the scan did before that.
+        long scannedBefore = 0;
+        long liveBefore = 0;
+        for (int i = 0; i < 400; i++) {
+            Files.write(stream.resolve("new" + i + ".txt"), ("new " + i).getBytes());
+            Thread.sleep(10);
+            if (i == 100) {
+                scannedBefore = countFiles(Paths.get(dir2.toString(), "backlog"));
+                liveBefore = countFiles(Paths.get(dir2.toString(), "stream"));
+            }
+        }
+        long scanned = countFiles(Paths.get(dir2.toString(), "backlog")) - scannedBefore;
+        long live = countFiles(Paths.get(dir2.toString(), "stream")) - liveBefore;
+
+        // Then let the rest through
+        taskMgr.setThrottle(0, 0);
+        scan.join();
+        taskMgr.shutDown();
+
+        // Neither lane waits for the other to empty: live goes first, about 4 in 5,
+        //  and the scan still gets its share
+        assertTrue(scanned >= 5);
+        assertTrue(live >= 2 * scanned);
+        assertTrue(Files.exists(Paths.get(dir2.toString(), "backlog", "old199.txt")));
+    }
+
+    @Test
+    public void test6coalesceBurstWatched() throws IOException, InterruptedException {
+
+        Path written = Paths.get(dir1.toString(), "written.txt");
+        Path renamed = Paths.get(dir1.toString(), "renamed.txt");
+        Path writtenCopy = Paths.get(dir2.toString(), "written.txt");
+        Path renamedCopy = Paths.get(dir2.toString(), "renamed.txt");
+
+        int port = freePort();
+        config.setMetricsHttpPort(port);
+        config.setCoalesceWindowMillis(500);
+
+        // Task mgr is the high level interface for the app
+        SyncTaskManager taskMgr = new SyncTaskManager(config);
+
+        taskMgr.startMetrics();
+
+        taskMgr.startDoerWorker();
+
+        taskMgr.startWatcherWorker();
+
+        Thread.sleep(1000);
+
+        double copies = metric(port, "lightsync_tasks_queued_total{type=\"CP\"}");
+        double moves = metric(port, "lightsync_tasks_queued_total{type=\"MOVE\"}");
+
+        // Written a line at a time, an event each, but only copied once it's settled
+        try (OutputStream out = Files.newOutputStream(written)) {
+            for (int i = 0; i < 100; i++) {
+                out.write(("line " + i + "\n").getBytes());
+                out.flush();
+                Thread.sleep(2);
+            }
+        }
+
+        Thread.sleep(2000);
+
+        double burstCopies = metric(port, "lightsync_tasks_queued_total{type=\"CP\"}") - copies;
+        String burstCopy = new String(Files.readAllBytes(writtenCopy));
+
+        // The pending RM of the old name is claimed by the new one, and made into a MOVE
+        Files.move(written, renamed);
+
+        Thread.sleep(2000);
+
+        double renameCopies = metric(port, "lightsync_tasks_queued_total{type=\"CP\"}") - copies;
+        double renameMoves = metric(port, "lightsync_tasks_queued_total{type=\"MOVE\"}") - moves;
+
+        taskMgr.shutDown();
+
+        assertEquals(1, (long) burstCopies);
+        assertTrue(burstCopy.endsWith("line 99\n"));
+        assertEquals(1, (long) renameCopies);
+        assertEquals(1, (long) renameMoves);
+        assertFalse(Files.exists(writtenCopy));
+        assertEquals(new String(Files.readAllBytes(renamed)), new String(Files.readAllBytes(renamedCopy)));
+    }
+
+    @Test
+    public void test6echoExpiresWatched() throws IOException, InterruptedException {
+
+        Path echoed = Paths.get(dir1.toString(), "echoed.txt");
+        Path echoedCopy = Paths.get(dir2.toString(), "echoed.txt");
+        Path later = Paths.get(dir1.toString(), "later.txt");
+
+        int port = freePort();
+        config.setMetricsHttpPort(port);
+        config.setEchoTtlMillis(2000);
+
+        // Task mgr is the high level interface for the app
+        SyncTaskManager taskMgr = new SyncTaskManager(config);
+
+        taskMgr.startMetrics();
+
+        taskMgr.startDoerWorker();
+
+        taskMgr.startWatcherWorker();
+
+        Thread.sleep(1000);
+
+        double copies = metric(port, "lightsync_tasks_queued_total{type=\"CP\"}");
+
+        // Our copy's own events in dir2 are echoes, not copied back
+        Files.write(echoed, "ours".getBytes());
+
+        Thread.sleep(1000);
+
+        double oursCopies = metric(port, "lightsync_tasks_queued_total{type=\"CP\"}") - copies;
+        double oursEchoes = metric(port, "lightsync_echo_cache_entries");
+
+        // A real edit right after it is no echo, and is copied back
+        Files.write(echoedCopy, "edited in dir2".getBytes());
+
+        Thread.sleep(1000);
+
+        double editCopies = metric(port, "lightsync_tasks_queued_total{type=\"CP\"}") - copies;
+        String edited = new String(Files.readAllBytes(echoed));
+
+        // Long after, the entries have expired, and only the latest copy's is left
+        Thread.sleep(2500);
+        Files.write(later, "later".getBytes());
+
+        Thread.sleep(1000);
+
+        double laterEchoes = metric(port, "lightsync_echo_cache_entries");
+
+        taskMgr.shutDown();
+
+        assertEquals(1, (long) oursCopies);
+        assertEquals(1, (long) oursEchoes);
+        assertEquals(2, (long) editCopies);
+        assertEquals("edited in dir2", edited);
+        assertEquals(1, (long) laterEchoes);
+    }
+
     @Test
     public void test6modifyFileWatch() throws IOException, InterruptedException {
 
@@ -257,6 +1057,119 @@ public class SyncAppTest {
         taskMgr.shutDown();
     }
 
+    @Test
+    public void test7renameDirWatched() throws IOException, InterruptedException {
+
+        Path old1 = Paths.get(dir1.toString(), "renameme");
+        Path old2 = Paths.get(dir2.toString(), "renameme");
+        Path new1 = Paths.get(dir1.toString(), "renamed");
+        Path new2 = Paths.get(dir2.toString(), "renamed");
+
+        // Already in sync in both dirs
+        for (Path dir : new Path[] { old1, old2 }) {
+            Files.createDirectory(dir);
+            Path file = Files.write(dir.resolve("inside.txt"), "renamed with its dir".getBytes());
+            Files.setLastModifiedTime(file, FileTime.fromMillis(1500000000000L));
+        }
+        Object fileKey = Files.readAttributes(old2, BasicFileAttributes.class).fileKey();
+
+        // Task mgr is the high level interface for the app
+        SyncTaskManager taskMgr = new SyncTaskManager(config);
+
+        taskMgr.startDoerWorker();
+
+        taskMgr.startWatcherWorker();
+
+        Thread.sleep(1000); // let the registrar get to it
+
+        Files.move(old1, new1);
+
+        Thread.sleep(5 * 1000); // wait 5s
+
+        assertFalse(Files.exists(old2));
+        assertTrue(Files.exists(new2.resolve("inside.txt")));
+        // Moved rather than deleted and copied again
+        assertEquals(fileKey, Files.readAttributes(new2, BasicFileAttributes.class).fileKey());
+
+        taskMgr.shutDown();
+    }
+
+    @Test
+    public void test7renameLookalikeWatched() throws IOException, InterruptedException {
+
+        Path old1 = Paths.get(dir1.toString(), "lookalike.txt");
+        Path old2 = Paths.get(dir2.toString(), "lookalike.txt");
+        Path new1 = Paths.get(dir1.toString(), "unrelated.txt");
+        Path new2 = Paths.get(dir2.toString(), "unrelated.txt");
+        Path outside = Paths.get("src", "test", "temp", "unrelated.txt");
+
+        // Already in sync in both dirs, and a different file of the same size and mtime
+        for (Path file : new Path[] { old1, old2 }) {
+            Files.write(file, "AAAA".getBytes());
+            Files.setLastModifiedTime(file, FileTime.fromMillis(1500000000000L));
+        }
+        Files.write(outside, "BBBB".getBytes());
+        Files.setLastModifiedTime(outside, FileTime.fromMillis(1500000000000L));
+
+        // Task mgr is the high level interface for the app
+        SyncTaskManager taskMgr = new SyncTaskManager(config);
+
+        taskMgr.startDoerWorker();
+
+        taskMgr.startWatcherWorker();
+
+        Thread.sleep(1000);
+
+        // Looks like a rename of one to the other, but isn't
+        Files.delete(old1);
+        Files.move(outside, new1);
+
+        Thread.sleep(5 * 1000); // wait 5s
+
+        assertFalse(Files.exists(old2));
+        assertEquals("BBBB", new String(Files.readAllBytes(new2)));
+
+        taskMgr.shutDown();
+    }
+
+    @Test
+    public void test7renameDirGoneWatched() throws IOException, InterruptedException {
+
+        Path old1 = Paths.get(dir1.toString(), "gone");
+        Path old2 = Paths.get(dir2.toString(), "gone");
+        Path new1 = Paths.get(dir1.toString(), "arrived");
+        Path new2 = Paths.get(dir2.toString(), "arrived");
+
+        // Already in sync in both dirs
+        for (Path dir : new Path[] { old1, old2 }) {
+            Files.createDirectory(dir);
+            Path file = Files.write(dir.resolve("inside.txt"), "still arrives".getBytes());
+            Files.setLastModifiedTime(file, FileTime.fromMillis(1500000000000L));
+        }
+
+        // Long enough to get the counterpart out of the way before the MOVE runs
+        config.setCoalesceWindowMillis(2000);
+
+        // Task mgr is the high level interface for the app
+        SyncTaskManager taskMgr = new SyncTaskManager(config);
+
+        taskMgr.startDoerWorker();
+
+        taskMgr.startWatcherWorker();
+
+        Thread.sleep(1000); // let the registrar get to it
+
+        Files.move(old1, new1);
+        Thread.sleep(500);
+        Files.walk(old2).sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+
+        Thread.sleep(5 * 1000); // wait 5s
+
+        assertEquals("still arrives", new String(Files.readAllBytes(new2.resolve("inside.txt"))));
+
+        taskMgr.shutDown();
+    }
+
     @Test
     public void test8rmdirWatched() throws IOException, InterruptedException {
 
@@ -290,4 +1203,198 @@ public class SyncAppTest {
 
         taskMgr.shutDown();
     }
-}
\ No newline at end of file
+
+    @Test
+    public void test8rmdirTreeWatched() throws IOException, InterruptedException {
+
+        Path tree1 = Paths.get(dir1.toString(), "removetree");
+        Path tree2 = Paths.get(dir2.toString(), "removetree");
+        // Somewhere outside the synced dirs, next to them
+        Path outside = Files.createTempDirectory(dir1.getParent(), "removed");
+        Path moved = outside.resolve("removetree");
+
+        // The same tree of dirs and files in both
+        for (Path tree : new Path[] { tree1, tree2 }) {
+            for (int d = 0; d < 4; d++) {
+                Path sub = Files.createDirectories(tree.resolve("sub" + d).resolve("nested"));
+                for (int f = 0; f < 50; f++) {
+                    Path file = Files.write(sub.resolve("file" + f + ".txt"), ("file " + f).getBytes());
+                    Files.setLastModifiedTime(file, FileTime.fromMillis(1500000000000L));
+                }
+            }
+        }
+        // Task mgr is the high level interface for the app
+        SyncTaskManager taskMgr = new SyncTaskManager(config);
+
+        taskMgr.startDoerWorker();
+
+        taskMgr.startWatcherWorker();
+
+        Thread.sleep(1000); // let the registrar get to it
+
+        try {
+            // Gone from dir1 all at once, one RMDIR of the whole tree
+            Files.move(tree1, moved);
+
+            Thread.sleep(5 * 1000); // wait 5s
+
+            assertFalse(Files.exists(tree2));
+        } finally {
+            taskMgr.shutDown();
+            try (Stream<Path> walk = Files.walk(outside)) {
+                walk.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    @Test
+    public void test8rmReleasedWatched() throws IOException, InterruptedException {
+
+        Path released = Paths.get(dir1.toString(), "released");
+        Path releasedCopy = Paths.get(dir2.toString(), "released");
+        Files.createDirectory(released);
+        Files.createDirectory(releasedCopy);
+
+        int port = freePort();
+        config.setMetricsHttpPort(port);
+
+        // Task mgr is the high level interface for the app
+        SyncTaskManager taskMgr = new SyncTaskManager(config);
+
+        taskMgr.startMetrics();
+
+        taskMgr.startDoerWorker();
+
+        taskMgr.startWatcherWorker();
+
+        Thread.sleep(1000);
+
+        for (int i = 0; i < 300; i++)
+            Files.write(released.resolve("file" + i + ".txt"), ("file " + i).getBytes());
+
+        Thread.sleep(5 * 1000);
+
+        assertTrue(Files.exists(releasedCopy.resolve("file299.txt")));
+        double synced = metric(port, "lightsync_path_table_nodes");
+
+        for (int i = 0; i < 300; i++)
+            Files.delete(released.resolve("file" + i + ".txt"));
+
+        // Removed from the path table once the deletes are synced and a sweep has been by
+        double swept = synced;
+        for (int i = 0; i < 20 && swept > synced - 300; i++) {
+            Thread.sleep(500);
+            swept = metric(port, "lightsync_path_table_nodes");
+        }
+
+        // A path again, maybe with the id of one removed
+        Files.write(released.resolve("again.txt"), "again".getBytes());
+
+        Thread.sleep(3 * 1000);
+
+        taskMgr.shutDown();
+
+        assertFalse(Files.exists(releasedCopy.resolve("file0.txt")));
+        assertTrue(swept <= synced - 300);
+        assertEquals("again", new String(Files.readAllBytes(releasedCopy.resolve("again.txt"))));
+    }
+
+    private static long countFiles(Path dir) throws IOException {
+
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.count();
+        }
+    }
+
+    private static int freePort() throws IOException {
+
+        try (ServerSocket free = new ServerSocket(0)) {
+            return free.getLocalPort();
+        }
+    }
+
+    private static double metric(int port, String name) throws IOException {
+
+        URLConnection conn = new URL("http://127.0.0.1:" + port + "/metrics").openConnection();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(conn.getInputStream(), "UTF-8"))) {
+            return in.lines().filter(line -> line.startsWith(name + " "))
+                    .mapToDouble(line -> Double.parseDouble(line.substring(name.length() + 1)))
+                    .findFirst().orElse(-1);
+        }
+    }
+
+    @Test
+    public void test9overflowWatched() throws IOException, InterruptedException {
+
+        Path burst = Paths.get(dir1.toString(), "burst");
+        Path burstCopy = Paths.get(dir2.toString(), "burst");
+        Files.createDirectory(burst);
+        Files.createDirectory(burstCopy);
+
+        // Copy via temp files, so a rescan never sees a half-copied file as a newer one
+        config.setCopyEngine("channel");
+
+        // Task mgr is the high level interface for the app
+        SyncTaskManager taskMgr = new SyncTaskManager(config);
+
+        taskMgr.startDoerWorker();
+
+        taskMgr.startWatcherWorker();
+
+        // More than 512 events in one directory overflows the watch key
+        for (int i = 0; i < 2000; i++) {
+            PrintWriter out = new PrintWriter(Paths.get(burst.toString(), "burst" + i + ".txt").toString());
+            out.println("Contents of file " + i);
+            out.close();
+        }
+
+        Thread.sleep(10 * 1000); // wait 10s
+
+        for (int i = 0; i < 2000; i++)
+            assertTrue(Files.exists(Paths.get(burstCopy.toString(), "burst" + i + ".txt")));
+
+        taskMgr.shutDown();
+    }
+
+    @Test
+    public void test9overflowSubdirWatched() throws IOException, InterruptedException {
+
+        Path burst = Paths.get(dir1.toString(), "burstdirs");
+        Path burstCopy = Paths.get(dir2.toString(), "burstdirs");
+        Files.createDirectory(burst);
+        Files.createDirectory(burstCopy);
+
+        // The watch service overflows a dir at 512 events, inotify hardly ever
+        config.setWatcherBackend("jdk");
+        config.setCopyEngine("channel");
+
+        // Task mgr is the high level interface for the app
+        SyncTaskManager taskMgr = new SyncTaskManager(config);
+
+        taskMgr.startDoerWorker();
+
+        taskMgr.startWatcherWorker();
+
+        Thread.sleep(1000);
+
+        // A sub-dir made in the middle of the burst is only seen by the rescan
+        for (int i = 0; i < 2000; i++) {
+            if (i == 1000)
+                Files.createDirectory(burst.resolve("made"));
+            Files.write(burst.resolve("burst" + i + ".txt"), ("Contents of file " + i).getBytes());
+        }
+
+        Thread.sleep(5 * 1000);
+
+        // And registered in the background, so what changes in it from then on is caught
+        Files.write(burst.resolve("made").resolve("after.txt"), "After the overflow".getBytes());
+
+        Thread.sleep(3 * 1000);
+
+        for (int i = 0; i < 2000; i++)
+            assertTrue(Files.exists(burstCopy.resolve("burst" + i + ".txt")));
+        assertTrue(Files.exists(burstCopy.resolve("made").resolve("after.txt")));
+
+        taskMgr.shutDown();
+    }
+}
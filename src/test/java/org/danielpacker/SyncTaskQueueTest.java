@@ -0,0 +1,37 @@
+package org.danielpacker;
+
+import org.junit.Test;
+
+import java.nio.file.Paths;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+public class SyncTaskQueueTest {
+
+    @Test
+    public void testEstimateCountsPathsOnlyTheTaskKeeps() {
+
+        SyncPathTable paths = SyncPathTable.forRoots(Paths.get("/estimate/a"), Paths.get("/estimate/b"));
+        int dir = paths.child(SyncPathTable.ROOT, "dir");
+        SyncTask first = new SyncTask(SyncTask.TYPE.CP, paths, paths.child(dir, "one.txt"), 0, 1);
+        SyncTask longer = new SyncTask(SyncTask.TYPE.CP, paths,
+                paths.child(paths.child(SyncPathTable.ROOT, "other"), "a-much-longer-name.txt"), 0, 1);
+
+        // The only file in its dir keeps the dir too, and a longer name takes more
+        long alone = SyncTaskQueue.estimateBytes(first);
+        assertTrue(SyncTaskQueue.estimateBytes(longer) > alone);
+
+        // Once the dir has another file in it, it's not counted against either
+        SyncTask second = new SyncTask(SyncTask.TYPE.CP, paths, paths.child(dir, "two.txt"), 0, 1);
+        long shared = SyncTaskQueue.estimateBytes(first);
+        assertTrue(shared < alone);
+        assertEquals(shared, SyncTaskQueue.estimateBytes(second));
+
+        // Nor is the file, once another task (e.g. a copy to another root) keeps it as well
+        SyncTask again = new SyncTask(SyncTask.TYPE.CP, paths, first.getPathId(), 1, 0);
+        assertTrue(SyncTaskQueue.estimateBytes(first) < shared);
+        assertEquals(SyncTaskQueue.estimateBytes(first), SyncTaskQueue.estimateBytes(again));
+    }
+}
@@ -0,0 +1,47 @@
+package org.danielpacker;
+
+import org.junit.Test;
+
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertTrue;
+
+
+public class SyncTaskSequencerTest {
+
+    @Test
+    public void testSiblingsWhileAnotherWorkerWaits() throws Exception {
+
+        SyncPathTable paths = SyncPathTable.forRoots(Paths.get("/seq/a"), Paths.get("/seq/b"));
+        SyncTaskSequencer sequencer = new SyncTaskSequencer(new SyncTaskQueue(new SyncConfig(), new SyncStats()));
+        int dir = paths.child(SyncPathTable.ROOT, "dir");
+        sequencer.getQueue().add(new SyncTask(SyncTask.TYPE.CP, paths, paths.child(dir, "last.txt"), 0, 1));
+
+        // One worker has the last change, another is waiting for the next
+        SyncTask first = sequencer.take(true);
+        Thread idle = new Thread(() -> {
+            try {
+                sequencer.take(true);
+            }
+            catch (InterruptedException e) {
+                // Done
+            }
+        });
+        idle.start();
+        Thread.sleep(200);
+
+        // No siblings, and no waiting for a task to turn up for the idle worker
+        ExecutorService batcher = Executors.newSingleThreadExecutor();
+        Future<List<SyncTask>> siblings = batcher.submit(() -> sequencer.takeSiblings(first, 10));
+        assertTrue(siblings.get(1, TimeUnit.SECONDS).isEmpty());
+        batcher.shutdownNow();
+
+        idle.interrupt();
+        idle.join();
+    }
+}
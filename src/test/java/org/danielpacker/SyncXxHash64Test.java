@@ -0,0 +1,66 @@
+package org.danielpacker;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+
+
+public class SyncXxHash64Test {
+
+    private static final long PRIME32 = 2654435761L;
+
+    // The reference implementation's sanity check input (xxhsum -b), same bytes for any length
+    private static final byte[] sanity = new byte[2367];
+
+    static {
+        long gen = PRIME32;
+        for (int i = 0; i < sanity.length; i++) {
+            sanity[i] = (byte) (gen >>> 56);
+            gen *= 0x9E3779B185EBCA8DL;
+        }
+    }
+
+    private static long hash(byte[] b, int len, long seed, int chunk) {
+
+        SyncXxHash64 xxHash = new SyncXxHash64(seed);
+        for (int off = 0; off < len; off += chunk)
+            xxHash.update(b, off, Math.min(chunk, len - off));
+        return xxHash.digest();
+    }
+
+    private static void assertHash(long expected, int len, long seed) {
+
+        // Whole, and in chunks that leave every possible amount pending between updates
+        assertEquals(expected, hash(sanity, len, seed, Math.max(len, 1)));
+        for (int chunk : new int[] { 1, 7, 31, 32, 33 })
+            assertEquals("chunks of " + chunk, expected, hash(sanity, len, seed, chunk));
+    }
+
+    @Test
+    public void testSanityVectors() {
+
+        assertHash(0xEF46DB3751D8E999L, 0, 0);
+        assertHash(0xAC75FDA2929B17EFL, 0, PRIME32);
+        assertHash(0xE934A84ADB052768L, 1, 0);
+        assertHash(0x5014607643A9B4C3L, 1, PRIME32);
+        assertHash(0x8282DCC4994E35C8L, 14, 0);
+        assertHash(0xC3BD6BF63DEB6DF0L, 14, PRIME32);
+        assertHash(0xB641AE8CB691C174L, 222, 0);
+        assertHash(0x20CB8AB7AE10C14AL, 222, PRIME32);
+        assertHash(0xA82418DDEC0EA581L, 2367, 0);
+        assertHash(0xA36A93C18052673AL, 2367, PRIME32);
+    }
+
+    @Test
+    public void testStrings() {
+
+        byte[] abc = "abc".getBytes(StandardCharsets.US_ASCII);
+        assertEquals(0xD24EC4F1A98C6E5BL, hash(abc, 1, 0, 1));
+        assertEquals(0x44BC2CF5AD770999L, hash(abc, 3, 0, 3));
+
+        byte[] spam = "Nobody inspects the spammish repetition".getBytes(StandardCharsets.US_ASCII);
+        assertEquals(0xFBCEA83C8A378BF1L, hash(spam, spam.length, 0, spam.length));
+    }
+}